@@ -19,6 +19,10 @@ package org.archive.jbs;
 import java.io.*;
 import java.util.*;
 
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
@@ -26,7 +30,8 @@ import org.json.JSONTokener;
 
 /**
  * Document for use with Hadoop and full-text processing and analysis.
- * Serializable via JSON.
+ * Serializable via JSON, or via a compact binary form as a Hadoop
+ * Writable.
  *
  * Properties are simple key/value pairs, where values can be single
  * or multi-valued.  Multiple values are kept in a set, so only unique
@@ -37,8 +42,35 @@ import org.json.JSONTokener;
  * Getting property values always returns "" or an empty collection if
  * the property does not exist.
  */
-public class Document
+public class Document implements Writable
 {
+  /**
+   * Version byte written at the start of the binary form.
+   */
+  public static final byte BINARY_VERSION = 1;
+
+  /**
+   * Dictionary of well-known property keys.  In the binary form, a
+   * key in this list is written as its (1-based) position rather
+   * than the full string.  Only ever append to this list, otherwise
+   * previously written binary Documents will be mis-read.
+   */
+  private static final String[] KEYS =
+    {
+      "url", "digest", "date", "title", "content", "boiled", "type",
+      "length", "code", "collection", "keywords", "description",
+      "status", "errorMessage", "boost", "numInlinks",
+    };
+
+  private static final Map<String,Integer> KEY_CODES = new HashMap<String,Integer>( );
+  static
+  {
+    for ( int i = 0 ; i < KEYS.length ; i++ )
+      {
+        KEY_CODES.put( KEYS[i], i + 1 );
+      }
+  }
+
   private Map<String,Object> properties;
   private ArrayList<Link>    links;
 
@@ -361,6 +393,365 @@ public class Document
       }
   }
 
+  /**
+   * Merge the JSON-encoded Document read from the Reader into this
+   * one.  The semantics are the same as <code>merge(Document)</code>,
+   * but the JSON is scanned one token at a time and the values are
+   * folded directly into this Document, rather than constructing an
+   * intermediate JSONObject and Document for it.
+   *
+   * This is intended for merging many JSON values into a single,
+   * re-usable accumulator Document.
+   */
+  public void mergeJSON( Reader r )
+    throws IOException
+  {
+    try
+      {
+        JSONTokener x = new JSONTokener( r );
+
+        if ( x.nextClean() != '{' )
+          {
+            throw x.syntaxError( "A JSONObject text must begin with '{'" );
+          }
+
+        // We take whoever has the first non-zero list of links, same
+        // as merge(Document).
+        boolean takeLinks = this.links.size( ) == 0;
+
+        if ( x.nextClean() == '}' ) return ;
+        x.back();
+
+        while ( true )
+          {
+            String name = nextKey( x ).trim();
+
+            if ( "outlinks".equals( name ) )
+              {
+                mergeJSONLinks( x, takeLinks );
+              }
+            else
+              {
+                mergeJSONValues( x, name );
+              }
+
+            switch ( x.nextClean() )
+              {
+              case ';':
+              case ',':
+                if ( x.nextClean() == '}' ) return ;
+                x.back();
+                break;
+              case '}':
+                return ;
+              default:
+                throw x.syntaxError( "Expected a ',' or '}'" );
+              }
+          }
+      }
+    catch ( JSONException jse )
+      {
+        throw new IOException( jse );
+      }
+  }
+
+  /**
+   * Read a key, and the separator following it, from the tokener.
+   */
+  private String nextKey( JSONTokener x )
+    throws JSONException
+  {
+    String key;
+
+    char c = x.nextClean();
+    switch ( c )
+      {
+      case 0:
+        throw x.syntaxError( "A JSONObject text must end with '}'" );
+      case '"':
+      case '\'':
+        key = x.nextString( c );
+        break;
+      default:
+        x.back();
+        key = x.nextValue().toString();
+      }
+
+    c = x.nextClean();
+    if ( c == '=' )
+      {
+        if ( x.next() != '>' ) x.back();
+      }
+    else if ( c != ':' )
+      {
+        throw x.syntaxError( "Expected a ':' after a key" );
+      }
+
+    return key;
+  }
+
+  /**
+   * Read a single value, or array of values, for the property from
+   * the tokener and add them.  Same as <code>fromJSON</code>, nested
+   * objects and nulls are ignored.
+   */
+  private void mergeJSONValues( JSONTokener x, String name )
+    throws JSONException
+  {
+    if ( x.nextClean() != '[' )
+      {
+        x.back();
+
+        addScalar( name, x.nextValue() );
+
+        return ;
+      }
+
+    if ( x.nextClean() == ']' ) return ;
+    x.back();
+
+    while ( true )
+      {
+        if ( x.nextClean() == ',' )
+          {
+            x.back();
+          }
+        else
+          {
+            x.back();
+            addScalar( name, x.nextValue() );
+          }
+
+        switch ( x.nextClean() )
+          {
+          case ';':
+          case ',':
+            if ( x.nextClean() == ']' ) return ;
+            x.back();
+            break;
+          case ']':
+            return ;
+          default:
+            throw x.syntaxError( "Expected a ',' or ']'" );
+          }
+      }
+  }
+
+  /**
+   * Read the array of outlink objects from the tokener, adding them
+   * only if <code>keep</code> is <code>true</code>.
+   */
+  private void mergeJSONLinks( JSONTokener x, boolean keep )
+    throws JSONException
+  {
+    if ( x.nextClean() != '[' )
+      {
+        // Hrm, it should be an array.  Same as fromJSON(), a scalar
+        // is added as an "outlinks" property, anything else ignored.
+        x.back();
+        addScalar( "outlinks", x.nextValue() );
+        return ;
+      }
+
+    if ( x.nextClean() == ']' ) return ;
+    x.back();
+
+    while ( true )
+      {
+        char c = x.nextClean();
+        if ( c == '{' )
+          {
+            String url  = "";
+            String text = "";
+
+            if ( x.nextClean() != '}' )
+              {
+                x.back();
+
+                while ( true )
+                  {
+                    String key   = nextKey( x );
+                    Object value = x.nextValue();
+
+                    // Same as optString() in fromJSON(), a null is "null".
+                    if      ( "url" .equals( key ) ) url  = value.toString();
+                    else if ( "text".equals( key ) ) text = value.toString();
+
+                    c = x.nextClean();
+                    if ( c == '}' ) break;
+                    if ( c != ',' && c != ';' ) throw x.syntaxError( "Expected a ',' or '}'" );
+                    if ( x.nextClean() == '}' ) break;
+                    x.back();
+                  }
+              }
+
+            if ( keep ) this.addLink( url, text );
+          }
+        else if ( c != ',' )
+          {
+            // Hrm, it should be an object.  Consume and ignore it.
+            x.back();
+            x.nextValue();
+          }
+        else
+          {
+            x.back();
+          }
+
+        switch ( x.nextClean() )
+          {
+          case ';':
+          case ',':
+            if ( x.nextClean() == ']' ) return ;
+            x.back();
+            break;
+          case ']':
+            return ;
+          default:
+            throw x.syntaxError( "Expected a ',' or ']'" );
+          }
+      }
+  }
+
+  /**
+   * Add the value if it is a String or other simple scalar type.
+   */
+  private void addScalar( String name, Object o )
+  {
+    if ( o instanceof String  ||
+         o instanceof Long    ||
+         o instanceof Double  ||
+         o instanceof Integer ||
+         o instanceof Boolean )
+      {
+        this.add( name, o.toString() );
+      }
+  }
+
+  /**
+   * Remove all the properties and links.
+   */
+  public void clear( )
+  {
+    this.properties.clear( );
+    this.links.clear( );
+  }
+
+  /**
+   * Serialize out in the compact binary form.  Strings are written
+   * as length-prefixed UTF-8, well-known property keys are written as
+   * their position in the key dictionary, and the links are written
+   * as a packed array of url/text pairs.
+   */
+  public void write( DataOutput out )
+    throws IOException
+  {
+    out.writeByte( BINARY_VERSION );
+
+    WritableUtils.writeVInt( out, properties.size( ) );
+    for ( Map.Entry<String,Object> e : properties.entrySet() )
+      {
+        String key   = e.getKey( );
+        Object value = e.getValue( );
+
+        Integer code = KEY_CODES.get( key );
+        if ( code != null )
+          {
+            WritableUtils.writeVInt( out, code );
+          }
+        else
+          {
+            WritableUtils.writeVInt( out, 0 );
+            Text.writeString( out, key );
+          }
+
+        if ( value instanceof Set )
+          {
+            Set<?> values = (Set<?>) value;
+
+            WritableUtils.writeVInt( out, values.size( ) );
+            for ( Object s : values )
+              {
+                Text.writeString( out, (String) s );
+              }
+          }
+        else
+          {
+            WritableUtils.writeVInt( out, 1 );
+            Text.writeString( out, (String) value );
+          }
+      }
+
+    // Same as the JSON form, links without a URL are not written.
+    int numLinks = 0;
+    for ( Link link : links )
+      {
+        if ( link.getUrl( ).length( ) != 0 ) numLinks++;
+      }
+
+    WritableUtils.writeVInt( out, numLinks );
+    for ( Link link : links )
+      {
+        if ( link.getUrl( ).length( ) == 0 ) continue;
+
+        Text.writeString( out, link.getUrl ( ) );
+        Text.writeString( out, link.getText( ) );
+      }
+  }
+
+  /**
+   * Initialize self from the compact binary form.  Any existing
+   * properties and links are removed first, as Hadoop re-uses
+   * Writable instances.
+   */
+  public void readFields( DataInput in )
+    throws IOException
+  {
+    clear( );
+
+    byte version = in.readByte( );
+    if ( version != BINARY_VERSION )
+      {
+        throw new IOException( "Unknown binary Document version: " + version );
+      }
+
+    int numProperties = WritableUtils.readVInt( in );
+    for ( int i = 0 ; i < numProperties ; i++ )
+      {
+        int code = WritableUtils.readVInt( in );
+
+        String key;
+        if ( code == 0 )
+          {
+            key = Text.readString( in );
+          }
+        else if ( code <= KEYS.length )
+          {
+            key = KEYS[code - 1];
+          }
+        else
+          {
+            throw new IOException( "Unknown property key code: " + code );
+          }
+
+        int numValues = WritableUtils.readVInt( in );
+        for ( int j = 0 ; j < numValues ; j++ )
+          {
+            this.add( key, Text.readString( in ) );
+          }
+      }
+
+    int numLinks = WritableUtils.readVInt( in );
+    this.links.ensureCapacity( numLinks );
+    for ( int i = 0 ; i < numLinks ; i++ )
+      {
+        String url  = Text.readString( in );
+        String text = Text.readString( in );
+
+        this.links.add( new Link( url, text ) );
+      }
+  }
+
   /**
    * Serialize out as a JSON string.
    */
@@ -33,7 +33,7 @@ import org.archive.jbs.filter.*;
  */
 public abstract class DocumentWriterBase implements DocumentWriter
 {
-  protected Map<String,DocumentFilter> filters = new HashMap<String,DocumentFilter>( );
+  protected FilterChain    filters = new FilterChain( );
   protected TypeNormalizer typeNormalizer;
 
   public DocumentFilter getFilter( String name )
@@ -46,5 +46,23 @@ public abstract class DocumentWriterBase implements DocumentWriter
     this.filters.put( name, filter );
   }
 
+  public FilterChain getFilters( )
+  {
+    return this.filters;
+  }
+
+  /**
+   * Add the number of Documents seen and rejected by each filter to
+   * the Hadoop counters.
+   */
+  public void reportFilterCounters( Reporter reporter )
+  {
+    for ( String name : this.filters.getNames( ) )
+      {
+        reporter.incrCounter( "jbs.filter", name + ".seen",     this.filters.getSeen    ( name ) );
+        reporter.incrCounter( "jbs.filter", name + ".rejected", this.filters.getRejected( name ) );
+      }
+  }
+
   public abstract void add( String key, Document document ) throws IOException;
 }
@@ -33,6 +33,9 @@ import org.apache.nutch.parse.ParseText;
 import org.apache.nutch.parse.Outlink;
 import org.apache.nutch.metadata.Metadata;
 
+import org.archive.jbs.util.FPGenerator;
+import org.archive.jbs.util.FPPartitioner;
+
 /** 
  * Command-line driver and MapReduce code for converting and merging
  * Documents.  Documents can be converted/synthesized from text-files
@@ -44,21 +47,212 @@ import org.apache.nutch.metadata.Metadata;
  *   Hadoop file  -- stores the merge/deduped set in a Hadoop file
  *   Lucene index -- builds a full-text Lucene index of the Docs
  *   Solr index   -- pushes the Documents to a Solr server.
+ *
+ * Documents are passed between the map and reduce phases, and
+ * written to Hadoop files, either as JSON-encoded Text or in the
+ * Document's binary Writable form if <code>jbs.document.binary</code>
+ * is <code>true</code>.  Either form is accepted as input.
+ *
+ * If <code>jbs.merge.fpKeys</code> is <code>true</code>, the Documents
+ * are shuffled and sorted by the 64-bit fingerprint of their key,
+ * rather than by the (long) key itself.  The key travels along with
+ * the value, in a KeyedValue, and is restored by the reducer.  Keys
+ * with the same fingerprint are detected and merged separately.
+ *
+ * If <code>jbs.merge.dedup</code> is <code>true</code>, the
+ * Documents emitted by Parse for records whose payload was already
+ * parsed elsewhere (those with a <code>dedupOf</code> property) are
+ * filled in with the parsed fields of a Document with the same
+ * digest.  A preliminary job groups the inputs by digest and writes
+ * the fields to be filled in for each duplicate, which is then
+ * merged along with the inputs.
  */
 public class Merge extends Configured implements Tool
 {
   public static final Log LOG = LogFactory.getLog(Merge.class);
 
+  /**
+   * Fields copied to a duplicate from the Document it duplicates, if
+   * <code>jbs.merge.dedup.fields</code> is not set.
+   */
+  public static final String[] DEFAULT_DEDUP_FIELDS = { "title", "content", "type", "boiled", "keywords", "description" };
+
+  /**
+   * Set on the dedup job, so the mappers collect the Documents by
+   * their digest.
+   */
+  private static final String DEDUP_BY_DIGEST = "jbs.merge.dedup.byDigest";
+
+  /**
+   * Base class for the mappers, which emit the Document value in
+   * either the JSON Text or binary form, as configured.
+   */
+  public static abstract class DocumentEmitter extends MapReduceBase
+  {
+    protected boolean  binary;
+    protected boolean  fpKeys;
+    protected boolean  byDigest;
+    protected String[] dedupFields;
+
+    private Text outputValue = new Text( );
+
+    private LongWritable fpKey      = new LongWritable( );
+    private Text         digestKey  = new Text( );
+    private KeyedValue   keyedValue = new KeyedValue( );
+    private Document     projection = new Document( );
+
+    public void configure( JobConf conf )
+    {
+      this.binary      = conf.getBoolean( "jbs.document.binary", false );
+      this.fpKeys      = conf.getBoolean( "jbs.merge.fpKeys",    false );
+      this.byDigest    = conf.getBoolean( DEDUP_BY_DIGEST,       false );
+      this.dedupFields = getDedupFields( conf );
+    }
+
+    protected void emit( Text key, Document doc, OutputCollector<WritableComparable<?>,Writable> output )
+      throws IOException
+    {
+      if ( this.byDigest )
+        {
+          collectByDigest( key, doc, output );
+          return ;
+        }
+
+      collect( key, toWritable( doc, this.binary, this.outputValue ), output );
+    }
+
+    /**
+     * Collect the Document under the digest from its key, for the
+     * dedup job.  Only the duplicates, and the Documents which have
+     * fields to fill them in with, are needed, and only the
+     * <code>dedupOf</code> and dedup fields of them.
+     */
+    protected void collectByDigest( Text key, Document doc, OutputCollector<WritableComparable<?>,Writable> output )
+      throws IOException
+    {
+      if ( doc.get( "dedupOf" ).length( ) == 0 && ! hasAny( doc, this.dedupFields ) ) return ;
+
+      // Keys are of the form "url digest".
+      String k = key.toString( );
+      int    p = k.lastIndexOf( ' ' );
+      if ( p < 0 ) return ;
+
+      this.digestKey.set( k.substring( p + 1 ) );
+      this.projection.clear( );
+      this.projection.set( "dedupOf", doc.getAll( "dedupOf" ) );
+      for ( String field : this.dedupFields )
+        {
+          this.projection.set( field, doc.getAll( field ) );
+        }
+
+      this.keyedValue.set( key, toWritable( this.projection, this.binary, this.outputValue ) );
+
+      output.collect( this.digestKey, this.keyedValue );
+    }
+
+    /**
+     * Collect the value under the key, or under the fingerprint of
+     * the key if <code>jbs.merge.fpKeys</code> is set.
+     */
+    protected void collect( Text key, Writable value, OutputCollector<WritableComparable<?>,Writable> output )
+      throws IOException
+    {
+      if ( ! this.fpKeys )
+        {
+          output.collect( key, value );
+          return ;
+        }
+
+      this.fpKey.set( FPGenerator.std64.fp( key ) );
+      this.keyedValue.set( key, value );
+
+      output.collect( this.fpKey, this.keyedValue );
+    }
+  }
+
+  /**
+   * A value together with its original key, for shuffling under the
+   * fingerprint of the key.  The value is either a JSON-encoded Text
+   * or a binary Document.
+   */
+  public static class KeyedValue implements Writable
+  {
+    private static final byte TEXT     = 0;
+    private static final byte DOCUMENT = 1;
+
+    private Text     key      = new Text( );
+    private Text     text     = new Text( );
+    private Document document = new Document( );
+    private Writable value;
+
+    public Text getKey( )
+    {
+      return this.key;
+    }
+
+    public Writable getValue( )
+    {
+      return this.value;
+    }
+
+    /**
+     * Set the key and value.  The key is copied, the value is not.
+     */
+    public void set( Text key, Writable value )
+    {
+      this.key.set( key );
+      this.value = value;
+    }
+
+    public void write( DataOutput out )
+      throws IOException
+    {
+      this.key.write( out );
+      if ( this.value instanceof Document )
+        {
+          out.writeByte( DOCUMENT );
+        }
+      else if ( this.value instanceof Text )
+        {
+          out.writeByte( TEXT );
+        }
+      else
+        {
+          throw new IOException( "Unknown Document value type: " + this.value.getClass( ) );
+        }
+      this.value.write( out );
+    }
+
+    public void readFields( DataInput in )
+      throws IOException
+    {
+      this.key.readFields( in );
+
+      byte type = in.readByte( );
+      switch ( type )
+        {
+        case TEXT:
+          this.value = this.text;
+          break;
+        case DOCUMENT:
+          this.value = this.document;
+          break;
+        default:
+          throw new IOException( "Unknown KeyedValue type: " + type );
+        }
+      this.value.readFields( in );
+    }
+  }
+
   /**
    * Mapper that handles text files, where each line is mapped to a
    * Document.  The accepted formats are JSON and CDX.
    */
-  public static class TextMapper extends MapReduceBase implements Mapper<LongWritable, Text, Text, Text>
+  public static class TextMapper extends DocumentEmitter implements Mapper<LongWritable, Text, WritableComparable<?>, Writable>
   {
     private Text outputKey   = new Text( );
-    private Text outputValue = new Text( );
     
-    public void map( LongWritable key, Text value, OutputCollector<Text,Text> output, Reporter reporter )
+    public void map( LongWritable key, Text value, OutputCollector<WritableComparable<?>,Writable> output, Reporter reporter )
       throws IOException
     {
       String line = value.toString().trim();
@@ -85,7 +279,7 @@ public class Merge extends Configured implements Tool
      * key is synthesized from the <tt>url</tt> and <tt>digest</tt>
      * properties.
      */
-    private void mapJSON( String line, OutputCollector<Text,Text> output, Reporter reporter )
+    private void mapJSON( String line, OutputCollector<WritableComparable<?>,Writable> output, Reporter reporter )
       throws IOException
     {
       Document doc;
@@ -115,15 +309,14 @@ public class Merge extends Configured implements Tool
             }
         }
       
-      outputKey  .set( key );
-      outputValue.set( doc.toString() );
-      output.collect( outputKey, outputValue );
+      outputKey.set( key );
+      emit( outputKey, doc, output );
     }
 
     /**
      * Synthesize a Document from a CDX line.
      */
-    private void mapCDX( String line, OutputCollector<Text,Text> output, Reporter reporter )
+    private void mapCDX( String line, OutputCollector<WritableComparable<?>,Writable> output, Reporter reporter )
       throws IOException
     {
       String[] fields = line.split( "\\s+" );
@@ -142,10 +335,9 @@ public class Merge extends Configured implements Tool
       doc.set( "date",   fields[1] );
       doc.set( "digest", "sha1:" + fields[5] );
       
-      outputKey  .set( fields[0] + " sha1:" + fields[5] );
-      outputValue.set( doc.toString() );
-      
-      output.collect( outputKey, outputValue );
+      outputKey.set( fields[0] + " sha1:" + fields[5] );
+
+      emit( outputKey, doc, output );
     }
 
   }
@@ -153,11 +345,9 @@ public class Merge extends Configured implements Tool
   /**
    * Mapper that can handle Writables from Nutch(WAX) segments.
    */
-  public static class NutchMapper extends MapReduceBase implements Mapper<Text, Writable, Text, Text>
+  public static class NutchMapper extends DocumentEmitter implements Mapper<Text, Writable, WritableComparable<?>, Writable>
   {
-    private Text outputValue = new Text();
-
-    public void map( Text key, Writable value, OutputCollector<Text, Text> output, Reporter reporter)
+    public void map( Text key, Writable value, OutputCollector<WritableComparable<?>, Writable> output, Reporter reporter)
       throws IOException
     {
       Document doc = new Document( );
@@ -189,9 +379,8 @@ public class Merge extends Configured implements Tool
           System.out.println( "NutchMapper unknown value type: " + value.getClass( ) );
           return ;
         }
-      outputValue.set( doc.toString() );
 
-      output.collect( key, outputValue );
+      emit( key, doc, output );
     }
   }
   
@@ -200,15 +389,15 @@ public class Merge extends Configured implements Tool
    * in between.  Without any transformations, it's the same as
    * IdentityMapper.
    */
-  public static class DocumentMapper extends MapReduceBase implements Mapper<Text, Text, Text, Text>
+  public static class DocumentMapper extends DocumentEmitter implements Mapper<Text, Writable, WritableComparable<?>, Writable>
   {
     private JobConf conf;
     private boolean dropLinks;
 
-    private Text outputValue = new Text();
-
     public void configure( JobConf conf )
     {
+      super.configure( conf );
+
       this.conf = conf;
       this.dropLinks = conf.getBoolean( "jbs.documentMapper.dropLinks", false );
     }
@@ -216,59 +405,321 @@ public class Merge extends Configured implements Tool
     /**
      * TODO: Implement document optional transformer(s).
      */
-    public void map( Text key, Text value, OutputCollector<Text, Text> output, Reporter reporter)
+    public void map( Text key, Writable value, OutputCollector<WritableComparable<?>, Writable> output, Reporter reporter)
       throws IOException
     {
-      // If we're not dropping the links, then pass the <key,value>
-      // pair straight through.  No need to deserialize into JSON just
-      // to reserialize it right back out again.
-      if ( ! this.dropLinks )
+      // If we're not dropping the links, and the value is already in
+      // the output form, then pass the <key,value> pair straight
+      // through.  No need to deserialize it just to reserialize it
+      // right back out again.
+      if ( ! this.dropLinks && ! this.byDigest && ( this.binary == (value instanceof Document) ) )
         {
-          output.collect( key, value );
+          collect( key, value, output );
 
           return;
         }
 
-      // Deserialize from JSON, drop the links then write it out.
-      Document d = fromText( value );
-      d.clearLinks();
-      outputValue.set( d.toString() );
-      
-      output.collect( key, outputValue );
+      // Deserialize, optionally drop the links then write it out.
+      Document d = fromWritable( value );
+      if ( this.dropLinks ) d.clearLinks();
+
+      emit( key, d, output );
     }
   }
   
   /**
    * The reduce operation simply merges together all the Documents
    * with the same key, then writes them out.
+   *
+   * By default, the values are folded into a single, re-usable
+   * accumulator Document.  JSON-encoded values are scanned and merged
+   * directly into the accumulator, rather than constructing a
+   * Document for each one.  Setting
+   * <code>jbs.merge.streaming=false</code> reverts to constructing
+   * a Document for each value and merging them together.
    */
-  public static class Reduce extends MapReduceBase implements Reducer<Text, Text, Text, Text> 
+  public static class Reduce extends MapReduceBase implements Reducer<Text, Writable, Text, Writable> 
   {
-    private Text outputValue = new Text();
+    private boolean binary;
+    private boolean streaming;
+
+    private Document accumulator = new Document();
+    private Text     outputValue = new Text();
 
-    public void reduce( Text key, Iterator<Text> values, OutputCollector<Text, Text> output, Reporter reporter)
+    public void configure( JobConf conf )
+    {
+      this.binary    = conf.getBoolean( "jbs.document.binary", false );
+      this.streaming = conf.getBoolean( "jbs.merge.streaming", true  );
+    }
+
+    public void reduce( Text key, Iterator<Writable> values, OutputCollector<Text, Writable> output, Reporter reporter)
       throws IOException
     {
       // If no values, then skip it.
       if ( ! values.hasNext( ) ) return ;
       
-      // Create a Document of the first JSON value.
-      Document doc = fromText( values.next() );
+      // Merge all the values into the accumulator.  We cannot simply
+      // start with the first value because Hadoop re-uses the same
+      // Writable instance for each value in the iteration.
+      Document doc;
+      if ( this.streaming )
+        {
+          doc = this.accumulator;
+          doc.clear( );
+        }
+      else
+        {
+          doc = new Document( );
+        }
 
       while ( values.hasNext( ) )
         {
-          doc.merge( fromText( values.next() ) );
+          mergeValue( doc, values.next( ), this.streaming );
         }
       
-      outputValue.set( doc.toString() );
-      
-      output.collect( key, outputValue );
+      output.collect( key, toWritable( doc, this.binary, this.outputValue ) );
       
       // Clear the outputValue so the String can be GC'd.  If we don't
       // clear it, the reference to the string will remain after this
       // method returns because the outputValue is a class member.
+      // Likewise for the accumulator.
+      outputValue.clear();
+      accumulator.clear();
+    }
+  }
+
+  /**
+   * Base class for the combiner and reducer used when the Documents
+   * are shuffled by the fingerprint of their key.  The values for a
+   * fingerprint are merged by their original key.  Normally they all
+   * have the same key, but if there is a fingerprint collision, the
+   * Documents for the other keys are merged separately.
+   */
+  public static abstract class FPReduceBase extends MapReduceBase
+  {
+    protected boolean binary;
+    protected boolean streaming;
+
+    protected Text     key         = new Text();
+    protected Document accumulator = new Document();
+    protected Text     outputValue = new Text();
+
+    // Documents for keys which collide with the first one, in key order.
+    protected SortedMap<Text,Document> collisions = new TreeMap<Text,Document>();
+
+    public void configure( JobConf conf )
+    {
+      this.binary    = conf.getBoolean( "jbs.document.binary", false );
+      this.streaming = conf.getBoolean( "jbs.merge.streaming", true  );
+    }
+
+    /**
+     * Merge the values into the accumulator, or into the collisions
+     * for values whose key is not that of the first value.
+     */
+    protected void merge( Iterator<KeyedValue> values, Reporter reporter )
+      throws IOException
+    {
+      this.accumulator.clear( );
+      this.collisions.clear( );
+
+      KeyedValue first = values.next( );
+      this.key.set( first.getKey( ) );
+      mergeValue( this.accumulator, first.getValue( ), this.streaming );
+
+      while ( values.hasNext( ) )
+        {
+          KeyedValue value = values.next( );
+
+          if ( this.key.equals( value.getKey( ) ) )
+            {
+              mergeValue( this.accumulator, value.getValue( ), this.streaming );
+              continue ;
+            }
+
+          Document doc = this.collisions.get( value.getKey( ) );
+          if ( doc == null )
+            {
+              LOG.warn( "Fingerprint collision: " + this.key + " : " + value.getKey( ) );
+              reporter.incrCounter( "jbs.merge", "fpCollisions", 1 );
+
+              doc = new Document( );
+              this.collisions.put( new Text( value.getKey( ) ), doc );
+            }
+          mergeValue( doc, value.getValue( ), this.streaming );
+        }
+    }
+  }
+
+  /**
+   * Combiner for fingerprint keys, the output is keyed by fingerprint
+   * just like the input.
+   */
+  public static class FPCombine extends FPReduceBase implements Reducer<LongWritable, KeyedValue, LongWritable, KeyedValue>
+  {
+    private KeyedValue keyedValue = new KeyedValue();
+
+    public void reduce( LongWritable fp, Iterator<KeyedValue> values, OutputCollector<LongWritable, KeyedValue> output, Reporter reporter)
+      throws IOException
+    {
+      if ( ! values.hasNext( ) ) return ;
+
+      merge( values, reporter );
+
+      this.keyedValue.set( this.key, toWritable( this.accumulator, this.binary, this.outputValue ) );
+      output.collect( fp, this.keyedValue );
+
+      for ( Map.Entry<Text,Document> e : this.collisions.entrySet( ) )
+        {
+          this.keyedValue.set( e.getKey( ), toWritable( e.getValue( ), this.binary, this.outputValue ) );
+          output.collect( fp, this.keyedValue );
+        }
+
       outputValue.clear();
+      accumulator.clear();
+      collisions.clear();
+    }
+  }
+
+  /**
+   * Reducer for fingerprint keys, the output is keyed by the original
+   * key, restored from the values.
+   */
+  public static class FPReduce extends FPReduceBase implements Reducer<LongWritable, KeyedValue, Text, Writable>
+  {
+    public void reduce( LongWritable fp, Iterator<KeyedValue> values, OutputCollector<Text, Writable> output, Reporter reporter)
+      throws IOException
+    {
+      if ( ! values.hasNext( ) ) return ;
+
+      merge( values, reporter );
+
+      output.collect( this.key, toWritable( this.accumulator, this.binary, this.outputValue ) );
+
+      for ( Map.Entry<Text,Document> e : this.collisions.entrySet( ) )
+        {
+          output.collect( e.getKey( ), toWritable( e.getValue( ), this.binary, this.outputValue ) );
+        }
+
+      outputValue.clear();
+      accumulator.clear();
+      collisions.clear();
+    }
+  }
+
+  /**
+   * Reducer for the dedup job.  The Documents with the same digest
+   * are grouped together, and for each duplicate (one with a
+   * <code>dedupOf</code> property), a Document with just the fields
+   * to fill it in with is output under the duplicate's key.  The
+   * fields are taken from the other, non-duplicate, Documents with
+   * the same digest.  If there are none, nothing is output, and the
+   * duplicates are left as they are.
+   */
+  public static class DedupReduce extends MapReduceBase implements Reducer<Text, KeyedValue, Text, Writable>
+  {
+    private boolean  binary;
+    private String[] dedupFields;
+
+    private Document   fields      = new Document();
+    private List<Text> duplicates  = new ArrayList<Text>();
+    private Text       outputValue = new Text();
+
+    public void configure( JobConf conf )
+    {
+      this.binary      = conf.getBoolean( "jbs.document.binary", false );
+      this.dedupFields = getDedupFields( conf );
     }
+
+    public void reduce( Text digest, Iterator<KeyedValue> values, OutputCollector<Text, Writable> output, Reporter reporter )
+      throws IOException
+    {
+      this.fields.clear( );
+      this.duplicates.clear( );
+
+      while ( values.hasNext( ) )
+        {
+          KeyedValue value = values.next( );
+          Document   doc   = fromWritable( value.getValue( ) );
+
+          if ( doc.get( "dedupOf" ).length( ) > 0 )
+            {
+              this.duplicates.add( new Text( value.getKey( ) ) );
+              continue ;
+            }
+
+          // Hadoop re-uses the value, so copy the fields as we go.
+          for ( String field : this.dedupFields )
+            {
+              if ( this.fields.get( field ).length( ) == 0 )
+                {
+                  this.fields.set( field, doc.getAll( field ) );
+                }
+            }
+        }
+
+      if ( this.duplicates.isEmpty( ) ) return ;
+
+      if ( ! hasAny( this.fields, this.dedupFields ) )
+        {
+          reporter.incrCounter( "jbs.merge", "dedupUnresolved", this.duplicates.size( ) );
+          return ;
+        }
+
+      Writable fieldsValue = toWritable( this.fields, this.binary, this.outputValue );
+      for ( Text key : this.duplicates )
+        {
+          output.collect( key, fieldsValue );
+        }
+      reporter.incrCounter( "jbs.merge", "dedupResolved", this.duplicates.size( ) );
+
+      this.outputValue.clear( );
+      this.fields.clear( );
+      this.duplicates.clear( );
+    }
+  }
+
+  /**
+   * Returns the fields copied to duplicates from the Document they
+   * duplicate.
+   */
+  public static String[] getDedupFields( JobConf conf )
+  {
+    return conf.getStrings( "jbs.merge.dedup.fields", DEFAULT_DEDUP_FIELDS );
+  }
+
+  /**
+   * Returns <code>true</code> if the Document has a value for any of
+   * the fields.
+   */
+  private static boolean hasAny( Document doc, String[] fields )
+  {
+    for ( String field : fields )
+      {
+        if ( doc.get( field ).length( ) > 0 ) return true;
+      }
+    return false;
+  }
+
+  /**
+   * Merge the value into the Document.  If <code>streaming</code>, a
+   * JSON-encoded value is scanned and merged directly from its UTF-8
+   * bytes, rather than decoding it into a String and constructing a
+   * Document for it.
+   */
+  public static void mergeValue( Document doc, Writable value, boolean streaming )
+    throws IOException
+  {
+    if ( streaming && value instanceof Text )
+      {
+        Text text = (Text) value;
+
+        doc.mergeJSON( new InputStreamReader( new ByteArrayInputStream( text.getBytes( ), 0, text.getLength( ) ), "UTF-8" ) );
+      }
+    else
+      {
+        doc.merge( fromWritable( value ) );
+      }
   }
   
   public static void main(String[] args) throws Exception
@@ -289,10 +740,21 @@ public class Merge extends Configured implements Tool
     JobConf conf = new JobConf( getConf(), Merge.class);
     
     conf.setOutputKeyClass(Text.class);
-    conf.setOutputValueClass(Text.class);
+    conf.setOutputValueClass( conf.getBoolean( "jbs.document.binary", false ) ? Document.class : Text.class );
     
-    conf.setCombinerClass(Reduce.class);
-    conf.setReducerClass(Reduce.class);
+    boolean fpKeys = conf.getBoolean( "jbs.merge.fpKeys", false );
+    if ( fpKeys )
+      {
+        conf.setMapOutputKeyClass( LongWritable.class );
+        conf.setMapOutputValueClass( KeyedValue.class );
+        conf.setCombinerClass(FPCombine.class);
+        conf.setReducerClass(FPReduce.class);
+      }
+    else
+      {
+        conf.setCombinerClass(Reduce.class);
+        conf.setReducerClass(Reduce.class);
+      }
     
     // Choose the outputformat to either merge or index the records
     //
@@ -306,12 +768,96 @@ public class Merge extends Configured implements Tool
     //    - writes merged documents to Hadoop MapFile
     conf.setOutputFormat( (Class) Class.forName( conf.get( "jbs.outputformat.class", "org.apache.hadoop.mapred.MapFileOutputFormat" ) ) );
     
+    // The reducer restores the keys, but not in sorted order.
+    if ( fpKeys && conf.getOutputFormat( ) instanceof MapFileOutputFormat )
+      {
+        throw new IllegalArgumentException( "jbs.merge.fpKeys cannot be used with MapFileOutputFormat, which requires sorted keys" );
+      }
+
+    // Partition the keys by their 64-bit fingerprint, rather than by
+    // Text.hashCode().  Not needed if the keys are fingerprints
+    // already.  For a sort on the fingerprints, use jbs.merge.fpKeys.
+    if ( ! fpKeys && conf.getBoolean( "jbs.merge.fpPartitioner", false ) )
+      {
+        conf.setPartitionerClass( FPPartitioner.class );
+      }
+
     // Set the Hadoop job name to incorporate the output format name.
     String formatName = conf.getOutputFormat().getClass().getName();
     conf.setJobName( "jbs.Merge " + formatName.substring( formatName.lastIndexOf('.') != -1 ? (formatName.lastIndexOf('.') + 1) : 0 ) );
 
+    String inputs = addInputs( conf, args );
+
+    // Keep the list of inputs, for output formats which record it.
+    conf.set( "jbs.merge.inputs", inputs );
+
+    Path output = new Path( args[0] );
+    FileOutputFormat.setOutputPath( conf, output );
+
+    // Fill in the duplicates from the output of the dedup job, which
+    // is just another input of Documents.
+    Path dedup = null;
+    if ( conf.getBoolean( "jbs.merge.dedup", false ) )
+      {
+        dedup = new Path( conf.get( "hadoop.tmp.dir", "/tmp" ), "jbs-merge-dedup/" + (new Random().nextInt() & Integer.MAX_VALUE) );
+
+        if ( ! runDedup( args, dedup ) ) return 1;
+
+        MultipleInputs.addInputPath( conf, dedup, SequenceFileInputFormat.class, DocumentMapper.class );
+      }
+
+    try
+      {
+        RunningJob rj = JobClient.runJob( conf );
+    
+        return rj.isSuccessful( ) ? 0 : 1;
+      }
+    finally
+      {
+        if ( dedup != null ) dedup.getFileSystem( conf ).delete( dedup, true );
+      }
+  }
+
+  /**
+   * Run the dedup job over the inputs, writing the fields to fill in
+   * the duplicates with to the given output.
+   */
+  public boolean runDedup( String[] args, Path output )
+    throws IOException
+  {
+    JobConf conf = new JobConf( getConf(), Merge.class );
+    conf.setJobName( "jbs.Merge dedup" );
+
+    conf.setBoolean( DEDUP_BY_DIGEST, true );
+
+    conf.setMapOutputKeyClass( Text.class );
+    conf.setMapOutputValueClass( KeyedValue.class );
+    conf.setReducerClass( DedupReduce.class );
+
+    conf.setOutputKeyClass( Text.class );
+    conf.setOutputValueClass( conf.getBoolean( "jbs.document.binary", false ) ? Document.class : Text.class );
+    conf.setOutputFormat( SequenceFileOutputFormat.class );
+
+    addInputs( conf, args );
+
+    FileOutputFormat.setOutputPath( conf, output );
+
+    RunningJob rj = JobClient.runJob( conf );
+
+    return rj.isSuccessful( );
+  }
+
+  /**
+   * Add the inputs, <code>args[1]</code> onward, to the job, with
+   * the mapper for each kind of input.  Returns the list of inputs,
+   * separated by commas.
+   */
+  private String addInputs( JobConf conf, String[] args )
+    throws IOException
+  {
     // Add the input paths as either NutchWAX segment directories or
     // text .dup files.
+    StringBuilder inputs = new StringBuilder( );
     for ( int i = 1; i < args.length ; i++ )
       {
         Path p = new Path( args[i] );
@@ -321,6 +867,9 @@ public class Merge extends Configured implements Tool
 
         for ( FileStatus file : files )
           {
+            if ( inputs.length( ) > 0 ) inputs.append( ',' );
+            inputs.append( file.getPath( ) );
+
             if ( file.isDir( ) )
               {
                 // If it's a directory, then check if it is a Nutch segment, otherwise treat as a SequenceFile.
@@ -332,7 +881,7 @@ public class Merge extends Configured implements Tool
                   }
                 else
                   {
-                    // Assume it's a SequenceFile of JSON-encoded Documents.
+                    // Assume it's a SequenceFile of Documents, either JSON-encoded or binary.
                     LOG.info( "Input Document: " + file.getPath() );
                     MultipleInputs.addInputPath( conf, file.getPath(), SequenceFileInputFormat.class, DocumentMapper.class );
                   }
@@ -346,11 +895,7 @@ public class Merge extends Configured implements Tool
           }
       }
 
-    FileOutputFormat.setOutputPath(conf, new Path(args[0]));
-    
-    RunningJob rj = JobClient.runJob( conf );
-    
-    return rj.isSuccessful( ) ? 0 : 1;
+    return inputs.toString( );
   }
 
   /**
@@ -359,7 +904,42 @@ public class Merge extends Configured implements Tool
   public static Document fromText( Text text )
     throws IOException
   {
-    return new Document( new InputStreamReader( new ByteArrayInputStream( text.getBytes() ), "utf-8" ) );
+    return new Document( new InputStreamReader( new ByteArrayInputStream( text.getBytes(), 0, text.getLength() ), "utf-8" ) );
+  }
+
+  /**
+   * Utility method to get a Document from a Writable, which is
+   * either a JSON-encoded Text or a binary Document.
+   *
+   * NOTE: If the value is a Document, it is returned as-is, not
+   * copied.
+   */
+  public static Document fromWritable( Writable value )
+    throws IOException
+  {
+    if ( value instanceof Document )
+      {
+        return (Document) value;
+      }
+    if ( value instanceof Text )
+      {
+        return fromText( (Text) value );
+      }
+
+    throw new IOException( "Unknown Document value type: " + value.getClass( ) );
+  }
+
+  /**
+   * Utility method to get the Writable form of a Document, either the
+   * Document itself if binary, or JSON-encoded into the given Text.
+   */
+  public static Writable toWritable( Document doc, boolean binary, Text text )
+  {
+    if ( binary ) return doc;
+
+    text.set( doc.toString() );
+
+    return text;
   }
 
 }
@@ -19,6 +19,8 @@ package org.archive.jbs;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,6 +31,7 @@ import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.FileInputFormat;
 import org.apache.hadoop.mapred.FileOutputFormat;
 import org.apache.hadoop.mapred.JobClient;
@@ -40,6 +43,11 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
+
+import com.google.common.io.LimitInputStream;
 
 import org.apache.nutch.metadata.Metadata;
 import org.apache.nutch.parse.Outlink;
@@ -50,28 +58,90 @@ import org.apache.nutch.parse.ParseStatus;
 import org.apache.nutch.parse.ParseText;
 import org.apache.nutch.parse.ParseUtil;
 import org.apache.nutch.protocol.Content;
+import org.apache.nutch.util.MimeUtil;
 
 import org.archive.io.warc.WARCConstants;
 
 import org.archive.jbs.arc.ArcReader;
 import org.archive.jbs.arc.ArchiveRecordProxy;
+import org.archive.jbs.arc.RecordBodyFilter;
+import org.archive.jbs.filter.TypeFilter;
+import org.archive.jbs.filter.TypeNormalizer;
 
-import org.archive.jbs.util.FilenameInputFormat;
+import org.archive.jbs.util.ArchiveSplitInputFormat;
 import org.archive.jbs.util.PerMapOutputFormat;
 
 /**
  * Parse the contents of a (W)ARC file, output
- * in a JSON Document.
+ * in a JSON Document.  If <code>jbs.document.binary</code> is
+ * <code>true</code>, the Documents are output in their binary
+ * Writable form instead.
  */
 public class Parse extends Configured implements Tool
 {
 
   public static final Log LOG = LogFactory.getLog( Parse.class );
 
-  public static class ParseMapper extends MapReduceBase implements Mapper<Text, Text, Text, Text> 
+  /**
+   * Reads the records from a (w)arc file and parses them.
+   *
+   * If <code>jbs.parse.threads</code> is greater than 1, the records
+   * are parsed by a pool of that many threads, while the map thread
+   * continues to read records from the (w)arc file.  At most
+   * <code>jbs.parse.queueDepth</code> records are handed to the
+   * parser threads at any time, which bounds the memory used by the
+   * record bodies.  The output for each record is emitted in the same
+   * order as the records appear in the (w)arc file.
+   *
+   * If <code>jbs.parse.timeout</code> is given (in milliseconds), the
+   * Nutch parse and BoilerPipe extraction of each record is limited to
+   * that amount of time.  If the parse times out, the same error
+   * Document is emitted as for any other parse failure.  If
+   * BoilerPipe times out, the record is parsed without the "boiled"
+   * text.  Once <code>jbs.parse.timeout.maxPerType</code> timeouts
+   * have occurred for a MIME type, the parsing of records of that type
+   * is skipped for the rest of the (w)arc file.
+   *
+   * NOTE: A Java thread cannot be forcibly stopped, so a parser that
+   * has timed out is interrupted and abandoned; it may continue to use
+   * CPU in the background until it finishes.
+   *
+   * If <code>jbs.parse.typeFilter</code> is <code>true</code>, records
+   * whose type would be rejected by the TypeFilter at indexing time
+   * are not parsed.  The same <code>jbs.typeFilter.*</code> and
+   * <code>jbs.typeNormalizer.*</code> properties are used as for
+   * indexing.  Both the type in the HTTP Content-Type header and the
+   * type detected from the first bytes of the body must be rejected
+   * for the record to be skipped.  For skipped records, only a
+   * Document with the url, digest, date, type and length is emitted,
+   * so there is no text and there are no outlinks for them.
+   *
+   * If <code>jbs.parse.dedup</code> is <code>true</code>, records with
+   * the same payload digest as a record already parsed are not parsed
+   * again.  The digests of the last
+   * <code>jbs.parse.dedup.cacheSize</code> parsed records are kept,
+   * and the digests in the file(s) given by
+   * <code>jbs.parse.dedup.digests</code> are loaded into a Bloom
+   * filter.  For a duplicate, a Document with the url, digest, date,
+   * length and code is emitted, with a "dedupOf" property holding the
+   * key of the record that was parsed ("url digest") or, for digests
+   * from the side file, just the digest.
+   */
+  public static class ParseMapper extends MapReduceBase implements Mapper<Text, Text, Text, Writable> 
   {
-    private JobConf        jobConf;
-    private ParseUtil      parseUtil;
+    private JobConf                 jobConf;
+    private ThreadLocal<ParseUtil>  parseUtils;
+    private boolean                 binary;
+    private ExecutorService         executor;
+    private int                     queueDepth;
+    private LinkedList<Future<BufferedCollector>> pending = new LinkedList<Future<BufferedCollector>>( );
+    private ExecutorService         timeoutExecutor;
+    private long                    timeout;
+    private int                     maxTimeoutsPerType;
+    private ConcurrentMap<String,AtomicInteger> timeoutsPerType = new ConcurrentHashMap<String,AtomicInteger>( );
+    private TypeBodyFilter          typeFilter;
+    private Map<String,String>      dedupCache;
+    private BloomFilter             dedupDigests;
       
     /**
      * <p>Configures the job.  Sets the url filters, scoring filters, url normalizers
@@ -79,10 +149,111 @@ public class Parse extends Configured implements Tool
      * 
      * @param job The job configuration.
      */
-    public void configure( JobConf job )
+    public void configure( final JobConf job )
     {
       this.jobConf = job;
-      this.parseUtil = new ParseUtil( jobConf );
+      this.binary  = jobConf.getBoolean( "jbs.document.binary", false );
+
+      // Each parser thread gets its own ParseUtil, rather than
+      // sharing one among them.  With a timeout, the ParseUtil is
+      // handed from the parser thread to the timed thread, so it
+      // lives as long as the parser thread does.
+      this.parseUtils = new ThreadLocal<ParseUtil>( )
+        {
+          protected ParseUtil initialValue( )
+          {
+            return new ParseUtil( job );
+          }
+        };
+
+      int threads = jobConf.getInt( "jbs.parse.threads", 1 );
+      if ( threads > 1 )
+        {
+          this.queueDepth = Math.max( 1, jobConf.getInt( "jbs.parse.queueDepth", 2 * threads ) );
+          this.executor   = Executors.newFixedThreadPool( threads, new ThreadFactory( )
+            {
+              private int count = 0;
+
+              public synchronized Thread newThread( Runnable r )
+              {
+                Thread t = new Thread( r, "jbs-parse-" + (count++) );
+                t.setDaemon( true );
+                return t;
+              }
+            } );
+
+          LOG.info( "Parsing with " + threads + " threads, queue depth: " + this.queueDepth );
+        }
+
+      if ( jobConf.getBoolean( "jbs.parse.typeFilter", false ) )
+        {
+          this.typeFilter = new TypeBodyFilter( TypeFilter.build( jobConf, TypeNormalizer.build( jobConf ) ), new MimeUtil( jobConf ) );
+        }
+
+      if ( jobConf.getBoolean( "jbs.parse.dedup", false ) )
+        {
+          final int cacheSize = jobConf.getInt( "jbs.parse.dedup.cacheSize", 10000 );
+
+          // LRU cache of digest -> key of the parsed record.  It is
+          // updated by the parser threads as records are parsed.
+          this.dedupCache = Collections.synchronizedMap( new LinkedHashMap<String,String>( 16, 0.75f, true )
+            {
+              protected boolean removeEldestEntry( Map.Entry<String,String> eldest )
+              {
+                return size( ) > cacheSize;
+              }
+            } );
+
+          String digests = jobConf.get( "jbs.parse.dedup.digests" );
+          if ( digests != null )
+            {
+              try
+                {
+                  this.dedupDigests = loadDigests( new Path( digests ), jobConf, jobConf.getFloat( "jbs.parse.dedup.falsePositiveRate", 0.001f ) );
+                }
+              catch ( IOException ioe )
+                {
+                  throw new RuntimeException( ioe );
+                }
+            }
+        }
+
+      this.timeout            = jobConf.getLong( "jbs.parse.timeout", -1 );
+      this.maxTimeoutsPerType = jobConf.getInt ( "jbs.parse.timeout.maxPerType", 3 );
+      if ( this.timeout > 0 )
+        {
+          // Use a cached pool, so if a timed thread is abandoned
+          // after a timeout, a new thread is created to replace it.
+          // The timed threads hold no parser state of their own, so
+          // replacing one is cheap.
+          this.timeoutExecutor = Executors.newCachedThreadPool( new ThreadFactory( )
+            {
+              private int count = 0;
+
+              public synchronized Thread newThread( Runnable r )
+              {
+                Thread t = new Thread( r, "jbs-parse-timed-" + (count++) );
+                t.setDaemon( true );
+                return t;
+              }
+            } );
+        }
+    }
+
+    /**
+     * Shutdown the parser threads, if any.
+     */
+    public void close( )
+      throws IOException
+    {
+      if ( this.executor != null )
+        {
+          this.executor.shutdownNow( );
+        }
+      if ( this.timeoutExecutor != null )
+        {
+          this.timeoutExecutor.shutdownNow( );
+        }
     }
     
     /**
@@ -90,21 +261,42 @@ public class Parse extends Configured implements Tool
      * <code>key</code>, parse each record (if possible) and emit a
      * JSON Document for the parsed record body.
      */
-    public void map( Text key, Text value, OutputCollector output, Reporter reporter )
+    public void map( Text key, Text value, OutputCollector<Text,Writable> output, Reporter reporter )
       throws IOException
     {
       String path = key.toString();
 
       LOG.info( "Start: "  + path );
+
+      // The timeout counts are per (w)arc file.
+      this.timeoutsPerType.clear( );
       
       FSDataInputStream fis = null;
       try
         {
           fis = FileSystem.get( new java.net.URI( path ), this.jobConf ).open( new Path( path ) );
 
-          ArcReader reader = new ArcReader( path, fis );
+          // If we are only reading a split of the (w)arc file, seek to
+          // the first record in it and stop at the end of the split.
+          long start  = jobConf.getLong( "map.input.start" ,  0 );
+          long length = jobConf.getLong( "map.input.length", -1 );
+
+          InputStream is = fis;
+          if ( start > 0 )
+            {
+              fis.seek( start );
+            }
+          if ( length >= 0 )
+            {
+              is = new LimitInputStream( fis, length );
+            }
+
+          LOG.info( "Split: " + path + " start: " + start + " length: " + length );
+
+          ArcReader reader = new ArcReader( path, is, start == 0 );
 
           reader.setSizeLimit( jobConf.getInt( "jbs.parse.content.limit", -1 ) );
+          reader.setBodyFilter( this.typeFilter );
           
           for ( ArchiveRecordProxy record : reader )
             {
@@ -113,9 +305,24 @@ public class Parse extends Configured implements Tool
                 {
                   if ( WARCConstants.HTTP_RESPONSE_MIMETYPE.equals( record.getWARCContentType() ) )
                     {
-                      LOG.info( "Process response: " + record.getUrl() + " digest:" + record.getDigest() + " date: " + record.getDate() );
+                      if ( record.isBodySkipped( ) )
+                        {
+                          LOG.info( "Skip parse: " + record.getUrl() + " digest:" + record.getDigest() + " date: " + record.getDate() + " type: " + record.getHttpContentType() );
+
+                          submit( metadataTask( record ), output, reporter );
+                        }
+                      else if ( isDuplicate( record ) )
+                        {
+                          LOG.info( "Skip duplicate: " + record.getUrl() + " digest:" + record.getDigest() + " date: " + record.getDate() );
+
+                          submit( duplicateTask( record ), output, reporter );
+                        }
+                      else
+                        {
+                          LOG.info( "Process response: " + record.getUrl() + " digest:" + record.getDigest() + " date: " + record.getDate() );
                       
-                      parseRecord( record, output );
+                          submit( parseTask( record ), output, reporter );
+                        }
                     }
                   else
                     {
@@ -134,9 +341,24 @@ public class Parse extends Configured implements Tool
                        "application/octet-stream".equals( record.getWARCContentType() )
                      )
                     {
-                      LOG.info( "Process resource: " + record.getUrl() + " digest:" + record.getDigest() + " date: " + record.getDate() );
+                      if ( record.isBodySkipped( ) )
+                        {
+                          LOG.info( "Skip parse: " + record.getUrl() + " digest:" + record.getDigest() + " date: " + record.getDate() );
+
+                          submit( metadataTask( record ), output, reporter );
+                        }
+                      else if ( isDuplicate( record ) )
+                        {
+                          LOG.info( "Skip duplicate: " + record.getUrl() + " digest:" + record.getDigest() + " date: " + record.getDate() );
+
+                          submit( duplicateTask( record ), output, reporter );
+                        }
+                      else
+                        {
+                          LOG.info( "Process resource: " + record.getUrl() + " digest:" + record.getDigest() + " date: " + record.getDate() );
 
-                      parseRecord( record, output );
+                          submit( parseTask( record ), output, reporter );
+                        }
                     }
                   else
                     {
@@ -150,14 +372,22 @@ public class Parse extends Configured implements Tool
                   // anything needed.
                   LOG.info( "Process revisit: " + record.getUrl() + " digest:" + record.getDigest() + " date: " + record.getDate() );
 
-                  Text docKey = new Text( record.getUrl() + " " + record.getDigest( ) );
+                  final Text docKey = new Text( record.getUrl() + " " + record.getDigest( ) );
 
-                  Document doc = new Document();
+                  final Document doc = new Document();
                   doc.set( "url",    record.getUrl() );
                   doc.set( "digest", record.getDigest() );
                   doc.set( "date",   record.getDate() );
                   
-                  output.collect( docKey, new Text( doc.toString() ) );
+                  // Even though there's nothing to parse, it still has
+                  // to be emitted in order with the parsed records.
+                  submit( new RecordTask( )
+                    {
+                      void run( OutputCollector<Text,Writable> output ) throws IOException
+                      {
+                        collect( output, docKey, doc );
+                      }
+                    }, output, reporter );
                  }
               else 
                 {
@@ -166,10 +396,17 @@ public class Parse extends Configured implements Tool
               
               reporter.progress();
             }
+
+          // Emit the output for any records still being parsed.
+          drain( output, reporter );
         }
       catch ( Exception e )
         {
           LOG.error( "Error processing archive file: " + path, e );
+
+          // Emit the output for any records already handed off to
+          // the parser threads, as they were read without error.
+          drainQuietly( output, reporter );
           
           if ( jobConf.getBoolean( "jbs.parse.abortOnArchiveReadError", true ) )
             {
@@ -182,16 +419,238 @@ public class Parse extends Configured implements Tool
         }
     }
     
+    /**
+     * Hand the task off to the parser threads, or if there are none,
+     * just run it.  Then emit the output of any tasks that have
+     * completed, in order.  If the number of outstanding tasks
+     * exceeds the queue depth, wait for the oldest one to complete.
+     */
+    private void submit( final RecordTask task, OutputCollector<Text,Writable> output, Reporter reporter )
+      throws IOException
+    {
+      if ( this.executor == null )
+        {
+          task.run( output );
+          
+          return ;
+        }
+
+      this.pending.add( this.executor.submit( new Callable<BufferedCollector>( )
+        {
+          public BufferedCollector call( ) throws IOException
+          {
+            BufferedCollector buffer = new BufferedCollector( );
+
+            task.run( buffer );
+
+            return buffer;
+          }
+        } ) );
+
+      while ( ! this.pending.isEmpty( ) && ( this.pending.getFirst( ).isDone( ) || this.pending.size( ) > this.queueDepth ) )
+        {
+          emitNext( output, reporter );
+        }
+    }
+
+    /**
+     * Wait for the oldest outstanding task to complete and emit its
+     * output.
+     */
+    private void emitNext( OutputCollector<Text,Writable> output, Reporter reporter )
+      throws IOException
+    {
+      Future<BufferedCollector> future = this.pending.removeFirst( );
+
+      try
+        {
+          while ( true )
+            {
+              try
+                {
+                  future.get( 10, TimeUnit.SECONDS ).replay( output );
+
+                  return ;
+                }
+              catch ( TimeoutException te )
+                {
+                  // Keep Hadoop from thinking we're hung while a
+                  // large record is parsed.
+                  reporter.progress( );
+                }
+            }
+        }
+      catch ( InterruptedException ie )
+        {
+          throw new IOException( ie );
+        }
+      catch ( ExecutionException ee )
+        {
+          throw new IOException( ee.getCause( ) );
+        }
+    }
+
+    /**
+     * Emit the output of all the outstanding tasks.
+     */
+    private void drain( OutputCollector<Text,Writable> output, Reporter reporter )
+      throws IOException
+    {
+      while ( ! this.pending.isEmpty( ) )
+        {
+          emitNext( output, reporter );
+        }
+    }
+
+    /**
+     * Same as drain(), but if there is an error, log it and discard
+     * the remaining tasks.
+     */
+    private void drainQuietly( OutputCollector<Text,Writable> output, Reporter reporter )
+    {
+      try
+        {
+          drain( output, reporter );
+        }
+      catch ( Exception e )
+        {
+          LOG.error( "Error emitting parsed records", e );
+
+          for ( Future<BufferedCollector> future : this.pending )
+            {
+              future.cancel( true );
+            }
+          this.pending.clear( );
+        }
+    }
+
+    /**
+     * Create a task to parse the record.
+     */
+    private RecordTask parseTask( final ArchiveRecordProxy record )
+    {
+      return new RecordTask( )
+        {
+          void run( OutputCollector<Text,Writable> output ) throws IOException
+          {
+            parseRecord( record, output );
+          }
+        };
+    }
+
+    /**
+     * Create a task to emit a Document with just the metadata of a
+     * record whose body was skipped by the type filter.
+     */
+    private RecordTask metadataTask( ArchiveRecordProxy record )
+    {
+      final Text docKey = new Text( record.getUrl() + " " + record.getDigest( ) );
+
+      final Document doc = new Document();
+      doc.set( "url",    record.getUrl() );
+      doc.set( "digest", record.getDigest() );
+      doc.set( "date",   record.getDate() );
+      doc.set( "type",   this.typeFilter.getType( record.getUrl(), record.getHttpContentType(), record.getHttpResponseBody() ) );
+      doc.set( "length", String.valueOf( record.getLength() ) );
+
+      return new RecordTask( )
+        {
+          void run( OutputCollector<Text,Writable> output ) throws IOException
+          {
+            collect( output, docKey, doc );
+          }
+        };
+    }
+
+    /**
+     * Returns <code>true</code> if a record with the same digest has
+     * already been parsed.  A record is only remembered once it has
+     * been parsed successfully, so a record with the same digest as
+     * one which is still being parsed is parsed as well.
+     */
+    private boolean isDuplicate( ArchiveRecordProxy record )
+    {
+      String digest = record.getDigest( );
+
+      if ( this.dedupCache == null || digest == null || digest.length( ) == 0 )
+        {
+          return false;
+        }
+
+      if ( this.dedupCache.containsKey( digest ) )
+        {
+          return true;
+        }
+
+      if ( this.dedupDigests != null && this.dedupDigests.membershipTest( digestKey( digest ) ) )
+        {
+          return true;
+        }
+
+      return false;
+    }
+
+    /**
+     * Remember the record as the parsed one for its digest, so later
+     * records with the same digest are not parsed again.
+     */
+    private void rememberParsed( ArchiveRecordProxy record )
+    {
+      String digest = record.getDigest( );
+
+      if ( this.dedupCache == null || digest == null || digest.length( ) == 0 )
+        {
+          return ;
+        }
+
+      this.dedupCache.put( digest, record.getUrl() + " " + digest );
+    }
+
+    /**
+     * Create a task to emit a Document for a record whose payload
+     * has already been parsed, pointing to the parsed one.
+     */
+    private RecordTask duplicateTask( ArchiveRecordProxy record )
+    {
+      String original = this.dedupCache.get( record.getDigest( ) );
+
+      final Text docKey = new Text( record.getUrl() + " " + record.getDigest( ) );
+
+      final Document doc = new Document();
+      doc.set( "url",      record.getUrl() );
+      doc.set( "digest",   record.getDigest() );
+      doc.set( "date",     record.getDate() );
+      doc.set( "length",   String.valueOf( record.getLength() ) );
+      doc.set( "code",     record.getHttpStatusCode() );
+      doc.set( "dedupOf",  original != null ? original : record.getDigest( ) );
+
+      return new RecordTask( )
+        {
+          void run( OutputCollector<Text,Writable> output ) throws IOException
+          {
+            collect( output, docKey, doc );
+          }
+        };
+    }
+
     /**
      * 
      */
-    private void parseRecord( ArchiveRecordProxy record, OutputCollector output )
+    private void parseRecord( ArchiveRecordProxy record, OutputCollector<Text,Writable> output )
       throws IOException
     {
       String key = record.getUrl() + " " + record.getDigest( );
 
       try
         {
+          // Skip the parsing, and the type detection, if records of
+          // the declared type keep timing out.
+          String declaredType = record.getHttpContentType( ) != null ? MimeUtil.cleanMimeType( record.getHttpContentType( ) ) : null;
+          if ( declaredType != null && isTimeoutLimitReached( declaredType ) )
+            {
+              throw new IOException( "Skipped, too many parse timeouts for type: " + declaredType );
+            }
+
           Metadata contentMetadata = new Metadata();
           contentMetadata.set( "url",    record.getUrl()      );
           contentMetadata.set( "date",   record.getDate()     );
@@ -205,6 +664,13 @@ public class Parse extends Configured implements Tool
           // Retain the auto-detected Content-Type/MIME-Type.
           contentMetadata.set( "type",  content.getContentType( ) );
 
+          // Skip the parsing if records of the detected type keep
+          // timing out.
+          if ( isTimeoutLimitReached( content.getContentType( ) ) )
+            {
+              throw new IOException( "Skipped, too many parse timeouts for type: " + content.getContentType( ) );
+            }
+
           // Limit the size of either the HTML or text document to avoid blowing up the parsers.
           // Also boilerpipe the HTML.
           if ( "text/html"            .equals( content.getContentType( ) ) || 
@@ -223,8 +689,16 @@ public class Parse extends Configured implements Tool
                 {
                   if ( jobConf.getBoolean( "jbs.parse.boilerpipe", true ) )
                     {
+                      final byte[] body = record.getHttpResponseBody();
+
                       // BoilerPipe!
-                      contentMetadata.set( "boiled", de.l3s.boilerpipe.extractors.DefaultExtractor.INSTANCE.getText( new org.xml.sax.InputSource( new java.io.ByteArrayInputStream( record.getHttpResponseBody() ) ) ) );
+                      contentMetadata.set( "boiled", callWithTimeout( new Callable<String>( )
+                        {
+                          public String call( ) throws Exception
+                          {
+                            return de.l3s.boilerpipe.extractors.DefaultExtractor.INSTANCE.getText( new org.xml.sax.InputSource( new java.io.ByteArrayInputStream( body ) ) );
+                          }
+                        }, content.getContentType( ), declaredType ) );
                     }
                 }
               catch ( Exception e ) 
@@ -244,7 +718,10 @@ public class Parse extends Configured implements Tool
                 }
             }
           
-          write( output, new Text( key ), content );
+          if ( write( output, new Text( key ), content, declaredType ) )
+            {
+              rememberParsed( record );
+            }
         }
       catch ( Throwable t )
         {
@@ -254,33 +731,55 @@ public class Parse extends Configured implements Tool
               doc.set( "status", "error" );
               doc.set( "errorMessage", "Failed to parse record: " + t.getMessage() );
               
-              output.collect( new Text( key ), new Text( doc.toString() ) );
+              collect( output, new Text( key ), doc );
             }
         }
     }
         
     /**
      * Writes the key and related content to the output collector.
+     * A parse timeout is counted against both the detected and the
+     * declared type.  Returns <code>true</code> if the content was
+     * parsed successfully.
      */
-    private void write( OutputCollector output,
-                        Text            key,
-                        Content         content )
+    private boolean write( OutputCollector<Text,Writable> output,
+                           Text            key,
+                           final Content   content,
+                           String          declaredType )
       throws IOException
     {
+      // Get this thread's ParseUtil here, rather than in the timed
+      // thread, so it isn't lost when a timed thread is replaced.
+      final ParseUtil parseUtil = this.parseUtils.get( );
+
       ParseResult parseResult = null;
+      boolean     success     = false;
       try
         {
-          parseResult = this.parseUtil.parse( content );
+          parseResult = callWithTimeout( new Callable<ParseResult>( )
+            {
+              public ParseResult call( ) throws Exception
+              {
+                return parseUtil.parse( content );
+              }
+            }, content.getContentType( ), declaredType );
         }
       catch ( Throwable t )
         {
+          if ( t instanceof TimeoutException )
+            {
+              // The abandoned parse may still be using the ParseUtil,
+              // so this thread starts over with a new one.
+              this.parseUtils.remove( );
+            }
+
           if ( jobConf.getBoolean( "jbs.parse.emitParseErrorRecords", true ) )
             {
               Document doc = new Document();
               doc.set( "status", "error" );
               doc.set( "errorMessage", "Failed to parse record: " + t.getMessage() );
               
-              output.collect( key, new Text( doc.toString() ) );
+              collect( output, key, doc );
             }
         }
       
@@ -288,6 +787,7 @@ public class Parse extends Configured implements Tool
         {
           if ( parseResult != null )
             {
+              success = true;
               for ( Map.Entry<Text, org.apache.nutch.parse.Parse> entry : parseResult )
                 {
                   // Text url = entry.getKey();
@@ -297,6 +797,7 @@ public class Parse extends Configured implements Tool
                   if ( !parseStatus.isSuccess() )
                     {
                       LOG.warn( "Error parsing: " + key + ": " + parseStatus );
+                      success = false;
                       parse = parseStatus.getEmptyParse( this.jobConf );
                     }
                   
@@ -328,25 +829,266 @@ public class Parse extends Configured implements Tool
                   doc.set( "content", parsedText );
                   
                   // Emit JSON string
-                  output.collect( key, new Text( doc.toString() ) );
+                  collect( output, key, doc );
                 }
             }
         }
       catch ( Throwable t )
         {
+          success = false;
+
           if ( jobConf.getBoolean( "jbs.parse.emitParseErrorRecords", true ) )
             {
               Document doc = new Document();
               doc.set( "status", "error" );
               doc.set( "errorMessage", "Failed to parse record: " + t.getMessage() );
               
-              output.collect( key, new Text( doc.toString() ) );
+              collect( output, key, doc );
             }
         }
+
+      return success;
+    }
+
+    /**
+     * Call the callable, limiting it to the configured timeout, if
+     * any.  If it times out, count it against each of the given MIME
+     * types and throw a TimeoutException.
+     */
+    private <T> T callWithTimeout( Callable<T> callable, String... types )
+      throws Exception
+    {
+      if ( this.timeoutExecutor == null )
+        {
+          return callable.call( );
+        }
+
+      Future<T> future = this.timeoutExecutor.submit( callable );
+      try
+        {
+          return future.get( this.timeout, TimeUnit.MILLISECONDS );
+        }
+      catch ( TimeoutException te )
+        {
+          future.cancel( true );
+
+          Set<String> counted = new HashSet<String>( );
+          for ( String type : types )
+            {
+              if ( type == null || ! counted.add( type ) ) continue ;
+
+              AtomicInteger count = this.timeoutsPerType.get( type );
+              if ( count == null )
+                {
+                  AtomicInteger existing = this.timeoutsPerType.putIfAbsent( type, count = new AtomicInteger( ) );
+                  if ( existing != null ) count = existing;
+                }
+              count.incrementAndGet( );
+            }
+
+          throw new TimeoutException( "Timed out after " + this.timeout + "ms" );
+        }
+      catch ( ExecutionException ee )
+        {
+          Throwable cause = ee.getCause( );
+
+          if ( cause instanceof Exception ) throw (Exception) cause;
+          if ( cause instanceof Error     ) throw (Error)     cause;
+
+          throw ee;
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the maximum number of timeouts has
+     * been reached for the given MIME type.
+     */
+    private boolean isTimeoutLimitReached( String type )
+    {
+      if ( this.maxTimeoutsPerType <= 0 ) return false;
+
+      AtomicInteger count = this.timeoutsPerType.get( type );
+
+      return count != null && count.get( ) >= this.maxTimeoutsPerType;
+    }
+
+    /**
+     * Emit the Document to the output collector, either as a JSON
+     * string or in binary form.
+     */
+    private void collect( OutputCollector<Text,Writable> output, Text key, Document doc )
+      throws IOException
+    {
+      if ( this.binary )
+        {
+          output.collect( key, doc );
+        }
+      else
+        {
+          output.collect( key, new Text( doc.toString() ) );
+        }
     }
 
   }
 
+  /**
+   * Load the digests from the given file(s) into a Bloom filter
+   * sized for the given false positive rate.  The digest is the last
+   * token on each line, so either a plain list of digests or a list
+   * of "url digest" keys can be used.
+   */
+  private static BloomFilter loadDigests( Path path, Configuration conf, float falsePositiveRate )
+    throws IOException
+  {
+    FileSystem fs = path.getFileSystem( conf );
+
+    FileStatus[] files = fs.globStatus( path );
+    if ( files == null || files.length == 0 )
+      {
+        throw new FileNotFoundException( "No digests file: " + path );
+      }
+
+    // First pass, just count them so we can size the filter.
+    long count = 0;
+    for ( FileStatus file : files )
+      {
+        BufferedReader reader = new BufferedReader( new InputStreamReader( fs.open( file.getPath() ), "utf-8" ) );
+        try
+          {
+            while ( reader.readLine( ) != null ) count++;
+          }
+        finally
+          {
+            reader.close( );
+          }
+      }
+
+    // The optimal number of bits and hash functions for the given
+    // number of keys and false positive rate.
+    int vectorSize = (int) Math.min( Integer.MAX_VALUE - 64, Math.ceil( -Math.max( count, 1 ) * Math.log( falsePositiveRate ) / (Math.log( 2 ) * Math.log( 2 )) ) );
+    int nbHash     = Math.max( 1, (int) Math.round( Math.log( 2 ) * vectorSize / Math.max( count, 1 ) ) );
+
+    BloomFilter filter = new BloomFilter( vectorSize, nbHash, Hash.MURMUR_HASH );
+
+    for ( FileStatus file : files )
+      {
+        BufferedReader reader = new BufferedReader( new InputStreamReader( fs.open( file.getPath() ), "utf-8" ) );
+        try
+          {
+            String line;
+            while ( (line = reader.readLine( )) != null )
+              {
+                String[] tokens = line.trim( ).split( "\\s+" );
+                if ( tokens[tokens.length - 1].length( ) == 0 ) continue ;
+
+                filter.add( digestKey( tokens[tokens.length - 1] ) );
+              }
+          }
+        finally
+          {
+            reader.close( );
+          }
+      }
+
+    LOG.info( "Loaded " + count + " digests from: " + path );
+
+    return filter;
+  }
+
+  private static Key digestKey( String digest )
+  {
+    try
+      {
+        return new Key( digest.getBytes( "utf-8" ) );
+      }
+    catch ( UnsupportedEncodingException uee )
+      {
+        // Cannot happen, utf-8 is always supported.
+        throw new RuntimeException( uee );
+      }
+  }
+
+  /**
+   * RecordBodyFilter which only accepts record bodies whose type
+   * is allowed by the TypeFilter.  The type is checked both from the
+   * HTTP Content-Type header and by the same URL and magic-byte
+   * detection as the Nutch Content object does, but only over the
+   * first bytes of the body.  The body is accepted if either type is
+   * allowed.
+   */
+  private static class TypeBodyFilter implements RecordBodyFilter
+  {
+    private TypeFilter filter;
+    private MimeUtil   mimeUtil;
+
+    TypeBodyFilter( TypeFilter filter, MimeUtil mimeUtil )
+    {
+      this.filter   = filter;
+      this.mimeUtil = mimeUtil;
+    }
+
+    public boolean accept( String url, String contentType, byte[] prefix, int prefixLength, long length )
+    {
+      if ( contentType != null && this.filter.isAllowed( contentType ) )
+        {
+          return true;
+        }
+
+      String type = this.mimeUtil.autoResolveContentType( null, url, prefixLength == prefix.length ? prefix : Arrays.copyOf( prefix, prefixLength ) );
+
+      return type == null || this.filter.isAllowed( type );
+    }
+
+    /**
+     * Returns the type of the record, as detected from its URL and
+     * the first bytes of the body, falling back to the Content-Type
+     * header.
+     */
+    String getType( String url, String contentType, byte[] prefix )
+    {
+      String type = this.mimeUtil.autoResolveContentType( null, url, prefix );
+
+      if ( type == null && contentType != null ) type = MimeUtil.cleanMimeType( contentType );
+
+      return type;
+    }
+  }
+
+  /**
+   * The work to be done for a single (w)arc record, emitting its
+   * output to the given collector.
+   */
+  private static abstract class RecordTask
+  {
+    abstract void run( OutputCollector<Text,Writable> output ) throws IOException;
+  }
+
+  /**
+   * OutputCollector which holds onto the output pairs so they can be
+   * replayed, in order, to the real OutputCollector in the map
+   * thread.
+   */
+  private static class BufferedCollector implements OutputCollector<Text,Writable>
+  {
+    private List<Text>     keys   = new ArrayList<Text>( 2 );
+    private List<Writable> values = new ArrayList<Writable>( 2 );
+
+    public void collect( Text key, Writable value )
+    {
+      this.keys.add( key );
+      this.values.add( value );
+    }
+
+    public void replay( OutputCollector<Text,Writable> output )
+      throws IOException
+    {
+      for ( int i = 0 ; i < this.keys.size( ) ; i++ )
+        {
+          output.collect( this.keys.get( i ), this.values.get( i ) );
+        }
+    }
+  }
+
   /**
    * Run the job.
    */
@@ -367,8 +1109,9 @@ public class Parse extends Configured implements Tool
     job.setJobName( "jbs.Parse " + args[0] );
     
     // The inputs are a list of filenames, use the
-    // FilenameInputFormat to pass them to the mappers.
-    job.setInputFormat( FilenameInputFormat.class );
+    // ArchiveSplitInputFormat to pass them to the mappers, split
+    // into record-aligned byte ranges if they have an offset index.
+    job.setInputFormat( ArchiveSplitInputFormat.class );
     
     // This is a map-only job, no reducers.
     job.setNumReduceTasks(0);
@@ -376,11 +1119,11 @@ public class Parse extends Configured implements Tool
     // Use the Parse-specific output format.
     job.setOutputFormat( PerMapOutputFormat.class );
     
-    // Use our ParseMapper, with output keys and values of type
-    // Text.
+    // Use our ParseMapper, with output keys of type Text and values
+    // of type Text or Document.
     job.setMapperClass( ParseMapper.class );
     job.setOutputKeyClass  ( Text.class );
-    job.setOutputValueClass( Text.class );
+    job.setOutputValueClass( job.getBoolean( "jbs.document.binary", false ) ? Document.class : Text.class );
     
     // Configure the input and output paths, from the command-line.
     Path outputDir = new Path( args[0] );
@@ -395,7 +1138,11 @@ public class Parse extends Configured implements Tool
           {
             Path inputPath  = status.getPath();
             Path outputPath = new Path( outputDir, inputPath.getName() );
-            if ( fs.exists( outputPath ) )
+            if ( ArchiveSplitInputFormat.isIndexFile( inputPath ) )
+              {
+                LOG.debug( "Skipping index file: " + inputPath );
+              }
+            else if ( fs.exists( outputPath ) )
               {
                 LOG.debug( "Output path already exists: " + outputPath );
               }
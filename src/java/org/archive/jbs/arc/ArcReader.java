@@ -53,6 +53,12 @@ public class ArcReader implements Iterable<ArchiveRecordProxy>
   // NOTE: See the setSizeLimit() method for details.
   private int sizeLimit = Integer.MAX_VALUE - 1024;
 
+  private RecordBodyFilter bodyFilter;
+
+  // Shared by all the records to skip over the bytes of the record
+  // bodies that are not kept.
+  private byte[] drainBuffer = new byte[1024 * 1024];
+
   /**
    * Construct an <code>ArchiveReader</code> with the
    * given path and <code>InputStream</code>.  The path
@@ -61,7 +67,20 @@ public class ArcReader implements Iterable<ArchiveRecordProxy>
   public ArcReader( String path, InputStream is )
     throws IOException
   {
-    this.reader = ArchiveReaderFactory.get( path, is, true );
+    this( path, is, true );
+  }
+
+  /**
+   * Construct an <code>ArchiveReader</code> with the given path and
+   * <code>InputStream</code>.  If the stream is positioned at a
+   * record in the middle of the (w)arc file, rather than at its
+   * start, then <code>atFirstRecord</code> must be
+   * <code>false</code>.
+   */
+  public ArcReader( String path, InputStream is, boolean atFirstRecord )
+    throws IOException
+  {
+    this.reader = ArchiveReaderFactory.get( path, is, atFirstRecord );
     this.reader.setDigest( true );
 
     // If we are reading arc files, then we have to explictly enable
@@ -127,6 +146,21 @@ public class ArcReader implements Iterable<ArchiveRecordProxy>
     return this.sizeLimit;
   }
 
+  /**
+   * Set the filter which decides whether the body of a record is read
+   * into memory.  If <code>null</code>, all bodies are read, up to
+   * the size limit.
+   */
+  public void setBodyFilter( RecordBodyFilter bodyFilter )
+  {
+    this.bodyFilter = bodyFilter;
+  }
+
+  public RecordBodyFilter getBodyFilter( )
+  {
+    return this.bodyFilter;
+  }
+
   /**
    * Returns an iterator over <code>ArchiveRecordProxy</code> objects,
    * which wrap the <code>WARCRecord</code>/<code>ARCRecord</code>
@@ -183,14 +217,14 @@ public class ArcReader implements Iterable<ArchiveRecordProxy>
           
           if ( record instanceof ARCRecord )
             {
-              ArchiveRecordProxy proxy = new ArchiveRecordProxy( (ARCRecord) record, sizeLimit );
+              ArchiveRecordProxy proxy = new ArchiveRecordProxy( (ARCRecord) record, sizeLimit, bodyFilter, drainBuffer );
 
               return proxy;
             }
           
           if ( record instanceof WARCRecord )
             {
-              ArchiveRecordProxy proxy = new ArchiveRecordProxy( (WARCRecord) record, sizeLimit );
+              ArchiveRecordProxy proxy = new ArchiveRecordProxy( (WARCRecord) record, sizeLimit, bodyFilter, drainBuffer );
 
               return proxy;
             }
@@ -54,9 +54,28 @@ import org.apache.commons.httpclient.HttpException;
  *
  * For other record types, the length as given in the (W)ARC record
  * header information.
+ *
+ * If a RecordBodyFilter is given, only the first SNIFF_SIZE bytes of
+ * the body are read before asking the filter whether the whole body
+ * is wanted.  If not, the rest of the body is skipped over and only
+ * those first bytes are kept.  This way, large records we don't care
+ * about, such as videos, are never read into memory.
  */
 public class ArchiveRecordProxy
 {
+  /**
+   * Number of bytes of the record body read before consulting the
+   * RecordBodyFilter.
+   */
+  public static final int SNIFF_SIZE = 4 * 1024;
+
+  // Header lines longer than this are truncated, we only need the
+  // beginning of them.
+  private static final int MAX_HEADER_LINE = 1024;
+
+  private RecordBodyFilter bodyFilter;
+  private byte[] drainBuffer;
+
   private String warcRecordType;
   private String warcContentType;
   private String url;
@@ -64,7 +83,9 @@ public class ArchiveRecordProxy
   private String date;
   private long   length;
   private String code;
+  private String httpContentType;
   private byte[] body;
+  private boolean bodySkipped;
 
   /**
    * Construct an ARCRecord proxy.  Read at most sizeLimit
@@ -73,6 +94,23 @@ public class ArchiveRecordProxy
   public ArchiveRecordProxy( ARCRecord arc, int sizeLimit )
     throws IOException
   {
+    this( arc, sizeLimit, null, null );
+  }
+
+  /**
+   * Construct an ARCRecord proxy.  Read at most sizeLimit bytes from
+   * the record body, and only if the bodyFilter accepts it.  The
+   * drainBuffer is used to skip over the bytes of the body which are
+   * not kept, it can be shared by all the records read from the same
+   * file.  If either is <code>null</code>, all of the body (up to
+   * the sizeLimit) is read and a new drain buffer is allocated.
+   */
+  public ArchiveRecordProxy( ARCRecord arc, int sizeLimit, RecordBodyFilter bodyFilter, byte[] drainBuffer )
+    throws IOException
+  {
+    this.bodyFilter  = bodyFilter;
+    this.drainBuffer = drainBuffer;
+
     ARCRecordMetaData header = (ARCRecordMetaData) arc.getHeader( );
 
     this.url    = header.getUrl();
@@ -88,6 +126,19 @@ public class ArchiveRecordProxy
         // Move the file position past the HTTP headers to the start of
         // the HTTP response body.
         arc.skipHttpHeader();
+
+        Header[] httpHeaders = arc.getHttpHeaders();
+        if ( httpHeaders != null )
+          {
+            for ( Header h : httpHeaders )
+              {
+                if ( "Content-Type".equalsIgnoreCase( h.getName() ) ) this.httpContentType = h.getValue();
+              }
+          }
+        if ( this.httpContentType == null )
+          {
+            this.httpContentType = header.getMimetype();
+          }
         
         // The length of the HTTP response body is equal to the number
         // of bytes remaining in the arc record.
@@ -152,6 +203,20 @@ public class ArchiveRecordProxy
   public ArchiveRecordProxy( WARCRecord warc, int sizeLimit )
     throws IOException
   {
+    this( warc, sizeLimit, null, null );
+  }
+
+  /**
+   * Construct an WARCRecord proxy.  Read at most sizeLimit bytes from
+   * the record body, and only if the bodyFilter accepts it.  See the
+   * ARCRecord constructor for details.
+   */
+  public ArchiveRecordProxy( WARCRecord warc, int sizeLimit, RecordBodyFilter bodyFilter, byte[] drainBuffer )
+    throws IOException
+  {
+    this.bodyFilter  = bodyFilter;
+    this.drainBuffer = drainBuffer;
+
     ArchiveRecordHeader header = warc.getHeader( );
 
     this.warcRecordType  = (String) header.getHeaderValue( WARCConstants.HEADER_KEY_TYPE );
@@ -250,9 +315,13 @@ public class ArchiveRecordProxy
    * And for sure, avoid HttpParser.parseHeaders() as it is strict
    * about the header format and will throw an exception if they are
    * malformed.  We don't care, we just want to skip them.
+   *
+   * Well, except for the Content-Type, which we keep as we go by.
    */
   private void skipHttpHeaders( WARCRecord warc ) throws IOException
   {
+    StringBuilder line = new StringBuilder( );
+
     int ch;
     int state = 0;
     while ( (state != 2) && (ch = warc.read() ) >= 0 )
@@ -260,7 +329,16 @@ public class ArchiveRecordProxy
         switch ( state )
           {
           case 0:
-            if ( ch == '\n' ) state = 1;
+            if ( ch == '\n' ) 
+              {
+                state = 1;
+                checkHttpHeader( line );
+                line.setLength( 0 );
+              }
+            else if ( line.length() < MAX_HEADER_LINE )
+              {
+                line.append( (char) ch );
+              }
             break;
             
           case 1:
@@ -269,18 +347,35 @@ public class ArchiveRecordProxy
             else if ( ch == '\r' || ch == ' ' )
               state = 1;
             else
-              state = 0;
+              {
+                state = 0;
+                line.append( (char) ch );
+              }
             break;
           }
       }
   }
 
+  /**
+   * If the header line is the Content-Type, keep its value.
+   */
+  private void checkHttpHeader( StringBuilder line )
+  {
+    if ( line.length() > 13 && "content-type:".regionMatches( true, 0, line.substring( 0, 13 ), 0, 13 ) )
+      {
+        this.httpContentType = line.substring( 13 ).trim();
+      }
+  }
+
   /**
    * Read the bytes of the record into a buffer and return the buffer.
    * Give a size limit to the buffer to prevent from exploding memory,
    * but still read all the bytes from the stream even if the buffer
    * is full.  This way, the file position will be advanced to the end
    * of the record.
+   *
+   * If there is a bodyFilter, only the first SNIFF_SIZE bytes are
+   * read into the buffer until the filter accepts the record.
    */
   private byte[] readBytes( ArchiveRecord record, long contentLength, int sizeLimit )
     throws IOException
@@ -290,28 +385,45 @@ public class ArchiveRecordProxy
 
     sizeLimit = (int) Math.min( sizeLimit, contentLength );
 
-    byte[] bytes = new byte[sizeLimit];
+    byte[] bytes;
+    int pos = 0;
+    if ( this.bodyFilter != null && sizeLimit > 0 )
+      {
+        byte[] prefix = new byte[Math.min( sizeLimit, SNIFF_SIZE )];
+
+        pos = readFully( record, prefix, 0 );
+
+        if ( this.bodyFilter.accept( this.url, this.httpContentType, prefix, pos, contentLength ) )
+          {
+            bytes = prefix.length == sizeLimit ? prefix : Arrays.copyOf( prefix, sizeLimit );
+          }
+        else
+          {
+            this.bodySkipped = true;
+
+            bytes = pos == prefix.length ? prefix : Arrays.copyOf( prefix, pos );
+          }
+      }
+    else
+      {
+        bytes = new byte[sizeLimit];
+      }
 
     if ( sizeLimit == 0 )
       {
         return bytes;
       }
     
-    // NOTE: Do not use read(byte[]) because ArchiveRecord does NOT over-ride
-    //       the implementation inherited from InputStream.  And since it does
-    //       not over-ride it, it won't do the digesting on it.  Must use either
-    //       read(byte[],offset,length) or read().
-    int pos = 0;
-    int c   = 0;
-    while ( ((c = record.read( bytes, pos, (bytes.length - pos) )) != -1) && pos < bytes.length )
-      {
-        pos += c;
-      }
+    pos = readFully( record, bytes, pos );
     
     // Now that the bytes[] buffer has been filled, read the remainder
     // of the record so that the digest is computed over the entire
     // content.
-    byte[] buf = new byte[1024 * 1024];
+    if ( this.drainBuffer == null )
+      {
+        this.drainBuffer = new byte[1024 * 1024];
+      }
+    byte[] buf = this.drainBuffer;
     long count = 0;
     while ( record.available( ) > 0 )
       {
@@ -329,6 +441,27 @@ public class ArchiveRecordProxy
     return bytes;
   }
 
+  /**
+   * Read bytes from the record into the buffer, starting at
+   * <code>pos</code>, until the buffer is full or the record is
+   * exhausted.  Returns the new position in the buffer.
+   */
+  private int readFully( ArchiveRecord record, byte[] bytes, int pos )
+    throws IOException
+  {
+    // NOTE: Do not use read(byte[]) because ArchiveRecord does NOT over-ride
+    //       the implementation inherited from InputStream.  And since it does
+    //       not over-ride it, it won't do the digesting on it.  Must use either
+    //       read(byte[],offset,length) or read().
+    int c = 0;
+    while ( pos < bytes.length && ((c = record.read( bytes, pos, (bytes.length - pos) )) != -1) )
+      {
+        pos += c;
+      }
+
+    return pos;
+  }
+
   public String getWARCRecordType()
   {
     return this.warcRecordType;
@@ -364,9 +497,28 @@ public class ArchiveRecordProxy
     return this.code;
   }
 
+  /**
+   * Returns the Content-Type from the HTTP response headers, or
+   * <code>null</code> if there was none.
+   */
+  public String getHttpContentType()
+  {
+    return this.httpContentType;
+  }
+
   public byte[] getHttpResponseBody()
   {
     return this.body;
   }
+
+  /**
+   * Returns <code>true</code> if the RecordBodyFilter rejected the
+   * record body, in which case only the first SNIFF_SIZE bytes of it
+   * are available.
+   */
+  public boolean isBodySkipped()
+  {
+    return this.bodySkipped;
+  }
   
 }
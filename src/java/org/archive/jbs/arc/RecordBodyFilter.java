@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.archive.jbs.arc;
+
+/**
+ * Decides whether the body of a (W)ARC record is worth reading into
+ * memory.  The decision is made on the record's URL, the
+ * Content-Type from its HTTP headers, and the first few bytes of the
+ * body.
+ *
+ * If the body is not accepted, the rest of the body is read and
+ * discarded, only to complete the digest computation.  The
+ * ArchiveRecordProxy then holds just the bytes which were sniffed.
+ */
+public interface RecordBodyFilter
+{
+  /**
+   * Returns <code>true</code> if the full body of the record should
+   * be read.
+   *
+   * @param url the URL of the record
+   * @param contentType the Content-Type from the HTTP headers, can be <code>null</code>
+   * @param prefix the first bytes of the record body
+   * @param prefixLength the number of bytes in <code>prefix</code>
+   * @param length the full length of the record body
+   */
+  public boolean accept( String url, String contentType, byte[] prefix, int prefixLength, long length );
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.filter;
+
+import java.util.*;
+
+import org.archive.jbs.Document;
+
+/**
+ * A named collection of DocumentFilters, which allows a Document
+ * only if all of the filters allow it.  The filters are run one
+ * after the other, stopping at the first one which rejects the
+ * Document.
+ *
+ * The filters are first run in the order they were added.  As the
+ * Documents go by, the chain measures how often each filter rejects
+ * a Document and how long it takes to do so, and periodically
+ * re-orders the filters so that the ones which reject the most
+ * Documents for the least time run first.  The filters must not
+ * depend on each other, which is the case for DocumentFilters.
+ *
+ * The number of Documents seen and rejected by each filter are kept,
+ * so the work done by the filters can be reported.
+ *
+ * The chain can be used by multiple threads at the same time.  Each
+ * thread keeps its own counts, so the threads don't contend on them,
+ * and they are only added up to re-order the filters and to report
+ * them.  The sums taken while other threads are still running are
+ * approximate, which is good enough for ordering the filters.
+ */
+public class FilterChain implements DocumentFilter
+{
+  /**
+   * Only 1 in this many Documents are timed, to keep the cost of
+   * calling System.nanoTime() down.
+   */
+  public static final int TIMING_SAMPLE = 16;
+
+  /**
+   * The filters are re-ordered after this many Documents, per thread.
+   */
+  public static final int REORDER_INTERVAL = 1024;
+
+  private Map<String,Entry> entries = new LinkedHashMap<String,Entry>( );
+
+  private volatile Entry[] order = new Entry[0];
+
+  // Incremented each time the filters change, which makes the
+  // threads start their counts over.
+  private volatile int generation = 0;
+
+  // The counts of all the threads which have used the chain since
+  // the filters last changed.
+  private List<Counts> allCounts = new ArrayList<Counts>( );
+
+  private ThreadLocal<Counts> counts = new ThreadLocal<Counts>( );
+
+  /**
+   * Returns the filter with the given name, or <code>null</code> if
+   * there is none.
+   */
+  public synchronized DocumentFilter get( String name )
+  {
+    Entry entry = this.entries.get( name );
+
+    return entry != null ? entry.filter : null;
+  }
+
+  /**
+   * Add the filter with the given name, replacing any existing filter
+   * of that name.  A <code>null</code> filter removes it.  The order
+   * of the filters, and their counts, are reset.
+   */
+  public synchronized void put( String name, DocumentFilter filter )
+  {
+    if ( filter == null )
+      {
+        this.entries.remove( name );
+      }
+    else
+      {
+        this.entries.put( name, new Entry( name, filter ) );
+      }
+
+    int i = 0;
+    for ( Entry entry : this.entries.values( ) )
+      {
+        entry.index = i++;
+      }
+    Entry[] order = this.entries.values( ).toArray( new Entry[this.entries.size( )] );
+
+    this.order = order;
+    this.generation++;
+
+    this.allCounts.clear( );
+  }
+
+  /**
+   * Returns the names of the filters, in the order they were added.
+   */
+  public synchronized Set<String> getNames( )
+  {
+    return new LinkedHashSet<String>( this.entries.keySet( ) );
+  }
+
+  /**
+   * Returns the names of the filters, in the order they are currently
+   * run.
+   */
+  public List<String> getOrder( )
+  {
+    List<String> names = new ArrayList<String>( );
+    for ( Entry entry : this.order )
+      {
+        names.add( entry.name );
+      }
+
+    return names;
+  }
+
+  /**
+   * Returns the number of Documents the named filter has been asked
+   * about.
+   */
+  public synchronized long getSeen( String name )
+  {
+    Entry entry = this.entries.get( name );
+    if ( entry == null ) return 0;
+
+    long sum = 0;
+    for ( Counts c : this.allCounts )
+      {
+        if ( c.generation == this.generation && entry.index < c.seen.length ) sum += c.seen[entry.index];
+      }
+
+    return sum;
+  }
+
+  /**
+   * Returns the number of Documents the named filter has rejected.
+   */
+  public synchronized long getRejected( String name )
+  {
+    Entry entry = this.entries.get( name );
+    if ( entry == null ) return 0;
+
+    long sum = 0;
+    for ( Counts c : this.allCounts )
+      {
+        if ( c.generation == this.generation && entry.index < c.rejected.length ) sum += c.rejected[entry.index];
+      }
+
+    return sum;
+  }
+
+  public boolean isAllowed( Document document )
+  {
+    // The generation is read before the order, and written after it
+    // by put(), so the order is at least as new as the generation.
+    int     generation = this.generation;
+    Entry[] order      = this.order;
+    Counts  counts     = this.counts.get( );
+
+    // The first Document of this thread, or the filters have changed
+    // since it last used them.
+    if ( counts == null || counts.generation != generation )
+      {
+        counts = newCounts( generation, order.length );
+      }
+
+    long n = ++counts.count;
+
+    boolean timed   = ( n % TIMING_SAMPLE ) == 0;
+    boolean allowed = true;
+    for ( Entry entry : order )
+      {
+        long start = timed ? System.nanoTime( ) : 0;
+
+        boolean ok = entry.filter.isAllowed( document );
+
+        int i = entry.index;
+        if ( timed )
+          {
+            counts.nanos[i] += System.nanoTime( ) - start;
+            counts.timed[i]++;
+          }
+
+        counts.seen[i]++;
+
+        if ( ! ok )
+          {
+            counts.rejected[i]++;
+            allowed = false;
+            break ;
+          }
+      }
+
+    if ( ( n % REORDER_INTERVAL ) == 0 )
+      {
+        reorder( );
+      }
+
+    return allowed;
+  }
+
+  private synchronized Counts newCounts( int generation, int size )
+  {
+    Counts counts = new Counts( generation, size );
+
+    this.counts.set( counts );
+    this.allCounts.add( counts );
+
+    return counts;
+  }
+
+  /**
+   * Order the filters by the fraction of Documents they reject per
+   * nanosecond, highest first.  A filter which hasn't been timed yet
+   * is given the mean cost of the ones which have.  Ties are broken
+   * by the order the filters were added, so the order is
+   * deterministic for the same measurements.
+   */
+  private synchronized void reorder( )
+  {
+    Entry[] entries = this.order.clone( );
+
+    long[] seen     = new long[entries.length];
+    long[] rejected = new long[entries.length];
+    long[] timed    = new long[entries.length];
+    long[] nanos    = new long[entries.length];
+    for ( Counts c : this.allCounts )
+      {
+        if ( c.generation != this.generation || c.seen.length != entries.length ) continue ;
+
+        for ( int i = 0 ; i < entries.length ; i++ )
+          {
+            seen    [i] += c.seen    [i];
+            rejected[i] += c.rejected[i];
+            timed   [i] += c.timed   [i];
+            nanos   [i] += c.nanos   [i];
+          }
+      }
+
+    double totalCost = 0;
+    int    measured  = 0;
+    for ( int i = 0 ; i < entries.length ; i++ )
+      {
+        if ( timed[i] == 0 ) continue ;
+
+        totalCost += Math.max( 1.0, (double) nanos[i] / timed[i] );
+        measured++;
+      }
+    double meanCost = measured == 0 ? 1 : totalCost / measured;
+
+    for ( Entry entry : entries )
+      {
+        int i = entry.index;
+        if ( seen[i] == 0 )
+          {
+            entry.score = 0;
+            continue ;
+          }
+
+        double rate = (double) rejected[i] / seen[i];
+        double cost = timed[i] == 0 ? meanCost : Math.max( 1.0, (double) nanos[i] / timed[i] );
+
+        entry.score = rate / cost;
+      }
+
+    Arrays.sort( entries, new Comparator<Entry>( )
+      {
+        public int compare( Entry a, Entry b )
+        {
+          if ( a.score != b.score ) return a.score > b.score ? -1 : 1;
+
+          return a.index - b.index;
+        }
+      } );
+
+    this.order = entries;
+  }
+
+  /**
+   * Returns a summary of the filters, in the order they are run, with
+   * the number of Documents each has seen and rejected.
+   */
+  public String toString( )
+  {
+    StringBuilder buf = new StringBuilder( );
+    for ( Entry entry : this.order )
+      {
+        if ( buf.length( ) > 0 ) buf.append( ' ' );
+
+        buf.append( entry.name ).append( '=' ).append( getRejected( entry.name ) ).append( '/' ).append( getSeen( entry.name ) );
+      }
+
+    return buf.toString( );
+  }
+
+  private static class Entry
+  {
+    String         name;
+    DocumentFilter filter;
+    int            index;
+
+    // Only used by reorder().
+    double         score;
+
+    Entry( String name, DocumentFilter filter )
+    {
+      this.name   = name;
+      this.filter = filter;
+    }
+  }
+
+  /**
+   * The counts of one thread for one generation of the filters,
+   * indexed by Entry.index.
+   */
+  private static class Counts
+  {
+    final int    generation;
+    final long[] seen;
+    final long[] rejected;
+    final long[] timed;
+    final long[] nanos;
+
+    long count;
+
+    Counts( int generation, int size )
+    {
+      this.generation = generation;
+      this.seen       = new long[size];
+      this.rejected   = new long[size];
+      this.timed      = new long[size];
+      this.nanos      = new long[size];
+    }
+  }
+
+}
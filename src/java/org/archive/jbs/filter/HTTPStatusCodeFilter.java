@@ -24,12 +24,19 @@ import org.archive.jbs.Document;
  * Filter documents based on HTTP status code, stored in the "code"
  * property.  By default, allow documents with no "code" property
  * because we didn't start storing it until recently.
+ *
+ * The configured ranges are compiled into a table of the codes from
+ * -1 ("unknown") to 999, so checking a code is a single lookup.
+ * Codes outside that range are not allowed.
  */
 public class HTTPStatusCodeFilter implements DocumentFilter
 {
   public static final String DEFAULT_RANGE = "200-299";
+
+  public static final int MIN_CODE = -1;
+  public static final int MAX_CODE = 999;
   
-  List<Range> ranges = new ArrayList<Range>( );
+  private boolean[] allowed = new boolean[MAX_CODE - MIN_CODE + 1];
 
   public HTTPStatusCodeFilter( String configuration )
   {
@@ -42,17 +49,12 @@ public class HTTPStatusCodeFilter implements DocumentFilter
 
     for ( String value : configuration.split( "\\s+" ) )
       {
-        Range range = new Range( );
-
         // Special handling for "unknown" where an ARCRecord doesn't have
         // an HTTP status code.  The ARCRecord.getStatusCode() returns
         // -1 in that case, so we make a range for it.
         if ( value.toLowerCase( ).equals( "unknown" ) )
           {
-            range.lower = -1;
-            range.upper = -1;
-
-            this.ranges.add( range );
+            allow( -1, -1 );
 
             continue;
           }
@@ -65,62 +67,84 @@ public class HTTPStatusCodeFilter implements DocumentFilter
               {
               case 2:
                 // It's a range, N-M
-                range.lower = Integer.parseInt( values[0] );
-                range.upper = Integer.parseInt( values[1] );
+                allow( Integer.parseInt( values[0] ), Integer.parseInt( values[1] ) );
                 break;
                 
               case 1:
                 // It's a single value, convert to a single-value range
-                range.lower = Integer.parseInt( values[0] );
-                range.upper = range.lower;
+                allow( Integer.parseInt( values[0] ), Integer.parseInt( values[0] ) );
                 break;
                 
               default:
                 // Bad format
-                throw new RuntimeException( "Illegal format for HTTPStatusCodeFilter: " + range );
+                throw new RuntimeException( "Illegal format for HTTPStatusCodeFilter: " + value );
               }
-
-            this.ranges.add( range );
           }
         catch ( NumberFormatException nfe )
           {
-            throw new RuntimeException( "Illegal format for HTTPStatusCodeFilter: " + range, nfe );
+            throw new RuntimeException( "Illegal format for HTTPStatusCodeFilter: " + value, nfe );
           }
       }
 
   }
 
   /**
-   * 
-   */ 
+   * Allow the codes from <code>lower</code> to <code>upper</code>,
+   * inclusive.
+   */
+  private void allow( int lower, int upper )
+  {
+    for ( int code = Math.max( lower, MIN_CODE ) ; code <= Math.min( upper, MAX_CODE ) ; code++ )
+      {
+        this.allowed[code - MIN_CODE] = true;
+      }
+  }
+
+  /**
+   * Returns <code>true</code> if the code is in any of the configured
+   * ranges.
+   */
+  public boolean isAllowed( int code )
+  {
+    return code >= MIN_CODE && code <= MAX_CODE && this.allowed[code - MIN_CODE];
+  }
+
   public boolean isAllowed( Document document )
   {
     String codeString = document.get( "code" );
 
     if ( "".equals( codeString ) ) return true;
 
-    try
-      {
-        int code = Integer.parseInt( codeString );
+    // Parse the code by hand, without the exception (and its stack
+    // trace) that Integer.parseInt() creates for a malformed code.
+    // It accepts the same codes as Integer.parseInt() does, including
+    // a '+' sign and leading zeros.
+    int length = codeString.length( );
+    int i = 0;
 
-        // If the code is in any of the valid ranges, allow it.
-        for ( Range r : this.ranges )
-          {
-            return ( r.lower <= code && code <= r.upper );
-          }
-      }
-    catch ( NumberFormatException nfe )
+    char sign = codeString.charAt( 0 );
+    boolean negative = sign == '-';
+    if ( negative || sign == '+' ) i++;
+
+    // Just a sign.
+    if ( i == length ) return false;
+
+    while ( i < length - 1 && codeString.charAt( i ) == '0' ) i++;
+
+    // Too long to be one of ours.
+    if ( length - i > 3 ) return false;
+
+    int code = 0;
+    for ( ; i < length ; i++ )
       {
-        // Eat it.
-      }
+        int digit = Character.digit( codeString.charAt( i ), 10 );
 
-    return false;
-  }
+        if ( digit < 0 ) return false;
 
-  static class Range 
-  {
-    int lower;
-    int upper;
+        code = code * 10 + digit;
+      }
+
+    return isAllowed( negative ? -code : code );
   }
 
 }
@@ -16,38 +16,32 @@
 
 package org.archive.jbs.filter;
 
-import java.io.*;
-import java.net.*;
-
 import org.archive.jbs.Document;
+import org.archive.jbs.util.URLScanner;
 
 /**
  * Simple DocumentFilter that filters out robots and favicon URLs.
+ *
+ * The path is found with a URLScanner rather than a java.net.URI, as
+ * the filter runs on every document.  The filter can be shared by
+ * multiple threads, each of which has its own URLScanner, shared
+ * with the other filters and handlers.
  */
 public class RobotsFilter implements DocumentFilter
 {
 
   public boolean isAllowed( Document document )
   {
-    String url  = document.get( "url" );
-    
-    try
-      {
-        URI uri = new URI( url );
-        
-        String path = uri.getPath();
-
-        // If no path, then trivially *not* robots nor favicon.
-        if ( path == null ) return true;
+    URLScanner scanner = URLScanner.get( );
 
-        path = path.trim();
+    // If not a URL, then trivially *not* robots nor favicon.
+    if ( ! scanner.scan( document.get( "url" ) ) ) return true;
 
-        if ( "/favicon.ico".equals( path ) ||
-             "/robots.txt" .equals( path ) )
-          {
-            return false;
-          }
-      } catch ( URISyntaxException e ) { }
+    if ( scanner.pathEquals( "/favicon.ico" ) ||
+         scanner.pathEquals( "/robots.txt"  ) )
+      {
+        return false;
+      }
     
     return true;
   }
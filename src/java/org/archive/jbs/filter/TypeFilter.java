@@ -19,6 +19,8 @@ package org.archive.jbs.filter;
 import java.io.*;
 import java.util.*;
 
+import org.apache.hadoop.conf.Configuration;
+
 import org.archive.jbs.Document;
 
 /**
@@ -58,6 +60,27 @@ public class TypeFilter implements DocumentFilter
     this.normalizer = normalizer;
   }
 
+  /**
+   * Build a TypeFilter from the <code>jbs.typeFilter.*</code>
+   * properties in the configuration.  The configured types are added
+   * to the defaults, unless <code>jbs.typeFilter.useDefaults</code>
+   * is <code>false</code>.
+   */
+  public static TypeFilter build( Configuration conf, TypeNormalizer normalizer )
+  {
+    Set<String> allowedTypes = parse( conf.get( "jbs.typeFilter.allowed", "" ) );
+
+    if ( conf.getBoolean( "jbs.typeFilter.useDefaults", true ) )
+      {
+        Set<String> defaults = getDefaultAllowed( );
+        defaults.addAll( allowedTypes );
+
+        allowedTypes = defaults;
+      }
+
+    return new TypeFilter( allowedTypes, normalizer );
+  }
+
   public void setTypeNormalizer( TypeNormalizer normalizer )
   {
     this.normalizer = normalizer;
@@ -75,8 +98,14 @@ public class TypeFilter implements DocumentFilter
   
   public boolean isAllowed( Document document )
   {
-    String type = document.get( "type" );
+    return isAllowed( document.get( "type" ) );
+  }
 
+  /**
+   * Check the type directly, rather than the type of a Document.
+   */
+  public boolean isAllowed( String type )
+  {
     // If no explicit list of allowed types, allow them all.
     if ( this.allowed == null || this.allowed.size( ) == 0 )
       {
@@ -84,7 +113,7 @@ public class TypeFilter implements DocumentFilter
       }
 
     // De-alias it.
-    type = this.normalizer.normalize( document );
+    type = this.normalizer.normalize( type );
 
     return allowed.contains( type );
   }
@@ -19,6 +19,8 @@ package org.archive.jbs.filter;
 import java.io.*;
 import java.util.*;
 
+import org.apache.hadoop.conf.Configuration;
+
 import org.archive.jbs.Document;
 
 public class TypeNormalizer
@@ -45,6 +47,47 @@ public class TypeNormalizer
 
   private Map<String,String> aliases;
 
+  // The last type normalized by each thread, and its normalized form.
+  // The TypeFilter and then the TypeHandler (or SolrDocumentWriter)
+  // both normalize the type of the same Document, which is the same
+  // String, so the second one gets the result of the first.
+  private volatile ThreadLocal<String[]> last = newLast( );
+
+  private static ThreadLocal<String[]> newLast( )
+  {
+    return new ThreadLocal<String[]>( )
+      {
+        protected String[] initialValue( )
+        {
+          return new String[2];
+        }
+      };
+  }
+
+  /**
+   * Build a TypeNormalizer from the <code>jbs.typeNormalizer.*</code>
+   * properties in the configuration.  The configured aliases are
+   * added to the defaults, unless <code>jbs.typeNormalizer.useDefaults</code>
+   * is <code>false</code>.
+   */
+  public static TypeNormalizer build( Configuration conf )
+  {
+    Map<String,String> aliases = parseAliases( conf.get( "jbs.typeNormalizer.aliases", "" ) );
+
+    if ( conf.getBoolean( "jbs.typeNormalizer.useDefaults", true ) )
+      {
+        Map<String,String> defaults = getDefaultAliases( );
+        defaults.putAll( aliases );
+
+        aliases = defaults;
+      }
+
+    TypeNormalizer normalizer = new TypeNormalizer( );
+    normalizer.setAliases( aliases );
+
+    return normalizer;
+  }
+
   public static Map<String,String> getDefaultAliases( )
   {
     Map<String,String> defaults = new HashMap<String,String>( );
@@ -85,6 +128,7 @@ public class TypeNormalizer
   public void setAliases( Map<String,String> aliases )
   {
     this.aliases = aliases;
+    this.last    = newLast( );
   }
   
   public Map<String,String> getAliases( )
@@ -94,8 +138,26 @@ public class TypeNormalizer
   
   public String normalize( Document document )
   {
-    String type = document.get( "type" );
+    return normalize( document.get( "type" ) );
+  }
+
+  public String normalize( String type )
+  {
+    String[] last = this.last.get( );
 
+    // The very same String, not just an equal one.
+    if ( type != null && type == last[0] ) return last[1];
+
+    String normalized = normalizeType( type );
+
+    last[0] = type;
+    last[1] = normalized;
+
+    return normalized;
+  }
+
+  private String normalizeType( String type )
+  {
     // Chop off anything after a ';' character.  This is
     // for stuff like: "text/html; charset=utf-8"
     int p = type.indexOf( ';' );
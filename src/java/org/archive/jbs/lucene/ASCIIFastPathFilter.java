@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.lucene;
+
+import java.io.*;
+
+import org.apache.lucene.analysis.*;
+import org.apache.lucene.analysis.tokenattributes.*;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+
+
+/**
+ * Filter which does the work of the LowerCaseFilter,
+ * ASCIIFoldingFilter and (optionally) NonAlphaFilter in a single pass
+ * over each token.
+ *
+ * Most tokens are pure ASCII, for which lower-casing is a simple
+ * shift, folding does nothing and a letter is just [a-z].  So the
+ * token is scanned once, lower-casing it and looking for a letter
+ * along the way.  Only if a non-ASCII character is found is the token
+ * given the full Unicode treatment, exactly as the separate filters
+ * would do.
+ *
+ * The output is token-for-token the same as the chain
+ * <pre>
+ *   LowerCaseFilter -> ASCIIFoldingFilter [-> NonAlphaFilter]
+ * </pre>
+ * which <code>TestASCIIFastPathFilter</code> checks on the
+ * mixed-script corpus in <code>src/test/data</code>.
+ */
+public final class ASCIIFastPathFilter extends TokenFilter
+{
+  private CharTermAttribute          termAtt;
+  private PositionIncrementAttribute posIncrAtt;
+
+  private boolean omitNonAlpha;
+
+  // Output buffer for the ASCII folding.
+  private char[] folded = new char[512];
+
+  public ASCIIFastPathFilter( TokenStream in, boolean omitNonAlpha )
+  {
+    super( in );
+    this.omitNonAlpha = omitNonAlpha;
+
+    termAtt    = addAttribute(CharTermAttribute.class);
+    posIncrAtt = addAttribute(PositionIncrementAttribute.class);
+  }
+
+  public boolean incrementToken( )
+    throws IOException
+  {
+    int skippedPositions = 0;
+
+    while ( input.incrementToken( ) )
+      {
+        if ( process( ) || ! this.omitNonAlpha )
+          {
+            posIncrAtt.setPositionIncrement(posIncrAtt.getPositionIncrement() + skippedPositions);
+
+            return true;
+          }
+        skippedPositions += posIncrAtt.getPositionIncrement();
+      }
+
+    return false;
+  }
+
+  /**
+   * Lower-case and fold the current token, returning
+   * <code>true</code> if it has a letter in it.
+   */
+  private boolean process( )
+  {
+    char[] buffer = termAtt.buffer( );
+    int    length = termAtt.length( );
+
+    boolean hasLetter = false;
+    for ( int i = 0 ; i < length ; i++ )
+      {
+        char c = buffer[i];
+
+        if ( c >= 0x80 ) return processUnicode( i );
+
+        if ( c >= 'A' && c <= 'Z' )
+          {
+            buffer[i] = (char) ( c + ( 'a' - 'A' ) );
+            hasLetter = true;
+          }
+        else if ( c >= 'a' && c <= 'z' )
+          {
+            hasLetter = true;
+          }
+      }
+
+    return hasLetter;
+  }
+
+  /**
+   * The slow path, for a token with a non-ASCII character at
+   * <code>start</code>.  The characters before it have already been
+   * lower-cased.
+   */
+  private boolean processUnicode( int start )
+  {
+    char[] buffer = termAtt.buffer( );
+    int    length = termAtt.length( );
+
+    // Same as LowerCaseFilter, for Version.LUCENE_30.  Some non-ASCII
+    // characters lower-case to ASCII ones, e.g. the Kelvin sign.
+    boolean nonASCII = false;
+    for ( int i = start ; i < length ; i++ )
+      {
+        buffer[i] = Character.toLowerCase( buffer[i] );
+
+        if ( buffer[i] >= 0x80 ) nonASCII = true;
+      }
+
+    // Same as ASCIIFoldingFilter.
+    if ( nonASCII )
+      {
+        int maxSize = 4 * length;
+        if ( this.folded.length < maxSize )
+          {
+            this.folded = new char[ArrayUtil.oversize( maxSize, RamUsageEstimator.NUM_BYTES_CHAR )];
+          }
+
+        length = ASCIIFoldingFilter.foldToASCII( buffer, 0, this.folded, 0, length );
+
+        termAtt.copyBuffer( this.folded, 0, length );
+        buffer = termAtt.buffer( );
+      }
+
+    // Same as NonAlphaFilter.
+    for ( int i = 0 ; i < length ; i++ )
+      {
+        if ( Character.isLetter( buffer[i] ) ) return true;
+      }
+
+    return false;
+  }
+
+}
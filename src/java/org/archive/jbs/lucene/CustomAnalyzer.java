@@ -28,11 +28,17 @@ import org.apache.lucene.util.Version;
  * Simple custom analyzer that combines a bunch of common filters.
  * This would be nice to have in an external config file, but for
  * now we just have this little hard-coded class.
+ *
+ * The chain of tokenizer and filters is built once per thread and
+ * re-used for every field, rather than built anew each time, so the
+ * settings must be made before the analyzer is used.  The stop words
+ * are compiled into a CharArraySet once, when they are set.
  */
-public class CustomAnalyzer extends Analyzer
+public class CustomAnalyzer extends ReusableAnalyzerBase
 {
   boolean omitNonAlpha = true;
   Set<?> stopWords;
+  CharArraySet stopSet;
 
   public CustomAnalyzer( )
   {
@@ -42,12 +48,28 @@ public class CustomAnalyzer extends Analyzer
   public CustomAnalyzer( boolean omitNonAlpha, Set<?> stopWords )
   {
     this.omitNonAlpha = omitNonAlpha;
-    this.stopWords    = stopWords;
+    setStopWords( stopWords );
   }
   
   public void setStopWords( Set<?> stopWords )
   {
     this.stopWords = stopWords;
+    this.stopSet   = null;
+
+    if ( stopWords == null ) return ;
+
+    CharArraySet stopSet = new CharArraySet( Version.LUCENE_30, stopWords.size( ), false );
+    for ( Object word : stopWords )
+      {
+        // Skip the empty word, which is what an empty configuration
+        // property gives us.
+        if ( word.toString( ).length( ) > 0 ) stopSet.add( word.toString( ) );
+      }
+
+    if ( stopSet.size( ) > 0 )
+      {
+        this.stopSet = CharArraySet.unmodifiableSet( stopSet );
+      }
   }
 
   public Set<?> getStopWords( )
@@ -65,22 +87,21 @@ public class CustomAnalyzer extends Analyzer
     return this.omitNonAlpha;
   }
 
-  public TokenStream tokenStream( String fieldName, Reader reader )
+  protected TokenStreamComponents createComponents( String fieldName, Reader reader )
   {
-    TokenStream stream = new StandardTokenizer( Version.LUCENE_30, reader );
-    stream = new StandardFilter( stream );
-    stream = new LowerCaseFilter( stream );
-    stream = new ASCIIFoldingFilter( stream );
-    if ( this.omitNonAlpha )
-      {
-        stream = new NonAlphaFilter( stream );
-      }
-    if ( this.stopWords != null && this.stopWords.size( ) > 0 )
+    Tokenizer source = new StandardTokenizer( Version.LUCENE_30, reader );
+
+    TokenStream stream = new StandardFilter( source );
+
+    // Same as LowerCaseFilter, ASCIIFoldingFilter and NonAlphaFilter
+    // (if omitNonAlpha), in a single pass.
+    stream = new ASCIIFastPathFilter( stream, this.omitNonAlpha );
+    if ( this.stopSet != null )
       {
-        stream = new StopFilter( true, stream, this.stopWords );
+        stream = new StopFilter( Version.LUCENE_30, stream, this.stopSet );
       }
 
-    return stream;
+    return new TokenStreamComponents( source, stream );
   }
 
 }
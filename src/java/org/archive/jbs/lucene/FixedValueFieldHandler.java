@@ -33,12 +33,15 @@ public class FixedValueFieldHandler implements FieldHandler
   Field.Store store;
   Field.Index index;
 
+  ReusableField field;
+
   public FixedValueFieldHandler( String name, String value, Field.Store store, Field.Index index )
   {
     this.name  = name;
     this.value = value;
     this.store = store;
     this.index = index;
+    this.field = new ReusableField( name, store, index );
   }
 
   public void handle( org.apache.lucene.document.Document luceneDocument, Document document )
@@ -48,7 +51,7 @@ public class FixedValueFieldHandler implements FieldHandler
         return ;
       }
 
-    luceneDocument.add( new Field( name, value, store, index ) );
+    luceneDocument.add( field.get( value ) );
   }
 
 }
@@ -19,6 +19,9 @@ package org.archive.jbs.lucene;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.zip.DataFormatException;
+
+import org.apache.hadoop.mapred.Reporter;
 
 import org.apache.lucene.analysis.*;
 import org.apache.lucene.document.*;
@@ -27,6 +30,8 @@ import org.apache.lucene.index.*;
 import org.archive.jbs.Document;
 import org.archive.jbs.*;
 import org.archive.jbs.filter.*;
+import org.archive.jbs.util.FPGenerator;
+import org.archive.jbs.util.FPPartitioner;
 
 /**
  * The LuceneDocumentWriter converts a Document into a Lucene Document
@@ -35,15 +40,63 @@ import org.archive.jbs.filter.*;
  * Most of the interesting work is done by the DocumentFilters and
  * FieldHandlers.  The filters determine whether or not the document
  * is allowed and the various handlers convert the Document properties
- * into Lucene Fields.
+ * into Lucene Fields.  The handlers are run in the order they are in
+ * the map given to <code>setHandlers()</code>.
+ *
+ * Each thread re-uses the same Lucene Document for every document it
+ * adds, and most handlers re-use their Fields too, which Lucene
+ * allows once addDocument() has returned.
+ *
+ * The documents can be split across a number of indexes, called
+ * shards, by a hash of either the "site" field or the URL.  All the
+ * documents of a site then go into the same shard.
+ *
+ * In incremental mode, each Lucene document is given a "key" field
+ * holding the Document's key (its URL and digest), and replaces any
+ * document already in the index with the same key, rather than being
+ * added alongside it.  Since the new document replaces the old one
+ * entirely, it is first merged, as by <code>Document.merge()</code>,
+ * with the stored fields of the old one, as of the indexes given to
+ * <code>setExisting()</code>.  Otherwise a Document with only some
+ * of the properties, such as the dates of a revisit, would replace
+ * the title and content in the index with nothing.  Only the index of
+ * the shard the document is routed to is looked in.  The stored text
+ * of a TextHandler, which may be truncated, is only used if the new
+ * Document has none.  This relies on the other stored fields being
+ * named after the properties they hold, and on the handlers giving
+ * the same fields again when run on them.
  */
 public class LuceneDocumentWriter extends DocumentWriterBase
 {
-  private IndexWriter indexer;
-  private Analyzer    analyzer;
+  private IndexWriter   indexer;
+  private IndexWriter[] shards;
+  private boolean       shardBySite;
+  private boolean       incremental;
+  private IndexReader[] existing;
+  private Analyzer      analyzer;
+
+  public static final String KEY_FIELD = "key";
+
+  // The only stored fields whose values are added to those of an
+  // update in incremental mode, rather than replaced by them.
+  public static final Set<String> ACCUMULATING_FIELDS = new HashSet<String>( Arrays.asList( "date", "collection" ) );
 
   private Map<String,FieldHandler> handlers;
-  
+  private FieldHandler[]           handlerArray = new FieldHandler[0];
+
+  // The Document property of each TextHandler's field, by field name.
+  private Map<String,String>       textKeys     = new HashMap<String,String>( );
+
+  private ReusableField keyField = new ReusableField( KEY_FIELD, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS );
+
+  private static final ThreadLocal<org.apache.lucene.document.Document> DOCS = new ThreadLocal<org.apache.lucene.document.Document>( )
+    {
+      protected org.apache.lucene.document.Document initialValue( )
+      {
+        return new org.apache.lucene.document.Document( );
+      }
+    };
+
   public LuceneDocumentWriter( IndexWriter indexer )
   {
     this.indexer  = indexer;
@@ -56,30 +109,256 @@ public class LuceneDocumentWriter extends DocumentWriterBase
     this.analyzer = analyzer;
   }
 
+  /**
+   * Split the documents across the given indexes, by hash of the
+   * "site" field if <code>shardBy</code> is "site", otherwise by hash
+   * of the URL.
+   */
+  public void setShards( IndexWriter[] shards, String shardBy )
+  {
+    this.shards      = shards;
+    this.shardBySite = "site".equals( shardBy );
+  }
+
+  /**
+   * If <code>true</code>, replace any document in the index with the
+   * same key, rather than adding another.
+   */
+  public void setIncremental( boolean incremental )
+  {
+    this.incremental = incremental;
+  }
+
+  /**
+   * The indexes as they were before any documents were added, in
+   * which to look for the stored fields of the documents being
+   * replaced in incremental mode.  One for each shard, in the same
+   * order, or just one if not sharded.  Any of them may be
+   * <code>null</code>.
+   */
+  public void setExisting( IndexReader[] existing )
+  {
+    this.existing = existing;
+  }
+
   public void setHandlers( Map<String,FieldHandler> handlers )
   {
-    this.handlers = handlers;
+    this.handlers     = handlers;
+    this.handlerArray = handlers.values().toArray( new FieldHandler[handlers.size()] );
+
+    this.textKeys.clear( );
+    for ( FieldHandler handler : this.handlerArray )
+      {
+        if ( handler instanceof TextHandler )
+          {
+            this.textKeys.put( ((TextHandler) handler).getName( ), ((TextHandler) handler).getKey( ) );
+          }
+      }
+  }
+
+  /**
+   * Add the counts kept by the handlers, if any, to the Hadoop
+   * counters.
+   */
+  public void reportHandlerCounters( Reporter reporter )
+  {
+    for ( FieldHandler handler : handlerArray )
+      {
+        if ( handler instanceof TextHandler )
+          {
+            ((TextHandler) handler).reportCounters( reporter );
+          }
+        else if ( handler instanceof SiteHandler )
+          {
+            ((SiteHandler) handler).reportCounters( reporter );
+          }
+      }
+  }
+
+  /**
+   * Release the resources held by the handlers, once all the
+   * documents have been added.
+   */
+  public void closeHandlers( )
+  {
+    for ( FieldHandler handler : handlerArray )
+      {
+        if ( handler instanceof TextHandler )
+          {
+            ((TextHandler) handler).close( );
+          }
+      }
   }
 
   public void add( String key, Document document )
     throws IOException
   {
-    for ( DocumentFilter filter : filters.values() )
+    // The shard is known before the handlers are run, so that the
+    // existing document can be looked for in it.
+    int shard = -1;
+    if ( this.incremental )
+      {
+        shard    = getShard( getRoute( document ) );
+        document = mergeExisting( key, document, shard );
+      }
+
+    if ( ! filters.isAllowed( document ) )
       {
-        if ( ! filter.isAllowed( document ) )
+        return ;
+      }
+
+    org.apache.lucene.document.Document doc = DOCS.get( );
+    try
+      {
+        for ( FieldHandler handler : handlerArray )
           {
-            return ;
+            handler.handle( doc, document );
+          }
+
+        if ( this.incremental )
+          {
+            doc.add( keyField.get( key ) );
+
+            getIndexWriter( shard ).updateDocument( new Term( KEY_FIELD, key ), doc, analyzer );
+          }
+        else
+          {
+            String route = this.shardBySite ? doc.get( "site" ) : null;
+            if ( route == null ) route = document.get( "url" );
+
+            getIndexWriter( getShard( route ) ).addDocument( doc, analyzer );
+          }
+      }
+    finally
+      {
+        // Ready for the next document, and don't hold on to this one.
+        doc.getFields().clear();
+        doc.setBoost( 1.0F );
+      }
+  }
+
+  /**
+   * If there is an existing document with the key in the given
+   * shard, returns a new Document with its stored fields, into which
+   * the given one is merged.  Otherwise returns the given one.
+   */
+  private Document mergeExisting( String key, Document document, int shard )
+    throws IOException
+  {
+    if ( this.existing == null || this.existing[shard] == null ) return document;
+
+    IndexReader reader   = this.existing[shard];
+    TermDocs    termDocs = reader.termDocs( new Term( KEY_FIELD, key ) );
+    try
+      {
+        if ( ! termDocs.next( ) ) return document;
+
+        Document merged = toDocument( reader.document( termDocs.doc( ) ), document );
+        merged.merge( document );
+
+        return merged;
+      }
+    finally
+      {
+        termDocs.close( );
+      }
+  }
+
+  /**
+   * Convert the stored fields of a Lucene document back into a
+   * Document, to merge the given one into.  Binary fields are the
+   * compressed text stored by the TextHandler.  A stored field is
+   * left out if the given Document has its own value for it, so that
+   * the new value replaces the stored one, rather than the field being
+   * given both.  Only the ACCUMULATING_FIELDS, such as the dates, keep
+   * their stored values as well.
+   */
+  private Document toDocument( org.apache.lucene.document.Document doc, Document update )
+    throws IOException
+  {
+    Document document = new Document( );
+    for ( Fieldable field : doc.getFields( ) )
+      {
+        if ( KEY_FIELD.equals( field.name( ) ) ) continue ;
+
+        String textKey = this.textKeys.get( field.name( ) );
+        if ( textKey != null )
+          {
+            if ( update.get( textKey ).length( ) > 0 ) continue ;
+
+            document.add( textKey, getText( field ) );
+          }
+        else
+          {
+            if ( ! ACCUMULATING_FIELDS.contains( field.name( ) ) && update.get( field.name( ) ).length( ) > 0 ) continue ;
+
+            document.add( field.name( ), field.stringValue( ) );
           }
       }
+    return document;
+  }
 
-    org.apache.lucene.document.Document doc = new org.apache.lucene.document.Document();
+  /**
+   * Returns the text stored by a TextHandler, either as-is or
+   * compressed.
+   */
+  private String getText( Fieldable field )
+    throws IOException
+  {
+    if ( ! field.isBinary( ) ) return field.stringValue( );
 
-    for ( FieldHandler handler : handlers.values() )
+    byte[] value = field.getBinaryValue( );
+    if ( field.getBinaryOffset( ) != 0 || field.getBinaryLength( ) != value.length )
+      {
+        value = Arrays.copyOfRange( value, field.getBinaryOffset( ), field.getBinaryOffset( ) + field.getBinaryLength( ) );
+      }
+    try
       {
-        handler.handle( doc, document );
+        return CompressionTools.decompressString( value );
       }
+    catch ( DataFormatException dfe )
+      {
+        throw new IOException( "Cannot decompress field: " + field.name( ), dfe );
+      }
+  }
+
+  /**
+   * Returns the value the document is routed to a shard by: its site
+   * if sharding by site, as given by the "site" handler, otherwise, or
+   * if it has no site, its URL.  The handler is run on its own, since
+   * the site is needed before the other handlers are run.
+   */
+  private String getRoute( Document document )
+  {
+    if ( this.shards != null && this.shards.length > 1 && this.shardBySite && this.handlers.containsKey( "site" ) )
+      {
+        org.apache.lucene.document.Document doc = new org.apache.lucene.document.Document( );
+        this.handlers.get( "site" ).handle( doc, document );
+
+        String site = doc.get( "site" );
+        if ( site != null ) return site;
+      }
+    return document.get( "url" );
+  }
+
+  /**
+   * Returns the shard for the given route.
+   */
+  private int getShard( String route )
+  {
+    if ( this.shards == null || this.shards.length == 1 ) return 0;
+
+    return FPPartitioner.partition( FPGenerator.std64.fp( route ), this.shards.length );
+  }
+
+  /**
+   * Returns the index of the given shard.
+   */
+  private IndexWriter getIndexWriter( int shard )
+  {
+    if ( this.shards == null ) return this.indexer;
 
-    indexer.addDocument( doc, analyzer );
+    return this.shards[shard];
   }
  
 }
@@ -19,7 +19,10 @@ package org.archive.jbs.lucene;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.*;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.io.*;
@@ -48,9 +51,46 @@ import org.archive.jbs.filter.*;
  *     indexing of Lucene documents to it.
  *
  *  2. Closes that index and copies it into HDFS.
+ *
+ * If <code>jbs.lucene.threads</code> is greater than 1, the documents
+ * are converted and added to the index by a pool of that many
+ * threads, rather than by the reducer thread.  The Lucene IndexWriter
+ * allows concurrent calls to addDocument().  At most
+ * <code>jbs.lucene.queueDepth</code> documents are queued for the
+ * threads, after which the reducer thread converts and adds the
+ * documents itself until the threads catch up.
+ *
+ * If <code>jbs.lucene.shards</code> is greater than 1, the documents
+ * are split across that many indexes (shards), by a hash of either
+ * the URL or the site, according to <code>jbs.lucene.shard.by</code>.
+ * The shards are written to sub-directories of the task's output
+ * directory, named by <code>getShardName()</code>, along with a
+ * "manifest" file listing them and the number of documents in each.
+ * When the task is done, the shards are optimized, closed and copied
+ * into HDFS in parallel.
+ *
+ * If <code>jbs.lucene.incremental</code> is set, the existing index
+ * (or shards) in the output directory is not deleted, but copied
+ * down and updated.  Each document replaces any existing document
+ * with the same key, i.e. the same URL and digest, so only the new
+ * and changed captures are re-indexed.  The stored fields of the
+ * existing document are merged into the new one, so that a revisit
+ * only adds its date and collection.  Any other field the new
+ * document has replaces the stored one.  When the index is closed, a
+ * commit point is recorded with the list of inputs of the job and the
+ * time, in the commit user data.  For the same URLs to end up in the
+ * same index, the number of reducers and shards must not change
+ * between runs.  The updated index is copied into HDFS next to the
+ * existing one, which is only replaced once the copy is complete.
+ * Since streaming upload would overwrite the existing index file by
+ * file, it cannot be used in incremental mode.  For the same reason,
+ * speculative execution of the reducers is turned off, and the "done"
+ * file is removed until the updated index is in place.
  */
-public class LuceneOutputFormat extends FileOutputFormat<Text, Text>
+public class LuceneOutputFormat extends FileOutputFormat<Text, Writable>
 {
+  public static final Log LOG = LogFactory.getLog( LuceneOutputFormat.class );
+
   public FileSystem fs;
   public JobConf job;
   public Path temp;
@@ -58,7 +98,64 @@ public class LuceneOutputFormat extends FileOutputFormat<Text, Text>
   
   public IndexWriter indexer;
 
-  public RecordWriter<Text, Text> getRecordWriter( final FileSystem fs,
+  // One for each shard.  If not sharded, the same as the above.
+  public Path[]        temps;
+  public Path[]        perms;
+  public IndexWriter[] indexers;
+
+  // In incremental mode, the existing index of each shard, if any.
+  public IndexReader[] readers;
+
+  // In incremental mode, whether the index of each shard was copied
+  // into a local directory, and so must be swapped into ${perm}.
+  public boolean[]     swaps;
+
+  public static final String MANIFEST = "manifest";
+
+  // Keys of the commit user data recorded in incremental mode.
+  public static final String COMMIT_INPUTS = "jbs.inputs";
+  public static final String COMMIT_TIME   = "jbs.time";
+
+  /**
+   * In incremental mode the output directory is expected to exist
+   * already, so only check that it's set, and that streaming upload
+   * is not also enabled.  Since the existing index is updated in
+   * place, rather than in the task's work directory, speculative
+   * execution of the reducers is turned off.
+   */
+  public void checkOutputSpecs( FileSystem ignored, JobConf job )
+    throws IOException
+  {
+    if ( ! job.getBoolean( "jbs.lucene.incremental", false ) )
+      {
+        super.checkOutputSpecs( ignored, job );
+
+        return ;
+      }
+
+    if ( job.getBoolean( "jbs.lucene.upload.streaming", false ) )
+      {
+        throw new InvalidJobConfException( "jbs.lucene.upload.streaming cannot be used with jbs.lucene.incremental" );
+      }
+
+    if ( FileOutputFormat.getOutputPath( job ) == null )
+      {
+        throw new InvalidJobConfException( "Output directory not set in JobConf." );
+      }
+
+    job.setReduceSpeculativeExecution( false );
+  }
+
+  /**
+   * Returns the name of the directory of the given shard, within the
+   * task's output directory.
+   */
+  public static String getShardName( int shard )
+  {
+    return String.format( "shard-%05d", shard );
+  }
+
+  public RecordWriter<Text, Writable> getRecordWriter( final FileSystem fs,
                                                    final JobConf job,
                                                    final String name,
                                                    final Progressable progress )
@@ -68,44 +165,366 @@ public class LuceneOutputFormat extends FileOutputFormat<Text, Text>
     this.fs   = FileSystem.get(job);
     this.job  = job;
     this.perm = new Path( FileOutputFormat.getOutputPath( job ), name );
-    this.temp = job.getLocalPath( "index/_"  + (new Random().nextInt()) );
 
-    this.fs.delete( perm, true ); // delete old, if any
+    boolean incremental = job.getBoolean( "jbs.lucene.incremental", false );
+    if ( ! incremental )
+      {
+        this.fs.delete( perm, true ); // delete old, if any
+      }
+    else
+      {
+        // The output is not finished until close() touches it again.
+        this.fs.delete( new Path( perm, "done" ), false );
+      }
+
+    int shards = Math.max( 1, job.getInt( "jbs.lucene.shards", 1 ) );
+
+    this.temps    = new Path[shards];
+    this.perms    = new Path[shards];
+    this.indexers = new IndexWriter[shards];
+    this.readers  = new IndexReader[shards];
+    this.swaps    = new boolean[shards];
+    for ( int i = 0 ; i < shards ; i++ )
+      {
+        this.perms[i]    = shards == 1 ? perm : new Path( perm, getShardName( i ) );
+        this.temps[i]    = job.getLocalPath( "index/_"  + (new Random().nextInt()) );
+        this.indexers[i] = openIndexWriter( i );
+
+        // The IndexWriter doesn't commit until it's closed, so this
+        // is the index as it was before this run.
+        if ( incremental && IndexReader.indexExists( this.indexers[i].getDirectory( ) ) )
+          {
+            this.readers[i] = IndexReader.open( this.indexers[i].getDirectory( ), true );
+          }
+      }
+
+    this.temp    = this.temps[0];
+    this.indexer = this.indexers[0];
+
+    LuceneDocumentWriter docWriter = buildDocumentWriter( job, indexer );
 
-    indexer = new IndexWriter( new NIOFSDirectory( new File( fs.startLocalOutput( perm, temp ).toString( ) ) ),
-                               new KeywordAnalyzer( ),
-                               IndexWriter.MaxFieldLength.UNLIMITED );
+    docWriter.setIncremental( incremental );
+    docWriter.setExisting   ( this.readers );
+
+    if ( shards > 1 )
+      {
+        docWriter.setShards( this.indexers, job.get( "jbs.lucene.shard.by", "url" ) );
+      }
+    
+    return new LuceneRecordWriter( docWriter, job.getInt( "jbs.lucene.threads", 1 ) );
+  }
+
+  /**
+   * Open an IndexWriter in the local ${temp} directory, which will be
+   * copied to ${perm} in HDFS when it's closed.  Or, if
+   * <code>jbs.lucene.upload.streaming</code> is set, in an
+   * UploadingDirectory which copies each index file to ${perm} as
+   * soon as it's written.
+   *
+   * In incremental mode, an existing index in ${perm} is copied into
+   * ${temp} first, and the IndexWriter appends to it.  Streaming
+   * upload is not allowed in incremental mode, see
+   * <code>checkOutputSpecs()</code>.
+   *
+   * The <code>jbs.lucene.maxRAMBufferSize</code> is for all the
+   * shards together, so each IndexWriter gets an equal share of it.
+   */
+  protected IndexWriter openIndexWriter( int shard )
+    throws IOException
+  {
+    Path perm = this.perms[shard];
+    Path temp = this.temps[shard];
+
+    boolean incremental = job.getBoolean( "jbs.lucene.incremental", false );
+
+    Directory directory;
+    if ( job.getBoolean( "jbs.lucene.upload.streaming", false ) )
+      {
+        directory = new UploadingDirectory( new File( temp.toString( ) ), fs, perm );
+      }
+    else
+      {
+        Path local = fs.startLocalOutput( perm, temp );
+
+        // If the local directory is ${perm} itself, there's nothing
+        // to copy, nor to swap when it's closed.
+        this.swaps[shard] = incremental && ! local.equals( perm );
+
+        if ( this.swaps[shard] ) fetchIndex( perm, local );
+
+        directory = new NIOFSDirectory( new File( local.toString( ) ) );
+      }
+
+    int shards = Math.max( 1, job.getInt( "jbs.lucene.shards", 1 ) );
+
+    IndexWriter indexer = new IndexWriter( directory,
+                                           new KeywordAnalyzer( ),
+                                           IndexWriter.MaxFieldLength.UNLIMITED );
     
     indexer.setMergeFactor      ( job.getInt("jbs.lucene.mergeFactor", 100) );
     indexer.setMaxMergeDocs     ( job.getInt("jbs.lucene.maxMergeDocs", Integer.MAX_VALUE) );
-    indexer.setRAMBufferSizeMB  ( job.getInt("jbs.lucene.maxRAMBufferSize", 512) );
+    indexer.setRAMBufferSizeMB  ( (double) job.getInt("jbs.lucene.maxRAMBufferSize", 512) / shards );
     indexer.setTermIndexInterval( job.getInt("jbs.lucene.termIndexInterval", IndexWriterConfig.DEFAULT_TERM_INDEX_INTERVAL) );
     indexer.setMaxFieldLength   ( job.getInt("jbs.lucene.max.tokens", Integer.MAX_VALUE) );
     indexer.setUseCompoundFile  ( false );
     indexer.setSimilarity       ( new WebSimilarity( ) );
 
-    LuceneDocumentWriter docWriter = buildDocumentWriter( job, indexer );
-    
-    return new LuceneRecordWriter( docWriter );
+    return indexer;
+  }
+
+  /**
+   * Copy the index files in ${perm}, if any, into the given local
+   * directory.
+   */
+  protected void fetchIndex( Path perm, Path local )
+    throws IOException
+  {
+    Path next = perm.suffix( ".new" );
+    Path old  = perm.suffix( ".old" );
+
+    // If the last run stopped in the middle of swapping in the new
+    // copy, the new copy is complete, so finish the swap.
+    if ( ! fs.exists( perm ) && fs.exists( old ) && fs.exists( next ) )
+      {
+        LOG.warn( "Completing interrupted swap of: " + next + " to: " + perm );
+
+        rename( next, perm );
+        fs.delete( old, true );
+      }
+
+    if ( ! fs.exists( perm ) ) return ;
+
+    // Use the raw local filesystem so no checksum files are written
+    // into the index directory.
+    FileSystem localFs = FileSystem.getLocal( job ).getRawFileSystem( );
+    localFs.mkdirs( local );
+
+    int count = 0;
+    for ( FileStatus status : fs.listStatus( perm ) )
+      {
+        String name = status.getPath( ).getName( );
+        if ( status.isDir( ) || "done".equals( name ) || MANIFEST.equals( name ) ) continue ;
+
+        FileUtil.copy( fs, status.getPath( ), localFs, new Path( local, name ), false, job );
+        count++;
+      }
+
+    LOG.info( "Copied " + count + " existing index files from: " + perm );
+  }
+
+  /**
+   * Optimize (if configured) and close the index of the given shard,
+   * then copy it (or the rest of it) from ${temp} to HDFS.  Returns the number of
+   * documents in it.  Progress is reported while waiting for the
+   * uploads to finish.
+   */
+  protected int closeShard( int shard, Progressable progress )
+    throws IOException
+  {
+    IndexWriter indexer = this.indexers[shard];
+
+    if ( this.readers[shard] != null )
+      {
+        this.readers[shard].close( );
+      }
+
+    if ( job.getBoolean( "jbs.lucene.optimize", true ) )
+      {
+        indexer.optimize();
+      }
+    if ( job.getBoolean( "jbs.lucene.incremental", false ) )
+      {
+        Map<String,String> commitData = new HashMap<String,String>( );
+        commitData.put( COMMIT_INPUTS, job.get( "jbs.merge.inputs", job.get( "mapred.input.dir", "" ) ) );
+        commitData.put( COMMIT_TIME,   Long.toString( System.currentTimeMillis( ) ) );
+
+        indexer.commit( commitData );
+      }
+    int numDocs = indexer.numDocs( );
+
+    Directory directory = indexer.getDirectory( );
+    indexer.close();
+
+    if ( directory instanceof UploadingDirectory )
+      {
+        // Most of the files are already in HDFS, just wait for the
+        // last ones, then remove the local copy.
+        ((UploadingDirectory) directory).finish( progress );
+        directory.close( );
+
+        FileUtil.fullyDelete( new File( this.temps[shard].toString( ) ) );
+      }
+    else if ( this.swaps[shard] )
+      {
+        swapIndex( this.perms[shard], this.temps[shard] );
+      }
+    else
+      {
+        fs.completeLocalOutput( this.perms[shard], this.temps[shard] );
+      }
+
+    return numDocs;
   }
 
-  public class LuceneRecordWriter implements RecordWriter<Text, Text>
+  /**
+   * Copy the updated index from ${temp} to ${perm}.new, then swap it
+   * with the existing index in ${perm}, which is removed last.  Until
+   * the copy is complete, ${perm} is left as it was, and if the task
+   * fails during the swap, <code>fetchIndex()</code> completes it.
+   * As ${perm}.new and ${perm}.old are outside the task's work
+   * directory, only one attempt of a task may run at a time, see
+   * <code>checkOutputSpecs()</code>.
+   */
+  protected void swapIndex( Path perm, Path temp )
+    throws IOException
+  {
+    Path next = perm.suffix( ".new" );
+    Path old  = perm.suffix( ".old" );
+
+    // Left over from an earlier attempt, if any.
+    fs.delete( next, true );
+    fs.delete( old,  true );
+
+    fs.completeLocalOutput( next, temp );
+
+    if ( fs.exists( perm ) ) rename( perm, old );
+    rename( next, perm );
+
+    fs.delete( old, true );
+  }
+
+  private void rename( Path from, Path to )
+    throws IOException
+  {
+    if ( ! fs.rename( from, to ) )
+      {
+        throw new IOException( "Cannot rename: " + from + " to: " + to );
+      }
+  }
+
+  /**
+   * Write the manifest of the shards, one line per shard with its
+   * directory name and number of documents, separated by a tab.
+   */
+  protected void writeManifest( int[] numDocs )
+    throws IOException
+  {
+    Writer out = new OutputStreamWriter( fs.create( new Path( perm, MANIFEST ) ), "utf-8" );
+    try
+      {
+        out.write( "# jbs.lucene.shard.by=" + job.get( "jbs.lucene.shard.by", "url" ) + "\n" );
+        for ( int i = 0 ; i < numDocs.length ; i++ )
+          {
+            out.write( getShardName( i ) + "\t" + numDocs[i] + "\n" );
+          }
+      }
+    finally
+      {
+        out.close( );
+      }
+  }
+
+  public class LuceneRecordWriter implements RecordWriter<Text, Writable>
   {
     LuceneDocumentWriter docWriter;
+    ThreadPoolExecutor   executor;
+
+    // The first error thrown by a worker thread, if any.
+    volatile Throwable   error;
 
     public LuceneRecordWriter( LuceneDocumentWriter docWriter )
       throws IOException
+    {
+      this( docWriter, 1 );
+    }
+
+    public LuceneRecordWriter( LuceneDocumentWriter docWriter, int threads )
+      throws IOException
     {
       this.docWriter = docWriter;
+
+      if ( threads > 1 )
+        {
+          int queueDepth = Math.max( 1, job.getInt( "jbs.lucene.queueDepth", 4 * threads ) );
+
+          // When the queue is full, the reducer thread runs the task
+          // itself, which keeps it from reading ahead any further.
+          this.executor = new ThreadPoolExecutor( threads, threads, 
+                                                  0L, TimeUnit.MILLISECONDS,
+                                                  new ArrayBlockingQueue<Runnable>( queueDepth ),
+                                                  new ThreadFactory( )
+                                                  {
+                                                    private int count = 0;
+                                                    
+                                                    public synchronized Thread newThread( Runnable r )
+                                                    {
+                                                      Thread t = new Thread( r, "jbs-lucene-" + (count++) );
+                                                      t.setDaemon( true );
+                                                      return t;
+                                                    }
+                                                  },
+                                                  new ThreadPoolExecutor.CallerRunsPolicy( ) );
+        }
     }
 
     /**
-     * Delegate to docWriter.
+     * Delegate to docWriter, either directly or via the worker threads.
      */
-    public void write( Text key, Text value )
+    public void write( Text key, Writable value )
       throws IOException
     {
-      this.docWriter.add( key.toString(), new Document( value.toString() ) );
+      if ( this.executor == null )
+        {
+          this.docWriter.add( key.toString(), Merge.fromWritable( value ) );
+
+          return ;
+        }
+
+      checkError( );
+
+      // The key and value objects are re-used by the caller, so
+      // we must copy them before handing them off.
+      final String   k = key.toString();
+      final Writable v;
+      if ( value instanceof Document )
+        {
+          Document copy = new Document( );
+          copy.merge( (Document) value );
+          v = copy;
+        }
+      else
+        {
+          v = new Text( (Text) value );
+        }
+
+      this.executor.execute( new Runnable( )
+        {
+          public void run( )
+          {
+            if ( error != null ) return ;
+
+            try
+              {
+                docWriter.add( k, Merge.fromWritable( v ) );
+              }
+            catch ( Throwable t )
+              {
+                if ( error == null ) error = t;
+              }
+          }
+        } );
+    }
+
+    /**
+     * If a worker thread failed, re-throw its error.
+     */
+    private void checkError( )
+      throws IOException
+    {
+      if ( this.error != null )
+        {
+          throw new IOException( "Error adding document to index", this.error );
+        }
     }
 
     /**
@@ -115,17 +534,100 @@ public class LuceneOutputFormat extends FileOutputFormat<Text, Text>
     public void close( Reporter reporter )
       throws IOException
     {
-      // Optimize and close the IndexWriter
-      if ( job.getBoolean( "jbs.lucene.optimize", true ) )
+      // Wait for the worker threads to finish adding the documents.
+      if ( this.executor != null )
+        {
+          this.executor.shutdown( );
+          try
+            {
+              while ( ! this.executor.awaitTermination( 10, TimeUnit.SECONDS ) )
+                {
+                  reporter.progress( );
+                }
+            }
+          catch ( InterruptedException ie )
+            {
+              this.executor.shutdownNow( );
+              
+              throw new IOException( "Interrupted waiting for documents to be indexed", ie );
+            }
+
+          checkError( );
+        }
+
+      docWriter.reportFilterCounters( reporter );
+      docWriter.reportHandlerCounters( reporter );
+      docWriter.closeHandlers( );
+
+      // Optimize and close the IndexWriter(s) and copy them from
+      // ${temp} to HDFS.
+      if ( indexers.length == 1 )
+        {
+          closeShard( 0, reporter );
+        }
+      else
         {
-          indexer.optimize();
+          closeShards( reporter );
         }
-      indexer.close();
-      
-      // Copy the index from ${temp} to HDFS and touch a "done" file.
-      fs.completeLocalOutput( perm, temp );
+
+      // Touch a "done" file.
       fs.createNewFile( new Path( perm, "done" ) );
     }
+
+    /**
+     * Close the shards in parallel, then write the manifest.
+     */
+    private void closeShards( final Reporter reporter )
+      throws IOException
+    {
+      ExecutorService closer = Executors.newFixedThreadPool( indexers.length );
+      try
+        {
+          List<Future<Integer>> results = new ArrayList<Future<Integer>>( );
+          for ( int i = 0 ; i < indexers.length ; i++ )
+            {
+              final int shard = i;
+              results.add( closer.submit( new Callable<Integer>( )
+                {
+                  public Integer call( ) throws IOException
+                  {
+                    return closeShard( shard, reporter );
+                  }
+                } ) );
+            }
+
+          int[] numDocs = new int[indexers.length];
+          for ( int i = 0 ; i < numDocs.length ; i++ )
+            {
+              while ( true )
+                {
+                  try
+                    {
+                      numDocs[i] = results.get( i ).get( 10, TimeUnit.SECONDS );
+                      break;
+                    }
+                  catch ( TimeoutException te )
+                    {
+                      reporter.progress( );
+                    }
+                }
+            }
+
+          writeManifest( numDocs );
+        }
+      catch ( InterruptedException ie )
+        {
+          throw new IOException( "Interrupted closing index shards", ie );
+        }
+      catch ( ExecutionException ee )
+        {
+          throw new IOException( "Error closing index shard", ee.getCause( ) );
+        }
+      finally
+        {
+          closer.shutdownNow( );
+        }
+    }
     
   }
   
@@ -152,7 +654,7 @@ public class LuceneOutputFormat extends FileOutputFormat<Text, Text>
 
     int textMaxLength = job.getInt( "jbs.lucene.text.maxlength", TextHandler.MAX_LENGTH );
 
-    Map<String,FieldHandler> handlers = new HashMap<String,FieldHandler>( );
+    Map<String,FieldHandler> handlers = new LinkedHashMap<String,FieldHandler>( );
     handlers.put( "url"        , new SimpleFieldHandler( "url",         Field.Store.YES, Field.Index.ANALYZED ) );
     handlers.put( "digest"     , new SimpleFieldHandler( "digest",      Field.Store.YES, Field.Index.NO       ) );
     handlers.put( "title"      , new SimpleFieldHandler( "title",       Field.Store.YES, Field.Index.ANALYZED ) );
@@ -161,8 +663,8 @@ public class LuceneOutputFormat extends FileOutputFormat<Text, Text>
     handlers.put( "length"     , new SimpleFieldHandler( "length",      Field.Store.YES, Field.Index.NO ) );
     handlers.put( "collection" , new SimpleFieldHandler( "collection",  Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS ) );
     handlers.put( "code"       , new SimpleFieldHandler( "code",        Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS ) );
-    handlers.put( "content"    , new TextHandler( "content", textMaxLength ) );
-    handlers.put( "boiled"     , new TextHandler( "boiled" , textMaxLength ) );
+    handlers.put( "content"    , buildTextHandler( job, "content", textMaxLength ) );
+    handlers.put( "boiled"     , buildTextHandler( job, "boiled" , textMaxLength ) );
     handlers.put( "date"       , new DateHandler( ) );
     handlers.put( "site"       , new SiteHandler( idnHelper ) );
     handlers.put( "type"       , new TypeHandler( normalizer ) );  
@@ -178,20 +680,7 @@ public class LuceneOutputFormat extends FileOutputFormat<Text, Text>
    */
   protected TypeNormalizer buildTypeNormalizer( JobConf job )
   {
-    TypeNormalizer normalizer = new TypeNormalizer( );
-
-    Map<String,String> aliases = normalizer.parseAliases( job.get( "jbs.typeNormalizer.aliases", "" ) );
-
-    if ( job.getBoolean( "jbs.typeNormalizer.useDefaults", true ) )
-      {
-        Map<String,String> defaults = normalizer.getDefaultAliases( );
-        defaults.putAll( aliases );
-
-        aliases = defaults;
-      }
-    normalizer.setAliases( aliases );
-
-    return normalizer;
+    return TypeNormalizer.build( job );
   }
 
   /**
@@ -199,21 +688,23 @@ public class LuceneOutputFormat extends FileOutputFormat<Text, Text>
    */
   protected TypeFilter buildTypeFilter( JobConf job, TypeNormalizer normalizer )
   {
-    TypeFilter typeFilter = new TypeFilter( );
+    return TypeFilter.build( job, normalizer );
+  }
 
-    Set<String> allowedTypes = typeFilter.parse( job.get( "jbs.typeFilter.allowed", "" ) );
-    
-    if ( job.getBoolean( "jbs.typeFilter.useDefaults", true ) )
-      {
-        Set<String> defaults = typeFilter.getDefaultAllowed( );
-        defaults.addAll( allowedTypes );
-        
-        allowedTypes = defaults;
-      }
-    typeFilter.setAllowed( allowedTypes );
-    typeFilter.setTypeNormalizer( normalizer );
-    
-    return typeFilter;
+  /**
+   * Build a TextHandler for the given field, using the compression
+   * settings in the JobConf.  The level can be set for each field by
+   * appending the field name to the property name.
+   */
+  protected TextHandler buildTextHandler( JobConf job, String name, int maxLength )
+  {
+    TextHandler handler = new TextHandler( name, maxLength );
+
+    handler.setCompressThreshold( job.getInt( "jbs.lucene.text.compress.threshold", 0 ) );
+    handler.setCompressLevel    ( job.getInt( "jbs.lucene.text.compress.level." + name,
+                                              job.getInt( "jbs.lucene.text.compress.level", java.util.zip.Deflater.BEST_COMPRESSION ) ) );
+
+    return handler;
   }
 
   /**
@@ -245,6 +736,8 @@ public class LuceneOutputFormat extends FileOutputFormat<Text, Text>
         helper.addRules( new StringReader( moreRules ) );
       }
 
+    helper.setCacheSize( job.getInt( "jbs.idnHelper.cacheSize", 10000 ) );
+
     return helper;
   }
 
@@ -65,7 +65,7 @@ public class NutchWAXOutputFormat extends LuceneOutputFormat
 
     int textMaxLength = job.getInt( "jbs.lucene.text.maxlength", TextHandler.MAX_LENGTH );
 
-    Map<String,FieldHandler> handlers = new HashMap<String,FieldHandler>( );
+    Map<String,FieldHandler> handlers = new LinkedHashMap<String,FieldHandler>( );
     handlers.put( "url"        , new SimpleFieldHandler( "url",         Field.Store.YES, Field.Index.ANALYZED ) );
     handlers.put( "digest"     , new SimpleFieldHandler( "digest",      Field.Store.YES, Field.Index.NO       ) );
     handlers.put( "title"      , new SimpleFieldHandler( "title",       Field.Store.YES, Field.Index.ANALYZED ) );
@@ -73,8 +73,8 @@ public class NutchWAXOutputFormat extends LuceneOutputFormat
     handlers.put( "description", new SimpleFieldHandler( "description", Field.Store.YES, Field.Index.ANALYZED ) );
     handlers.put( "length"     , new SimpleFieldHandler( "length",      Field.Store.YES, Field.Index.NO ) );
     handlers.put( "code"       , new SimpleFieldHandler( "code",        Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS ) );
-    handlers.put( "content"    , new TextHandler( "content", textMaxLength ) );
-    handlers.put( "boiled"     , new TextHandler( "boiled" , textMaxLength ) );
+    handlers.put( "content"    , buildTextHandler( job, "content", textMaxLength ) );
+    handlers.put( "boiled"     , buildTextHandler( job, "boiled" , textMaxLength ) );
     handlers.put( "date"       , new DateHandler( ) );
     handlers.put( "site"       , new NutchWAXSiteHandler( ) );
     handlers.put( "type"       , new TypeHandler( normalizer ) );  
@@ -31,6 +31,7 @@ import org.archive.jbs.util.*;
  */ 
 public class NutchWAXSiteHandler implements FieldHandler
 {
+  private ReusableField field = new ReusableField( "site", Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS );
 
   public NutchWAXSiteHandler( )
   {
@@ -38,21 +39,17 @@ public class NutchWAXSiteHandler implements FieldHandler
 
   public void handle( org.apache.lucene.document.Document doc, Document document )
   {
-    try
-      {
-        URL u = new URL( document.get( "url" ) );
-
-        String host = IDN.toUnicode( u.getHost(), IDN.ALLOW_UNASSIGNED );
-        
-        host = host.replaceAll( "^www[0-9]*.", "" );
-
-        doc.add( new Field( "site", host, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS) );
-      }
-    catch ( MalformedURLException mue )
-      {
-        // Very strange for the URL of a crawled page to be malformed.
-        // But, in that case, just skip it.
-      }
+    URLScanner scanner = URLScanner.get( );
+
+    // Very strange for the URL of a crawled page to be malformed.
+    // But, in that case, just skip it.
+    if ( ! scanner.scan( document.get( "url" ) ) || ! scanner.hasAuthority( ) ) return ;
+
+    String host = IDN.toUnicode( scanner.getHost( ), IDN.ALLOW_UNASSIGNED );
+
+    host = host.replaceAll( "^www[0-9]*.", "" );
+
+    doc.add( field.get( host ) );
   }
 
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.lucene;
+
+import org.apache.lucene.document.*;
+
+/**
+ * A Lucene Field which is created once per thread and then given a
+ * new value for each document, rather than being constructed anew.
+ * Lucene is done with a Field once addDocument() returns, so it can
+ * be re-used for the next document in the same thread.
+ *
+ * A ReusableField must be added at most once to a document, so a
+ * FieldHandler which adds several values of a field cannot use one.
+ */
+public class ReusableField extends ThreadLocal<Field>
+{
+  private String      name;
+  private Field.Store store;
+  private Field.Index index;
+
+  /**
+   * A binary, stored field.
+   */
+  public ReusableField( String name )
+  {
+    this( name, Field.Store.YES, null );
+  }
+
+  public ReusableField( String name, Field.Store store, Field.Index index )
+  {
+    this.name  = name;
+    this.store = store;
+    this.index = index;
+  }
+
+  /**
+   * Returns this thread's Field, with the given value.
+   */
+  public Field get( String value )
+  {
+    Field field = get( );
+    if ( field == null )
+      {
+        field = new Field( this.name, value, this.store, this.index );
+        set( field );
+      }
+    else
+      {
+        field.setValue( value );
+      }
+    return field;
+  }
+
+  /**
+   * Returns this thread's binary Field, with the given value.  The
+   * value is not copied, so must not be modified until the document
+   * is added.
+   */
+  public Field get( byte[] value )
+  {
+    Field field = get( );
+    if ( field == null )
+      {
+        field = new Field( this.name, value, this.store );
+        set( field );
+      }
+    else
+      {
+        field.setValue( value );
+      }
+    return field;
+  }
+
+}
@@ -36,6 +36,8 @@ public class SimpleFieldHandler implements FieldHandler
   Field.Store store;
   Field.Index index;
 
+  ReusableField field;
+
   public SimpleFieldHandler( String name, Field.Store store, Field.Index index )
   {
     this( name, name, store, index );
@@ -47,6 +49,7 @@ public class SimpleFieldHandler implements FieldHandler
     this.key   = key;
     this.store = store;
     this.index = index;
+    this.field = new ReusableField( name, store, index );
   }
 
   public void handle( org.apache.lucene.document.Document luceneDocument, Document document )
@@ -58,7 +61,7 @@ public class SimpleFieldHandler implements FieldHandler
         return ;
       }
 
-    luceneDocument.add( new Field( name, value, store, index ) );
+    luceneDocument.add( field.get( value ) );
   }
 
 }
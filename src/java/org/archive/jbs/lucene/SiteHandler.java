@@ -20,6 +20,8 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 
+import org.apache.hadoop.mapred.Reporter;
+
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
 
@@ -36,6 +38,8 @@ import org.archive.jbs.util.*;
  */ 
 public class SiteHandler implements FieldHandler
 {
+  private ReusableField field = new ReusableField( "site", Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS );
+
   IDNHelper helper;
 
   public SiteHandler( )
@@ -50,31 +54,30 @@ public class SiteHandler implements FieldHandler
 
   public void handle( org.apache.lucene.document.Document doc, Document document )
   {
-    try
-      {
-        URL u = new URL( document.get( "url" ) );
-
-        String domain = this.helper.getDomain( u );
-
-        // If we cannot determine the domain, use the full hostname.
-        // This can happen if the URL uses IP address rather than
-        // hostname.
-        if ( domain == null ) 
-          {
-            domain = u.getHost( );
-          }
-        else
-          {
-            domain = IDN.toUnicode( domain, IDN.ALLOW_UNASSIGNED );
-          }
-
-        doc.add( new Field( "site", domain, Field.Store.NO, Field.Index.NOT_ANALYZED_NO_NORMS) );
-      }
-    catch ( MalformedURLException mue )
-      {
-        // Very strange for the URL of a crawled page to be malformed.
-        // But, in that case, just skip it.
-      }
+    URLScanner scanner = URLScanner.get( );
+
+    // Very strange for the URL of a crawled page to be malformed.
+    // But, in that case, just skip it.
+    if ( ! scanner.scan( document.get( "url" ) ) || ! scanner.hasAuthority( ) ) return ;
+
+    String host = scanner.getHost( );
+
+    // If we cannot determine the domain, use the full hostname.
+    // This can happen if the URL uses IP address rather than
+    // hostname.
+    String domain = this.helper.getUnicodeDomain( host );
+    if ( domain == null ) domain = host;
+
+    doc.add( field.get( domain ) );
+  }
+
+  /**
+   * Add the IDNHelper's cache hits and misses to the Hadoop counters.
+   */
+  public void reportCounters( Reporter reporter )
+  {
+    reporter.incrCounter( "jbs.idnHelper", "cacheHits",   this.helper.getCacheHits  ( ) );
+    reporter.incrCounter( "jbs.idnHelper", "cacheMisses", this.helper.getCacheMisses( ) );
   }
 
 }
@@ -19,9 +19,15 @@ package org.archive.jbs.lucene;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.apache.hadoop.mapred.Reporter;
 
 import org.apache.lucene.document.*;
 import org.apache.lucene.index.*;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.UnicodeUtil;
 
 import org.archive.jbs.Document;
 
@@ -39,7 +45,17 @@ import org.archive.jbs.Document;
  * The field is indexed and stored.  It is stored in compressed form
  * if the compression actually makes it smaller.  For very short
  * strings (like 1-3 words), the compressed form might actually be
- * larger.
+ * larger.  So text shorter than the compression threshold is stored
+ * as-is without trying, as is all text if the compression level is
+ * Deflater.NO_COMPRESSION.  The compressed form is the same as
+ * CompressionTools.compressString() at the same level, so it can be
+ * read with CompressionTools.decompressString().
+ *
+ * Each thread has its own Deflater and output buffer, which are
+ * re-used for every field.  The Deflaters hold native memory, so they
+ * are ended by <code>close()</code> when the handler is done with.
+ * The number of bytes compressed and the time taken are counted, to
+ * be reported as Hadoop counters.
  */
 public class TextHandler implements FieldHandler
 {
@@ -48,6 +64,37 @@ public class TextHandler implements FieldHandler
   private String name;
   private String key;
   private int maxLength;
+  private int compressThreshold = 0;
+  private int compressLevel     = Deflater.BEST_COMPRESSION;
+
+  private ReusableField indexed;
+  private ReusableField stored;
+  private ReusableField storedCompressed;
+
+  private AtomicLong skipped    = new AtomicLong( );
+  private AtomicLong compressed = new AtomicLong( );
+  private AtomicLong bytesIn    = new AtomicLong( );
+  private AtomicLong bytesOut   = new AtomicLong( );
+  private AtomicLong nanos      = new AtomicLong( );
+
+  // The Compressor of every thread which has used this handler, so
+  // that close() can end their Deflaters.
+  private List<Compressor> allCompressors = new ArrayList<Compressor>( );
+
+  private ThreadLocal<Compressor> compressors = new ThreadLocal<Compressor>( )
+    {
+      protected Compressor initialValue( )
+      {
+        Compressor c = new Compressor( );
+
+        synchronized ( allCompressors )
+          {
+            allCompressors.add( c );
+          }
+
+        return c;
+      }
+    };
 
   public TextHandler( String name )
   {
@@ -69,6 +116,26 @@ public class TextHandler implements FieldHandler
     this.name = name;
     this.key  = key;
     this.maxLength = maxLength;
+
+    this.indexed          = new ReusableField( name, Field.Store.NO,  Field.Index.ANALYZED );
+    this.stored           = new ReusableField( name, Field.Store.YES, Field.Index.NO );
+    this.storedCompressed = new ReusableField( name );
+  }
+
+  /**
+   * The name of the Lucene field.
+   */
+  public String getName( )
+  {
+    return this.name;
+  }
+
+  /**
+   * The Document property the text comes from.
+   */
+  public String getKey( )
+  {
+    return this.key;
   }
 
   public int getMaxLength( )
@@ -80,6 +147,37 @@ public class TextHandler implements FieldHandler
   {
     this.maxLength = maxLength;
   }
+
+  public int getCompressThreshold( )
+  {
+    return this.compressThreshold;
+  }
+
+  /**
+   * Text shorter than this many characters is stored uncompressed.
+   */
+  public void setCompressThreshold( int compressThreshold )
+  {
+    this.compressThreshold = compressThreshold;
+  }
+
+  public int getCompressLevel( )
+  {
+    return this.compressLevel;
+  }
+
+  /**
+   * Deflate level, from Deflater.NO_COMPRESSION (0), meaning do not
+   * compress at all, to Deflater.BEST_COMPRESSION (9).
+   */
+  public void setCompressLevel( int compressLevel )
+  {
+    if ( compressLevel < Deflater.NO_COMPRESSION || compressLevel > Deflater.BEST_COMPRESSION )
+      {
+        throw new IllegalArgumentException( "Invalid compression level: " + compressLevel );
+      }
+    this.compressLevel = compressLevel;
+  }
   
   public void handle( org.apache.lucene.document.Document doc, Document document )
   {
@@ -110,19 +208,145 @@ public class TextHandler implements FieldHandler
           }
       }
     
-    doc.add( new Field( name, text, Field.Store.NO, Field.Index.ANALYZED ) );
-    
-    byte[] compressed = CompressionTools.compressString( text );
+    doc.add( indexed.get( text ) );
     
+    byte[] compressed = null;
+    if ( text.length( ) >= this.compressThreshold && this.compressLevel != Deflater.NO_COMPRESSION )
+      {
+        compressed = compress( text );
+      }
+    else
+      {
+        this.skipped.incrementAndGet( );
+      }
+
     // Store the shorter of the two.
-    if ( compressed.length < text.length() )
+    if ( compressed != null )
       {
-        doc.add( new Field( name, compressed, Field.Store.YES ) );    
+        doc.add( storedCompressed.get( compressed ) );
       }
     else
       {
-        doc.add( new Field( name, text, Field.Store.YES, Field.Index.NO ) );
+        doc.add( stored.get( text ) );
+      }
+  }
+
+  /**
+   * Compress the text, returning <code>null</code> if the compressed
+   * form is not shorter than the text.
+   */
+  private byte[] compress( String text )
+  {
+    long start = System.nanoTime( );
+
+    Compressor c = compressors.get( );
+
+    UnicodeUtil.UTF16toUTF8( text, 0, text.length( ), c.utf8 );
+
+    Deflater deflater = c.getDeflater( this.compressLevel );
+    deflater.setInput( c.utf8.result, 0, c.utf8.length );
+    deflater.finish( );
+
+    // Stop as soon as the output is as long as the text, since it
+    // won't be stored anyway.
+    int length = 0;
+    while ( ! deflater.finished( ) && length < text.length( ) )
+      {
+        if ( length == c.buffer.length )
+          {
+            c.buffer = ArrayUtil.grow( c.buffer, length + 1 );
+          }
+        length += deflater.deflate( c.buffer, length, c.buffer.length - length );
+      }
+
+    byte[] compressed = null;
+    if ( deflater.finished( ) && length < text.length( ) )
+      {
+        compressed = Arrays.copyOf( c.buffer, length );
+
+        this.compressed.incrementAndGet( );
+      }
+
+    this.bytesIn .addAndGet( c.utf8.length );
+    this.bytesOut.addAndGet( compressed != null ? length : c.utf8.length );
+    this.nanos   .addAndGet( System.nanoTime( ) - start );
+
+    return compressed;
+  }
+
+  /**
+   * Add the compression counts to the Hadoop counters.  The
+   * compression ratio is bytesOut / bytesIn, which only covers the
+   * text compression was tried on, counting the text which did not
+   * get any smaller as its UTF-8 length.  The text skipped by the
+   * threshold, or because the level is Deflater.NO_COMPRESSION, is
+   * only counted by "skipped".
+   */
+  public void reportCounters( Reporter reporter )
+  {
+    reporter.incrCounter( "jbs.text", name + ".skipped",        this.skipped   .get( ) );
+    reporter.incrCounter( "jbs.text", name + ".compressed",     this.compressed.get( ) );
+    reporter.incrCounter( "jbs.text", name + ".bytesIn",        this.bytesIn   .get( ) );
+    reporter.incrCounter( "jbs.text", name + ".bytesOut",       this.bytesOut  .get( ) );
+    reporter.incrCounter( "jbs.text", name + ".compressMillis", this.nanos     .get( ) / 1000000 );
+  }
+
+  /**
+   * End the Deflaters of all the threads, which must be done using
+   * this handler.  If it is used again, new ones are created.
+   */
+  public void close( )
+  {
+    synchronized ( allCompressors )
+      {
+        for ( Compressor c : allCompressors )
+          {
+            c.end( );
+          }
       }
   }
 
+  /**
+   * The Deflater and buffers of a thread.
+   */
+  private static class Compressor
+  {
+    UnicodeUtil.UTF8Result utf8     = new UnicodeUtil.UTF8Result( );
+    byte[]                 buffer   = new byte[1024];
+    Deflater               deflater;
+    int                    level;
+
+    /**
+     * Returns the Deflater, reset for the next field.  It is only
+     * replaced if the level has been changed.
+     */
+    synchronized Deflater getDeflater( int level )
+    {
+      if ( this.deflater != null && this.level != level )
+        {
+          end( );
+        }
+
+      if ( this.deflater == null )
+        {
+          this.deflater = new Deflater( level );
+          this.level    = level;
+        }
+      else
+        {
+          this.deflater.reset( );
+        }
+      return this.deflater;
+    }
+
+    synchronized void end( )
+    {
+      if ( this.deflater != null )
+        {
+          this.deflater.end( );
+          this.deflater = null;
+        }
+    }
+  }
+
 }
@@ -37,6 +37,8 @@ public class TypeHandler implements FieldHandler
 {
   TypeNormalizer normalizer;
 
+  ReusableField field = new ReusableField( "type", Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS );
+
   public TypeHandler( TypeNormalizer normalizer )
   {
     this.normalizer = normalizer;
@@ -51,7 +53,7 @@ public class TypeHandler implements FieldHandler
     // Alternatives might be:
     //  1. Index normalized type, store original type.
     //  2. Index both normalized and original types, store original.
-    doc.add( new Field( "type", type, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS ) );
+    doc.add( field.get( type ) );
   }
 
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.lucene;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Progressable;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.*;
+
+/**
+ * Local Lucene Directory which copies each index file to a
+ * (typically HDFS) destination directory as soon as the file is
+ * written and closed, rather than copying the whole index once it is
+ * complete.  Lucene never modifies a file once it is closed, so it
+ * can be copied right away, overlapping the copying with the
+ * indexing.  Files deleted by Lucene, e.g. segments which have been
+ * merged away, are deleted from the destination too.
+ *
+ * The copies are made, in order, by a single background thread.
+ * Once the IndexWriter is closed, <code>finish()</code> waits for
+ * them, then makes sure the destination matches the local directory.
+ */
+public class UploadingDirectory extends NIOFSDirectory
+{
+  public static final Log LOG = LogFactory.getLog( UploadingDirectory.class );
+
+  private FileSystem      fs;
+  private Path            dest;
+  private ExecutorService uploader;
+
+  // The first error in the background thread, if any.
+  private volatile Throwable error;
+
+  public UploadingDirectory( File local, FileSystem fs, Path dest )
+    throws IOException
+  {
+    super( local );
+
+    this.fs   = fs;
+    this.dest = dest;
+
+    this.fs.mkdirs( dest );
+
+    this.uploader = Executors.newSingleThreadExecutor( new ThreadFactory( )
+      {
+        public Thread newThread( Runnable r )
+        {
+          Thread t = new Thread( r, "jbs-lucene-upload-" + UploadingDirectory.this.dest.getName( ) );
+          t.setDaemon( true );
+          return t;
+        }
+      } );
+  }
+
+  public IndexOutput createOutput( final String name )
+    throws IOException
+  {
+    ensureOpen( );
+    ensureCanWrite( name );
+
+    return new FSIndexOutput( this, name )
+      {
+        private boolean closed = false;
+
+        public void close( )
+          throws IOException
+        {
+          super.close( );
+
+          if ( ! closed )
+            {
+              closed = true;
+              upload( name );
+            }
+        }
+      };
+  }
+
+  public void deleteFile( final String name )
+    throws IOException
+  {
+    super.deleteFile( name );
+
+    submit( new Callable<Void>( )
+      {
+        public Void call( ) throws IOException
+        {
+          fs.delete( new Path( dest, name ), false );
+          return null;
+        }
+      } );
+  }
+
+  /**
+   * Queue the local file to be copied to the destination.
+   */
+  private void upload( final String name )
+  {
+    submit( new Callable<Void>( )
+      {
+        public Void call( ) throws IOException
+        {
+          File file = new File( directory, name );
+
+          // Already deleted by Lucene, nothing to do.
+          if ( ! file.exists( ) ) return null;
+
+          try
+            {
+              fs.copyFromLocalFile( false, true, new Path( file.getAbsolutePath( ) ), new Path( dest, name ) );
+            }
+          catch ( FileNotFoundException fnfe )
+            {
+              // Deleted by Lucene while we were copying it.
+            }
+          return null;
+        }
+      } );
+  }
+
+  private void submit( final Callable<Void> task )
+  {
+    if ( this.error != null ) return ;
+
+    this.uploader.submit( new Runnable( )
+      {
+        public void run( )
+        {
+          if ( error != null ) return ;
+
+          try
+            {
+              task.call( );
+            }
+          catch ( Throwable t )
+            {
+              if ( error == null ) error = t;
+            }
+        }
+      } );
+  }
+
+  /**
+   * Wait for the queued copies to finish, then copy any file which
+   * is missing or different in the destination, and delete any file
+   * which is no longer in the local directory.  To be called after
+   * the IndexWriter is closed.
+   */
+  public void finish( Progressable progress )
+    throws IOException
+  {
+    this.uploader.shutdown( );
+    try
+      {
+        while ( ! this.uploader.awaitTermination( 10, TimeUnit.SECONDS ) )
+          {
+            if ( progress != null ) progress.progress( );
+          }
+      }
+    catch ( InterruptedException ie )
+      {
+        this.uploader.shutdownNow( );
+
+        throw new IOException( "Interrupted waiting for index files to be copied to: " + this.dest, ie );
+      }
+
+    if ( this.error != null )
+      {
+        throw new IOException( "Error copying index files to: " + this.dest, this.error );
+      }
+
+    Map<String,Long> remote = new HashMap<String,Long>( );
+    FileStatus[] statuses = this.fs.listStatus( this.dest );
+    if ( statuses != null )
+      {
+        for ( FileStatus status : statuses )
+          {
+            remote.put( status.getPath( ).getName( ), status.getLen( ) );
+          }
+      }
+
+    int fixed = 0;
+    for ( String name : listAll( ) )
+      {
+        if ( IndexWriter.WRITE_LOCK_NAME.equals( name ) ) continue ;
+
+        Long length = remote.remove( name );
+        if ( length == null || length != fileLength( name ) )
+          {
+            this.fs.copyFromLocalFile( false, true, new Path( new File( directory, name ).getAbsolutePath( ) ), new Path( this.dest, name ) );
+            fixed++;
+          }
+      }
+    for ( String name : remote.keySet( ) )
+      {
+        this.fs.delete( new Path( this.dest, name ), false );
+        fixed++;
+      }
+
+    if ( fixed > 0 )
+      {
+        LOG.info( "Fixed " + fixed + " index files in: " + this.dest );
+      }
+  }
+
+}
@@ -73,6 +73,9 @@ public class PageRank extends Configured implements Tool
     private boolean   ignoreInternalLinks = true;
     private IDNHelper idnHelper;
 
+    // Saved from map(), to report the IDNHelper's cache counts in close().
+    private Reporter  reporter;
+
     /**
      * Configure the job by obtaining local copy of relevant
      * properties as well as building the IDNHelper which is used for
@@ -101,6 +104,8 @@ public class PageRank extends Configured implements Tool
     public void map( Text key, Writable value, OutputCollector<Text, GenericObject> output, Reporter reporter)
       throws IOException
     {
+      this.reporter = reporter;
+
       String[] keyParts = key.toString().split("\\s+");
 
       // Maformed key, should be "url digest".  Skip it.
@@ -126,6 +131,10 @@ public class PageRank extends Configured implements Tool
         {
           uniqueOutlinks = getOutlinks( new Document( ((Text) value).toString() ) );
         }
+      else if ( value instanceof Document )
+        {
+          uniqueOutlinks = getOutlinks( (Document) value );
+        }
       else 
         {
           // Hrmm...what type could it be...
@@ -161,6 +170,21 @@ public class PageRank extends Configured implements Tool
         }
     }
 
+    /**
+     * Add the IDNHelper's cache hits and misses to the Hadoop
+     * counters, same as the indexing jobs do.
+     */
+    public void close( )
+    {
+      LOG.info( "IDNHelper cache hits: " + idnHelper.getCacheHits( ) + " misses: " + idnHelper.getCacheMisses( ) );
+
+      if ( this.reporter != null )
+        {
+          this.reporter.incrCounter( "jbs.idnHelper", "cacheHits",   idnHelper.getCacheHits  ( ) );
+          this.reporter.incrCounter( "jbs.idnHelper", "cacheMisses", idnHelper.getCacheMisses( ) );
+        }
+    }
+
     /**
      * Utility to return the host/domain of a URL, null if URL is
      * malformed.
@@ -326,6 +350,8 @@ public class PageRank extends Configured implements Tool
         helper.addRules( new StringReader( moreRules ) );
       }
 
+    helper.setCacheSize( job.getInt( "jbs.idnHelper.cacheSize", 10000 ) );
+
     return helper;
   }
 
@@ -361,7 +387,7 @@ public class PageRank extends Configured implements Tool
     conf.setOutputFormat(SequenceFileOutputFormat.class);
     
     // The input paths should be either NutchWAX segment directories
-    // or Hadoop SequenceFiles containing JSON-encoded Documents
+    // or Hadoop SequenceFiles containing JSON-encoded or binary Documents
     for ( int i = 1; i < args.length ; i++ )
       {
         Path p = new Path( args[i] );
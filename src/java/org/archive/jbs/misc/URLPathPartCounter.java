@@ -31,6 +31,8 @@ import org.apache.nutch.parse.ParseData;
 import org.apache.nutch.parse.ParseText;
 import org.apache.nutch.metadata.Metadata;
 
+import org.archive.jbs.util.URLScanner;
+
 /**
  * <p>
  *   MapReduce code to count URL path parts for records in a NutchWAX
@@ -56,6 +58,11 @@ public class URLPathPartCounter extends Configured implements Tool
 
   public static class Map extends MapReduceBase implements Mapper<Text, Writable, Text, LongWritable>
   {
+    private static final LongWritable ONE = new LongWritable( 1 );
+
+    private Text       outpath = new Text( );
+    private URLScanner scanner = new URLScanner( );
+
     public void map( Text key, Writable value, OutputCollector<Text, LongWritable> output, Reporter reporter)
       throws IOException
     {
@@ -78,44 +85,36 @@ public class URLPathPartCounter extends Configured implements Tool
 
       if ( urltext == null || urltext.length() == 0 ) return ;
       
-      try
-        {
-          Text outpath = new Text();
-          LongWritable ONE = new LongWritable( 1 );
+      if ( ! scanner.scan( urltext ) || ! scanner.hasAuthority( ) ) return ;
 
-          URI uri = new URI( urltext );
-          
-          String path = uri.getRawPath();
+      String path = scanner.getPath( );
 
-          // Skip empty paths.
-          if ( path.length() == 0 || path.equals( "/" ) )
-            {
-              return ;
-            }
-          
-          // Chop off trailing '/'
-          if ( path.endsWith( "/" ) )
-            {
-              path = path.substring( 0, path.length( ) - 1 );
-            }
-
-          // Collect the full path.
-          outpath.set( path );
-          output.collect( outpath, ONE );
+      // Skip empty paths.
+      if ( path.length() == 0 || path.equals( "/" ) )
+        {
+          return ;
+        }
+      
+      // Chop off trailing '/'
+      if ( path.endsWith( "/" ) )
+        {
+          path = path.substring( 0, path.length( ) - 1 );
+        }
 
-          int endpos = path.length(); 
-          int pos;
-          while ( ( pos = path.lastIndexOf( '/', endpos ) ) > 1 )
-            {
-              outpath.set( path.substring( 0, pos ) );
+      // Collect the full path.
+      outpath.set( path );
+      output.collect( outpath, ONE );
 
-              output.collect( outpath, ONE );
+      int endpos = path.length(); 
+      int pos;
+      while ( ( pos = path.lastIndexOf( '/', endpos ) ) > 1 )
+        {
+          outpath.set( path.substring( 0, pos ) );
 
-              endpos = pos - 1;
-            }          
-                 
-        }
-      catch ( URISyntaxException e ) {  }
+          output.collect( outpath, ONE );
+
+          endpos = pos - 1;
+        }          
     }
   }
   
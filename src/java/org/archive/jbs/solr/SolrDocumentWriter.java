@@ -20,8 +20,13 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.hadoop.io.Text;
+
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
 import org.apache.solr.client.solrj.*;
 import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
 
@@ -30,21 +35,73 @@ import org.archive.jbs.filter.*;
 import org.archive.jbs.util.*;
 
 /**
- * 
+ * Converts Documents into Solr documents and sends them to a Solr
+ * server in batches.
+ *
+ * A batch is sent when it has <code>docBufferSize</code> documents,
+ * or when the (estimated) size of its field values reaches
+ * <code>docBufferBytes</code>.  Batches are sent by a pool of sender
+ * threads, so that up to <code>threads</code> batches can be in
+ * flight at the same time while the caller keeps building the next
+ * one.  If that many batches are already in flight, add() blocks
+ * until one of them is done.
+ *
+ * If a batch is rejected by the server, i.e. it responds with a 4xx
+ * status, it is split in half and each half is re-sent, recursively,
+ * on a background thread, until the bad documents are isolated.  The
+ * documents which cannot be added are logged and skipped.  A failed
+ * batch counts as in flight until this is finished.
+ *
+ * Any other failure, such as a server error or not being able to
+ * reach the server, is not the fault of the documents.  It is
+ * re-thrown by the next call to add() or commit().
  */
 public class SolrDocumentWriter extends DocumentWriterBase
 {
   private SolrServer server;
-  private Queue<SolrInputDocument> docBuffer;
+  private List<SolrInputDocument> docBuffer;
+  private long docBufferBytes;
   private IDNHelper helper;
+
+  private int  maxDocs;
+  private long maxBytes;
+  private int  threads;
+
+  private ExecutorService senders;
+  private ExecutorService bisector;
+  private Semaphore       inFlight;
+
+  // The first unexpected error thrown by a sender thread, if any.
+  private volatile Throwable error;
+
+  private AtomicLong numAdded  = new AtomicLong( );
+  private AtomicLong numFailed = new AtomicLong( );
   
   String collectionHack = "";
 
   public SolrDocumentWriter( URL url, int docBufferSize )
     throws IOException
   {
-    this.server    = new CommonsHttpSolrServer( url );
-    this.docBuffer = new ArrayBlockingQueue<SolrInputDocument>( docBufferSize );
+    this( new CommonsHttpSolrServer( url ), docBufferSize, Long.MAX_VALUE, 1 );
+  }
+
+  /**
+   * Construct a writer which sends the documents to the given server,
+   * in batches of at most <code>docBufferSize</code> documents or
+   * <code>docBufferBytes</code> bytes, with up to
+   * <code>threads</code> batches being sent at the same time.
+   */
+  public SolrDocumentWriter( SolrServer server, int docBufferSize, long docBufferBytes, int threads )
+  {
+    this.server    = server;
+    this.maxDocs   = Math.max( 1, docBufferSize );
+    this.maxBytes  = docBufferBytes > 0 ? docBufferBytes : Long.MAX_VALUE;
+    this.threads   = Math.max( 1, threads );
+    this.docBuffer = new ArrayList<SolrInputDocument>( this.maxDocs );
+
+    this.inFlight  = new Semaphore( this.threads );
+    this.senders   = Executors.newFixedThreadPool( this.threads, new NamedThreadFactory( "jbs-solr-sender-" ) );
+    this.bisector  = Executors.newSingleThreadExecutor( new NamedThreadFactory( "jbs-solr-bisector-" ) );
   }
 
   public void setIDNHelper( IDNHelper helper )
@@ -52,6 +109,11 @@ public class SolrDocumentWriter extends DocumentWriterBase
     this.helper = helper;
   }
 
+  public IDNHelper getIDNHelper( )
+  {
+    return this.helper;
+  }
+
   public void setTypeNormalizer( TypeNormalizer typeNormalizer )
   {
     this.typeNormalizer = typeNormalizer;
@@ -60,12 +122,27 @@ public class SolrDocumentWriter extends DocumentWriterBase
   public void add( String key, Document document )
     throws IOException
   {
-    for ( DocumentFilter filter : filters.values() )
+    add( FPGenerator.std64.fp( key ), document );
+  }
+
+  /**
+   * Add the document with the given key, fingerprinting the UTF-8
+   * bytes of the key directly, without decoding them into a String.
+   * The id is the same as for <code>key.toString()</code>, even if
+   * the key is not well-formed UTF-8.
+   */
+  public void add( Text key, Document document )
+    throws IOException
+  {
+    add( FPGenerator.std64.fp( key ), document );
+  }
+
+  private void add( long id, Document document )
+    throws IOException
+  {
+    if ( ! filters.isAllowed( document ) )
       {
-        if ( ! filter.isAllowed( document ) )
-          {
-            return ;
-          }
+        return ;
       }
     
     // Create Solr XML document, add the fields, then add the document
@@ -73,7 +150,7 @@ public class SolrDocumentWriter extends DocumentWriterBase
     SolrInputDocument doc = new SolrInputDocument();
 
     // Use a 64-bit fingerprint of the URL+digest as the key.
-    doc.addField( "id",  FPGenerator.std64.fp(key) );
+    doc.addField( "id",  id );
     
     // General properties.
     for ( String p : new String[] { "url", "digest", "title", "length", "boiled" } )
@@ -110,12 +187,15 @@ public class SolrDocumentWriter extends DocumentWriterBase
           }
       }
 
-    // Special handling for site (domain) and tld
-    try
+    // Special handling for site (domain) and tld.  Skip them if the
+    // URL is malformed, which would be very strange for the URL of a
+    // crawled page.
+    // The robots filter has already scanned it, with the same scanner.
+    URLScanner scanner = URLScanner.get( );
+    if ( scanner.scan( document.get( "url" ) ) && scanner.hasAuthority( ) )
       {
-        URL u = new URL( document.get( "url" ) );
-
-        String domain = this.helper.getDomain( u );
+        String host   = scanner.getHost( );
+        String domain = this.helper.getUnicodeDomain( host );
         String tld    = null;
 
         // If we cannot determine the domain, use the full hostname.
@@ -123,80 +203,278 @@ public class SolrDocumentWriter extends DocumentWriterBase
         // hostname.
         if ( domain == null ) 
           {
-            domain = u.getHost( );
+            domain = host;
           }
         else
           {
-            domain = IDN.toUnicode( domain, IDN.ALLOW_UNASSIGNED );
             tld    = domain.substring( domain.lastIndexOf( '.' ) + 1 );
           }
 
         doc.addField( "site", domain );
         doc.addField( "tld",  tld    );
       }
-    catch ( MalformedURLException mue )
-      {
-        // Very strange for the URL of a crawled page to be malformed.
-        // But, in that case, just skip it.
-      }
 
     // Special handling for type
     String type = this.typeNormalizer.normalize( document );
     
     doc.addField( "type", type );
 
-    // Finally, add the document.
+    // Finally, add the document to the buffer, sending the buffer
+    // if it's full.
+    this.docBuffer.add( doc );
+    this.docBufferBytes += estimateSize( doc );
+
+    if ( this.docBuffer.size() >= this.maxDocs || this.docBufferBytes >= this.maxBytes )
+      {
+        send( );
+      }
+  }
+
+  /**
+   * Hand the buffered documents to a sender thread, waiting for one
+   * to be available if all the allowed batches are in flight.
+   */
+  private void send( )
+    throws IOException
+  {
+    checkError( );
+
+    if ( this.docBuffer.isEmpty() ) return ;
+
+    final List<SolrInputDocument> batch = this.docBuffer;
+
+    this.docBuffer      = new ArrayList<SolrInputDocument>( this.maxDocs );
+    this.docBufferBytes = 0;
+
     try
       {
-        if ( ! this.docBuffer.offer( doc ) )
-          {
-            // The buffer is full, send the buffered documents.
-            this.server.add( this.docBuffer );
+        this.inFlight.acquire( );
+      }
+    catch ( InterruptedException ie )
+      {
+        throw new IOException( "Interrupted waiting to send documents", ie );
+      }
 
-            // Clear the buffer and add the document.
-            this.docBuffer.clear();
-            this.docBuffer.offer( doc );
-          }
+    this.senders.execute( new Runnable( )
+      {
+        public void run( )
+        {
+          boolean bisecting = false;
+          try
+            {
+              server.add( batch );
+
+              numAdded.addAndGet( batch.size() );
+            }
+          catch ( Throwable t )
+            {
+              if ( isRejection( t ) && batch.size() == 1 )
+                {
+                  // Nothing to bisect, it's the document.
+                  rejected( batch.get( 0 ), t );
+                }
+              else if ( isRejection( t ) )
+                {
+                  // The bisector releases the permit when it's done.
+                  bisect( batch );
+                  bisecting = true;
+                }
+              else if ( error == null )
+                {
+                  error = t;
+                }
+            }
+          finally
+            {
+              if ( ! bisecting ) inFlight.release( );
+            }
+        }
+      } );
+  }
+
+  /**
+   * Returns <code>true</code> if the server responded that the
+   * request was bad, which can be narrowed down to the documents in
+   * it.  Server errors and transport errors are not rejections.
+   */
+  private static boolean isRejection( Throwable t )
+  {
+    if ( ! ( t instanceof SolrException ) ) return false;
+
+    int code = ((SolrException) t).code( );
+
+    return code >= 400 && code < 500;
+  }
+
+  /**
+   * If a sender thread failed with something other than a rejection
+   * by the server, re-throw it.
+   */
+  private void checkError( )
+    throws IOException
+  {
+    if ( this.error != null )
+      {
+        throw new IOException( "Error sending documents to Solr", this.error );
+      }
+  }
+
+  /**
+   * Re-send the failed batch on the bisector thread, splitting it in
+   * half until the bad documents are isolated.
+   */
+  private void bisect( final List<SolrInputDocument> batch )
+  {
+    this.bisector.execute( new Runnable( )
+      {
+        public void run( )
+        {
+          try
+            {
+              int mid = batch.size() / 2;
+
+              resend( batch.subList( 0, mid ) );
+              resend( batch.subList( mid, batch.size() ) );
+            }
+          catch ( Throwable t )
+            {
+              if ( error == null ) error = t;
+            }
+          finally
+            {
+              inFlight.release( );
+            }
+        }
+      } );
+  }
+
+  /**
+   * Send the batch, splitting it in half on a rejection.  Any other
+   * error is thrown, and the rest of the batch is not sent.
+   */
+  private void resend( List<SolrInputDocument> batch )
+    throws Exception
+  {
+    if ( batch.isEmpty() ) return ;
+
+    try
+      {
+        this.server.add( batch );
+
+        this.numAdded.addAndGet( batch.size() );
       }
     catch ( Exception e )
       {
-        // If there is a problem sending the group of documents, try
-        // re-sending them one at a time to identify which ones are
-        // the problems.
-        for ( SolrInputDocument sd : this.docBuffer )
+        if ( ! isRejection( e ) ) throw e;
+
+        if ( batch.size() == 1 )
           {
-            try
-              {
-                this.server.add( sd );
-              }
-            catch ( Exception e2 )
-              {
-                System.err.println( "Error adding: " + key );
-                e2.printStackTrace( System.err );
-              }
+            rejected( batch.get( 0 ), e );
+
+            return ;
           }
 
-        // Now that we've added all that can be added, clear the
-        // buffer and add the most recent doc.
-        this.docBuffer.clear();
-        this.docBuffer.offer( doc );
+        int mid = batch.size() / 2;
+
+        resend( batch.subList( 0, mid ) );
+        resend( batch.subList( mid, batch.size() ) );
       }
   }
 
+  /**
+   * Count and log a document the server rejected.
+   */
+  private void rejected( SolrInputDocument doc, Throwable t )
+  {
+    this.numFailed.incrementAndGet( );
+
+    System.err.println( "Error adding: " + doc.getFieldValue( "url" ) );
+    t.printStackTrace( System.err );
+  }
+
+  /**
+   * Rough estimate of the number of bytes the document takes up in the
+   * request sent to Solr.
+   */
+  private static long estimateSize( SolrInputDocument doc )
+  {
+    long size = 0;
+    for ( SolrInputField field : doc )
+      {
+        Object value = field.getValue( );
+
+        size += field.getName( ).length( ) + (value != null ? value.toString().length() : 0);
+      }
+
+    return size;
+  }
+
+  /**
+   * Returns the number of documents successfully sent to the server.
+   */
+  public long getNumAdded( )
+  {
+    return this.numAdded.get( );
+  }
+
+  /**
+   * Returns the number of documents which could not be sent.
+   */
+  public long getNumFailed( )
+  {
+    return this.numFailed.get( );
+  }
+
   public void commit( )
     throws IOException
   {
     try
       {
         // Send any documents still in the buffer
-        this.server.add( this.docBuffer );
+        send( );
+
+        // Wait for all the batches in flight to be done.
+        this.inFlight.acquire( this.threads );
+        this.inFlight.release( this.threads );
+
+        checkError( );
 
         // Commit the updates.
         this.server.commit();
       }
+    catch ( InterruptedException ie )
+      {
+        throw new IOException( "Interrupted waiting for documents to be sent", ie );
+      }
     catch ( SolrServerException sse )
       {
         throw new IOException( sse );
       }
+    finally
+      {
+        this.senders .shutdown( );
+        this.bisector.shutdown( );
+      }
+  }
+
+  /**
+   * Creates daemon threads with the given name prefix.
+   */
+  private static class NamedThreadFactory implements ThreadFactory
+  {
+    private String prefix;
+    private int    count = 0;
+
+    NamedThreadFactory( String prefix )
+    {
+      this.prefix = prefix;
+    }
+
+    public synchronized Thread newThread( Runnable r )
+    {
+      Thread t = new Thread( r, this.prefix + (count++) );
+      t.setDaemon( true );
+      return t;
+    }
   }
 }
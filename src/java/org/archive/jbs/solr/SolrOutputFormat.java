@@ -26,6 +26,8 @@ import org.apache.hadoop.io.*;
 import org.apache.hadoop.mapred.*;
 import org.apache.hadoop.util.*;
 
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+
 import org.archive.jbs.Document;
 import org.archive.jbs.util.*;
 import org.archive.jbs.filter.*;
@@ -40,46 +42,26 @@ import org.archive.jbs.*;
  * We perform essentially the same type normalization and filtering,
  * robot filtering, etc. before forming the Solr document.
  */
-public class SolrOutputFormat extends FileOutputFormat<Text, Text>
+public class SolrOutputFormat extends FileOutputFormat<Text, Writable>
 {
-  public RecordWriter<Text, Text> getRecordWriter( final FileSystem fs,
+  public RecordWriter<Text, Writable> getRecordWriter( final FileSystem fs,
                                                    final JobConf job,
                                                    final String name,
                                                    final Progressable progress )
     throws IOException
   {
     String serverUrl  = job.get( "jbs.solr.url", "http://localhost:8983/solr" );
-    int    docBufSize = job.getInt( "jbs.solr.bufSize", 10 );
+    int    docBufSize  = job.getInt ( "jbs.solr.bufSize", 10 );
+    long   docBufBytes = job.getLong( "jbs.solr.bufBytes", 8L * 1024 * 1024 );
+    int    threads     = job.getInt ( "jbs.solr.threads", 1 );
 
-    SolrDocumentWriter solrDocWriter = new SolrDocumentWriter( new URL( serverUrl ), docBufSize );
+    SolrDocumentWriter solrDocWriter = new SolrDocumentWriter( new CommonsHttpSolrServer( new URL( serverUrl ) ), docBufSize, docBufBytes, threads );
 
     // FIXME: Temporary collection hack
     solrDocWriter.collectionHack = job.get( "jbs.solr.collectionHack", null );
 
-    TypeNormalizer normalizer = new TypeNormalizer( );
-    Map<String,String> aliases = normalizer.parseAliases( job.get( "jbs.typeNormalizer.aliases", "" ) );
-
-    if ( job.getBoolean( "jbs.typeNormalizer.useDefaults", true ) )
-      {
-        Map<String,String> defaults = normalizer.getDefaultAliases( );
-        defaults.putAll( aliases );
-
-        aliases = defaults;
-      }
-    normalizer.setAliases( aliases );
-
-    TypeFilter typeFilter = new TypeFilter( );
-    Set<String> allowedTypes = typeFilter.parse( job.get( "jbs.typeFilter.allowed", "" ) );
-
-    if ( job.getBoolean( "jbs.typeFilter.useDefaults", true ) )
-      {
-        Set<String> defaults = typeFilter.getDefaultAllowed( );
-        defaults.addAll( allowedTypes );
-
-        allowedTypes = defaults;
-      }
-    typeFilter.setAllowed( allowedTypes );
-    typeFilter.setTypeNormalizer( normalizer );
+    TypeNormalizer normalizer = TypeNormalizer.build( job );
+    TypeFilter     typeFilter = TypeFilter.build( job, normalizer );
 
     solrDocWriter.setFilter( "reqFields", new RequiredFieldsFilter( ) );
     solrDocWriter.setFilter( "type",      typeFilter );
@@ -91,7 +73,7 @@ public class SolrOutputFormat extends FileOutputFormat<Text, Text>
     return new SolrRecordWriter( solrDocWriter );
   }
   
-  public class SolrRecordWriter implements RecordWriter<Text, Text>
+  public class SolrRecordWriter implements RecordWriter<Text, Writable>
   {
     SolrDocumentWriter docWriter;
     
@@ -100,22 +82,34 @@ public class SolrOutputFormat extends FileOutputFormat<Text, Text>
       this.docWriter = docWriter;
     }
 
-    public void write( Text key, Text value )
+    public void write( Text key, Writable value )
       throws IOException
     {
-      this.docWriter.add( key.toString(), new Document( value.toString() ) );
+      this.docWriter.add( key, Merge.fromWritable( value ) );
     }
     
+    /**
+     * Send the last batches and a commit to Solr.  If they, or any
+     * earlier batch, failed, the error is thrown and the task fails.
+     * Either way, the numbers of documents added and rejected are
+     * added to the Hadoop counters.
+     */
     public void close( Reporter reporter )
+      throws IOException
     {
-      // Send a solr message to commit.  Anything else?
+      docWriter.reportFilterCounters( reporter );
+
+      reporter.incrCounter( "jbs.idnHelper", "cacheHits",   docWriter.getIDNHelper( ).getCacheHits  ( ) );
+      reporter.incrCounter( "jbs.idnHelper", "cacheMisses", docWriter.getIDNHelper( ).getCacheMisses( ) );
+
       try
         {
           docWriter.commit();
         }
-      catch ( IOException ioe )
+      finally
         {
-          // TODO: Log it.
+          reporter.incrCounter( "jbs.solr", "added",  docWriter.getNumAdded ( ) );
+          reporter.incrCounter( "jbs.solr", "failed", docWriter.getNumFailed( ) );
         }
     }
   }
@@ -149,6 +143,8 @@ public class SolrOutputFormat extends FileOutputFormat<Text, Text>
         helper.addRules( new StringReader( moreRules ) );
       }
 
+    helper.setCacheSize( job.getInt( "jbs.idnHelper.cacheSize", 10000 ) );
+
     return helper;
   }
 
@@ -0,0 +1,405 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.tools;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.mapred.*;
+import org.apache.hadoop.util.*;
+
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.Version;
+
+import org.archive.jbs.lucene.LuceneOutputFormat;
+
+/**
+ * Command-line utility to merge a number of finished Lucene indexes,
+ * such as those written by the reducers of a LuceneOutputFormat job,
+ * into a smaller number of larger ones.
+ *
+ * Each input must have a "done" file in it.  An input with a
+ * "manifest" file is a sharded index, and each of the shards listed
+ * in the manifest is an input.
+ *
+ * The inputs are assigned to the outputs largest first, each one to
+ * the output with the least data so far, which keeps the outputs
+ * close to the same size.  The outputs are then merged in parallel,
+ * each by adding its inputs to a new index in a local temporary
+ * directory, which is then copied to the destination.  The outputs
+ * are written to shard-NNNNN sub-directories of the destination,
+ * along with a "manifest" file listing them, the number of documents
+ * in each and the inputs merged into it.
+ */
+public class MergeIndexes extends Configured implements Tool
+{
+  public static final Log LOG = LogFactory.getLog( MergeIndexes.class );
+
+  public static void main(String[] args) throws Exception
+  {
+    int result = ToolRunner.run( new JobConf(MergeIndexes.class), new MergeIndexes(), args );
+
+    System.exit( result );
+  }
+
+  public int run( String[] args ) throws Exception
+  {
+    String usage = "Usage: MergeIndexes [-n outputs] [-threads n] [-concurrent] [-optimize] <output> <index>...\n"
+      + "  -n          number of indexes to merge the inputs into (default 1)\n"
+      + "  -threads    number of outputs to merge at the same time (default: all)\n"
+      + "  -concurrent use a concurrent merge scheduler within each output\n"
+      + "  -optimize   optimize each output once its inputs are added";
+
+    int     numOutputs = 1;
+    int     threads    = 0;
+    boolean concurrent = false;
+    boolean optimize   = false;
+
+    int i = 0;
+    for ( ; i < args.length ; i++ )
+      {
+        if ( args[i].equals( "-n" ) && i + 1 < args.length )
+          {
+            numOutputs = Integer.parseInt( args[++i] );
+          }
+        else if ( args[i].equals( "-threads" ) && i + 1 < args.length )
+          {
+            threads = Integer.parseInt( args[++i] );
+          }
+        else if ( args[i].equals( "-concurrent" ) )
+          {
+            concurrent = true;
+          }
+        else if ( args[i].equals( "-optimize" ) )
+          {
+            optimize = true;
+          }
+        else
+          {
+            break;
+          }
+      }
+
+    if ( args.length - i < 2 || numOutputs < 1 )
+      {
+        System.err.println( usage );
+        return 1;
+      }
+
+    Path       output   = new Path( args[i++] );
+    FileSystem outputFs = output.getFileSystem( getConf() );
+
+    if ( outputFs.exists( output ) )
+      {
+        System.err.println( "Output already exists: " + output );
+        return 1;
+      }
+
+    List<Input> inputs = new ArrayList<Input>( );
+    for ( ; i < args.length ; i++ )
+      {
+        Path       path = new Path( args[i] );
+        FileSystem fs   = path.getFileSystem( getConf() );
+
+        FileStatus[] statuses = fs.globStatus( path );
+        if ( statuses == null || statuses.length == 0 )
+          {
+            System.err.println( "No such index: " + path );
+            return 1;
+          }
+
+        for ( FileStatus status : statuses )
+          {
+            addInputs( fs, status.getPath( ), inputs );
+          }
+      }
+
+    List<List<Input>> plan = plan( inputs, numOutputs );
+
+    if ( threads < 1 ) threads = plan.size( );
+
+    ExecutorService merger = Executors.newFixedThreadPool( threads );
+    try
+      {
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>( );
+        for ( int j = 0 ; j < plan.size( ) ; j++ )
+          {
+            final Path        dest   = new Path( output, LuceneOutputFormat.getShardName( j ) );
+            final List<Input> part   = plan.get( j );
+            final boolean     cms    = concurrent;
+            final boolean     opt    = optimize;
+            results.add( merger.submit( new Callable<Integer>( )
+              {
+                public Integer call( ) throws IOException
+                {
+                  return merge( part, dest, cms, opt );
+                }
+              } ) );
+          }
+
+        int[] numDocs = new int[plan.size( )];
+        for ( int j = 0 ; j < numDocs.length ; j++ )
+          {
+            try
+              {
+                numDocs[j] = results.get( j ).get( );
+              }
+            catch ( ExecutionException ee )
+              {
+                throw new IOException( "Error merging: " + LuceneOutputFormat.getShardName( j ), ee.getCause( ) );
+              }
+          }
+
+        writeManifest( outputFs, output, plan, numDocs );
+      }
+    finally
+      {
+        merger.shutdownNow( );
+      }
+
+    outputFs.createNewFile( new Path( output, "done" ) );
+
+    return 0;
+  }
+
+  /**
+   * Add the given index to the inputs, or if it's sharded, each of
+   * its shards.
+   */
+  public void addInputs( FileSystem fs, Path index, List<Input> inputs )
+    throws IOException
+  {
+    if ( ! fs.exists( new Path( index, "done" ) ) )
+      {
+        throw new IOException( "Index is not finished, no \"done\" file: " + index );
+      }
+
+    Path manifest = new Path( index, LuceneOutputFormat.MANIFEST );
+    if ( ! fs.exists( manifest ) )
+      {
+        inputs.add( new Input( fs, index ) );
+        return ;
+      }
+
+    BufferedReader reader = new BufferedReader( new InputStreamReader( fs.open( manifest ), "utf-8" ) );
+    try
+      {
+        String line;
+        while ( ( line = reader.readLine( ) ) != null )
+          {
+            line = line.trim( );
+            if ( line.length( ) == 0 || line.startsWith( "#" ) ) continue ;
+
+            String name = line.split( "\t" )[0];
+
+            inputs.add( new Input( fs, new Path( index, name ) ) );
+          }
+      }
+    finally
+      {
+        reader.close( );
+      }
+  }
+
+  /**
+   * Assign the inputs to (at most) the given number of outputs.  The
+   * inputs are taken largest first, and each is assigned to the
+   * output with the smallest total size so far.  Ties go to the
+   * lowest numbered output, so the plan is the same for the same
+   * inputs.
+   */
+  public static List<List<Input>> plan( List<Input> inputs, int numOutputs )
+  {
+    List<Input> sorted = new ArrayList<Input>( inputs );
+    Collections.sort( sorted, new Comparator<Input>( )
+      {
+        public int compare( Input a, Input b )
+        {
+          if ( a.size != b.size ) return a.size > b.size ? -1 : 1;
+
+          return a.path.compareTo( b.path );
+        }
+      } );
+
+    int n = Math.max( 1, Math.min( numOutputs, sorted.size( ) ) );
+
+    List<List<Input>> plan  = new ArrayList<List<Input>>( );
+    long[]            sizes = new long[n];
+    for ( int i = 0 ; i < n ; i++ )
+      {
+        plan.add( new ArrayList<Input>( ) );
+      }
+
+    for ( Input input : sorted )
+      {
+        int smallest = 0;
+        for ( int i = 1 ; i < n ; i++ )
+          {
+            if ( sizes[i] < sizes[smallest] ) smallest = i;
+          }
+
+        plan.get( smallest ).add( input );
+        sizes[smallest] += input.size;
+      }
+
+    for ( int i = 0 ; i < n ; i++ )
+      {
+        LOG.info( LuceneOutputFormat.getShardName( i ) + ": " + plan.get( i ).size( ) + " indexes, " + sizes[i] + " bytes" );
+      }
+
+    return plan;
+  }
+
+  /**
+   * Merge the given inputs into a new index at <code>dest</code>.
+   * Returns the number of documents in it.
+   */
+  public int merge( List<Input> inputs, Path dest, boolean concurrent, boolean optimize )
+    throws IOException
+  {
+    Configuration conf    = getConf();
+    FileSystem    destFs  = dest.getFileSystem( conf );
+    FileSystem    localFs = FileSystem.getLocal( conf ).getRawFileSystem( );
+
+    Path work = new Path( conf.get( "hadoop.tmp.dir", System.getProperty( "java.io.tmpdir" ) ),
+                          "jbs-merge-indexes/_" + (new Random().nextInt() & Integer.MAX_VALUE) );
+    Path temp  = new Path( work, "index" );
+    Path local = destFs.startLocalOutput( dest, temp );
+
+    List<Directory> dirs = new ArrayList<Directory>( );
+    try
+      {
+        // Lucene can only read local indexes, so copy down any which
+        // aren't.
+        for ( int i = 0 ; i < inputs.size( ) ; i++ )
+          {
+            Input input = inputs.get( i );
+            if ( input.fs instanceof LocalFileSystem )
+              {
+                dirs.add( FSDirectory.open( new File( input.path.toUri( ).getPath( ) ) ) );
+              }
+            else
+              {
+                Path copy = new Path( work, "input-" + i );
+                FileUtil.copy( input.fs, input.path, localFs, copy, false, conf );
+                dirs.add( FSDirectory.open( new File( copy.toUri( ).getPath( ) ) ) );
+              }
+          }
+
+        IndexWriterConfig config = new IndexWriterConfig( Version.LUCENE_35, new KeywordAnalyzer( ) );
+        config.setOpenMode( IndexWriterConfig.OpenMode.CREATE );
+        config.setMergeScheduler( concurrent ? new ConcurrentMergeScheduler( ) : new SerialMergeScheduler( ) );
+
+        LogByteSizeMergePolicy mergePolicy = new LogByteSizeMergePolicy( );
+        mergePolicy.setUseCompoundFile( false );
+        config.setMergePolicy( mergePolicy );
+
+        IndexWriter writer = new IndexWriter( FSDirectory.open( new File( local.toUri( ).getPath( ) ) ), config );
+        int numDocs;
+        try
+          {
+            LOG.info( "Merging " + inputs.size( ) + " indexes into: " + dest );
+
+            writer.addIndexes( dirs.toArray( new Directory[dirs.size( )] ) );
+
+            if ( optimize )
+              {
+                writer.optimize( );
+              }
+            numDocs = writer.numDocs( );
+          }
+        finally
+          {
+            writer.close( );
+          }
+
+        destFs.completeLocalOutput( dest, temp );
+        destFs.createNewFile( new Path( dest, "done" ) );
+
+        LOG.info( "Merged " + numDocs + " documents into: " + dest );
+
+        return numDocs;
+      }
+    finally
+      {
+        for ( Directory dir : dirs )
+          {
+            dir.close( );
+          }
+        localFs.delete( work, true );
+      }
+  }
+
+  /**
+   * Write the manifest of the outputs, one line per output with its
+   * directory name, number of documents and the inputs merged into
+   * it, separated by tabs.
+   */
+  public void writeManifest( FileSystem fs, Path output, List<List<Input>> plan, int[] numDocs )
+    throws IOException
+  {
+    Writer out = new OutputStreamWriter( fs.create( new Path( output, LuceneOutputFormat.MANIFEST ) ), "utf-8" );
+    try
+      {
+        int count = 0;
+        for ( List<Input> inputs : plan ) count += inputs.size( );
+
+        out.write( "# merged from " + count + " indexes\n" );
+        for ( int i = 0 ; i < numDocs.length ; i++ )
+          {
+            StringBuilder sources = new StringBuilder( );
+            for ( Input input : plan.get( i ) )
+              {
+                if ( sources.length( ) > 0 ) sources.append( ',' );
+                sources.append( input.path );
+              }
+
+            out.write( LuceneOutputFormat.getShardName( i ) + "\t" + numDocs[i] + "\t" + sources + "\n" );
+          }
+      }
+    finally
+      {
+        out.close( );
+      }
+  }
+
+  /**
+   * An index to be merged, and its size in bytes.
+   */
+  public static class Input
+  {
+    FileSystem fs;
+    Path       path;
+    long       size;
+
+    public Input( FileSystem fs, Path path )
+      throws IOException
+    {
+      this.fs   = fs;
+      this.path = fs.makeQualified( path );
+      this.size = fs.getContentSummary( path ).getLength( );
+    }
+  }
+
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.util;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+
+import org.archive.io.GZIPMembersInputStream;
+
+/**
+ * Variant of the FilenameInputFormat which splits compressed (w)arc
+ * files into byte ranges that begin on record boundaries, so that a
+ * single large (w)arc file can be parsed by multiple map tasks.
+ *
+ * The record boundaries are the offsets of the gzip members in the
+ * file, which are read from an index file next to the (w)arc file.
+ * The index is either:
+ * <ul>
+ *   <li><code>foo.warc.gz.offsets</code> : one offset per line, as
+ *       written by the <code>main()</code> driver of this class</li>
+ *   <li><code>foo.warc.gz.cdx</code> : a CDX file with the compressed
+ *       offset ("V") column</li>
+ * </ul>
+ * If there is no index file, or the (w)arc file is not compressed,
+ * the whole file is a single split, just as with FilenameInputFormat.
+ *
+ * The size of each split is given by <code>jbs.parse.split.size</code>
+ * (in bytes).  The map task finds the byte range of its split in
+ * <code>map.input.start</code> and <code>map.input.length</code>.
+ *
+ * Splits whose output (as named by PerMapOutputFormat) already exists
+ * in the job's output directory are skipped.
+ */
+public class ArchiveSplitInputFormat extends FilenameInputFormat
+{
+  public static final Log LOG = LogFactory.getLog( ArchiveSplitInputFormat.class );
+
+  public static final String OFFSETS_SUFFIX = ".offsets";
+  public static final String CDX_SUFFIX     = ".cdx";
+
+  /**
+   * Returns <code>true</code> if the path is an index file rather
+   * than a (w)arc file.
+   */
+  public static boolean isIndexFile( Path path )
+  {
+    String name = path.getName( );
+
+    return name.endsWith( OFFSETS_SUFFIX ) || name.endsWith( CDX_SUFFIX );
+  }
+
+  /**
+   * Returns the name of the output for the split of the given file
+   * starting at <code>start</code> and <code>length</code> bytes
+   * long.  A split covering the whole file has the same output name
+   * as the file itself.
+   */
+  public static String getSplitName( String name, long start, long length, long fileLength )
+  {
+    if ( start == 0 && length >= fileLength ) return name;
+
+    return name + "@" + start;
+  }
+
+  @Override
+  protected boolean isSplitable( FileSystem fs, Path file )
+  {
+    return file.getName( ).endsWith( ".gz" );
+  }
+
+  @Override
+  protected FileStatus[] listStatus( JobConf job )
+    throws IOException
+  {
+    List<FileStatus> files = new ArrayList<FileStatus>( );
+    for ( FileStatus status : super.listStatus( job ) )
+      {
+        if ( ! isIndexFile( status.getPath( ) ) ) files.add( status );
+      }
+
+    return files.toArray( new FileStatus[files.size()] );
+  }
+
+  @Override
+  public InputSplit[] getSplits( JobConf job, int numSplits )
+    throws IOException
+  {
+    long splitSize = job.getLong( "jbs.parse.split.size", 256L * 1024 * 1024 );
+
+    Path outputDir = FileOutputFormat.getOutputPath( job );
+    FileSystem outputfs = outputDir != null ? outputDir.getFileSystem( job ) : null;
+
+    List<InputSplit> splits = new ArrayList<InputSplit>( );
+    for ( FileStatus status : listStatus( job ) )
+      {
+        Path path = status.getPath( );
+        FileSystem fs = path.getFileSystem( job );
+        long fileLength = status.getLen( );
+
+        long[] offsets = null;
+        if ( splitSize > 0 && fileLength > splitSize && isSplitable( fs, path ) )
+          {
+            offsets = readOffsets( fs, path );
+          }
+
+        if ( offsets == null || offsets.length == 0 )
+          {
+            offsets = new long[] { 0 };
+          }
+
+        BlockLocation[] blocks = fs.getFileBlockLocations( status, 0, fileLength );
+
+        int count = 0;
+        for ( int i = 0 ; i < offsets.length ; )
+          {
+            long start = offsets[i];
+
+            // Take offsets until the split is at least splitSize long.
+            int j = i + 1;
+            while ( j < offsets.length && offsets[j] - start < splitSize ) j++;
+
+            long end = j < offsets.length ? offsets[j] : fileLength;
+
+            i = j;
+
+            String name = getSplitName( path.getName( ), start, end - start, fileLength );
+            if ( outputfs != null && outputfs.exists( new Path( outputDir, name ) ) )
+              {
+                LOG.debug( "Output path already exists: " + name );
+                continue ;
+              }
+
+            String[] hosts = blocks.length > 0 ? blocks[getBlockIndex( blocks, start )].getHosts( ) : new String[0];
+
+            splits.add( new FileSplit( path, start, end - start, hosts ) );
+            count++;
+          }
+
+        LOG.info( "Input: " + path + " splits: " + count );
+      }
+
+    return splits.toArray( new InputSplit[splits.size()] );
+  }
+
+  /**
+   * Read the offsets of the records in the (w)arc file from its index
+   * file.  Returns <code>null</code> if there is no index.  The
+   * offsets are returned in ascending order, and always start with 0.
+   */
+  public static long[] readOffsets( FileSystem fs, Path path )
+    throws IOException
+  {
+    Path offsetsPath = path.suffix( OFFSETS_SUFFIX );
+    Path cdxPath     = path.suffix( CDX_SUFFIX );
+
+    int column;
+    Path indexPath;
+    if ( fs.exists( offsetsPath ) )
+      {
+        indexPath = offsetsPath;
+        column    = 0;
+      }
+    else if ( fs.exists( cdxPath ) )
+      {
+        indexPath = cdxPath;
+        column    = -1;
+      }
+    else
+      {
+        return null;
+      }
+
+    SortedSet<Long> offsets = new TreeSet<Long>( );
+    offsets.add( 0L );
+
+    BufferedReader reader = new BufferedReader( new InputStreamReader( fs.open( indexPath ), "utf-8" ) );
+    try
+      {
+        String line;
+        while ( (line = reader.readLine( )) != null )
+          {
+            String[] fields = line.trim( ).split( "\\s+" );
+
+            // The CDX header line names the columns, find the one with
+            // the compressed offset.
+            if ( column < 0 )
+              {
+                if ( fields.length > 1 && "CDX".equals( fields[0] ) )
+                  {
+                    column = Arrays.asList( fields ).indexOf( "V" ) - 1;
+                  }
+                if ( column < 0 )
+                  {
+                    LOG.warn( "No offset column in CDX header: " + cdxPath );
+                    return null;
+                  }
+                continue ;
+              }
+
+            if ( column >= fields.length ) continue ;
+
+            try
+              {
+                offsets.add( Long.parseLong( fields[column] ) );
+              }
+            catch ( NumberFormatException nfe )
+              {
+                // Skip it, e.g. a "-" in the CDX.
+              }
+          }
+      }
+    finally
+      {
+        reader.close( );
+      }
+
+    long[] result = new long[offsets.size()];
+    int i = 0;
+    for ( long offset : offsets ) result[i++] = offset;
+
+    return result;
+  }
+
+  /**
+   * Scan the gzip members of the compressed (w)arc file, writing
+   * their offsets to the given stream, one per line.
+   */
+  public static void writeOffsets( InputStream in, Writer out )
+    throws IOException
+  {
+    GZIPMembersInputStream gz = new GZIPMembersInputStream( new BufferedInputStream( in, 64 * 1024 ), 64 * 1024 );
+    gz.setEofEachMember( true );
+
+    // Each member starts where the previous one ended.
+    long start = 0;
+
+    byte[] buf = new byte[64 * 1024];
+    while ( true )
+      {
+        while ( gz.read( buf ) != -1 ) ;
+
+        // If we hit EOF rather than the end of a member, we're done.
+        if ( ! gz.getAtMemberEnd( ) ) break;
+
+        out.write( Long.toString( start ) );
+        out.write( '\n' );
+
+        start = gz.getCurrentMemberEnd( );
+
+        gz.nextMember( );
+      }
+  }
+
+  /**
+   * Command-line driver to write the ".offsets" index file for each
+   * of the given compressed (w)arc files.
+   */
+  public static void main( String[] args ) throws Exception
+  {
+    if ( args.length < 1 )
+      {
+        System.err.println( "ArchiveSplitInputFormat <(w)arc.gz>..." );
+        System.exit( 1 );
+      }
+
+    Configuration conf = new Configuration( );
+
+    for ( String arg : args )
+      {
+        Path path = new Path( arg );
+        FileSystem fs = path.getFileSystem( conf );
+
+        InputStream in  = fs.open( path );
+        Writer      out = new OutputStreamWriter( fs.create( path.suffix( OFFSETS_SUFFIX ) ), "utf-8" );
+        try
+          {
+            writeOffsets( in, out );
+          }
+        finally
+          {
+            in .close( );
+            out.close( );
+          }
+      }
+  }
+
+}
@@ -1,8 +1,11 @@
 
 package org.archive.jbs.util;
 
+import java.nio.ByteBuffer;
 import java.util.Hashtable;
 
+import org.apache.hadoop.io.Text;
+
 /**
 
 <p> This class provides methods that construct fingerprints of strings
@@ -41,6 +44,17 @@ obtaining unreduced results; thus, when fingerprinting long strings,
 it's better to obtain irreduced results inside the fingerprinting loop
 and use <code>reduce</code> to reduce to a fingerprint after the loop.
 
+<p> The <code>fpUtf8</code> and <code>extendUtf8</code> routines, and
+the ones taking a Hadoop <code>Text</code> or a
+<code>ByteBuffer</code>, decode UTF-8 bytes on the fly and
+fingerprint the resulting UTF-16 characters.  For well-formed UTF-8,
+they return the same result as the <code>CharSequence</code> routines
+on the decoded string, i.e. <code>fp(text) ==
+fp(text.toString())</code>, without the cost of the decoding.
+Malformed input is replaced with <code>U+FFFD</code> characters the
+same way Java's UTF-8 decoder (and so <code>Text.toString()</code>)
+replaces it, so this holds for any bytes.
+
 */
 
 // Tested by: TestFPGenerator
@@ -148,11 +162,27 @@ public class FPGenerator {
         return extend(empty, buf, start, n);
     }
 
-// COMMENTED OUT TO REMOVE Dependency on st.ata.util.Text
-//    /** Compute fingerprint of (all bits of) <code>t</code> */
-//    public long fp(Text t) {
-//        return extend(empty, t);
-//    }
+    /** Compute fingerprint of (all bits of) the characters of the
+        UTF-8 encoded <code>t</code>.  Same as
+        <code>fp(t.toString())</code>. */
+    public long fp(Text t) {
+        return extend(empty, t);
+    }
+
+    /** Compute fingerprint of (all bits of) the characters of the
+        UTF-8 encoded bytes remaining in <code>b</code>.  The position
+        of <code>b</code> is not changed. */
+    public long fp(ByteBuffer b) {
+        return extend(empty, b);
+    }
+
+    /** Compute fingerprint of (all bits of) the characters of the
+        UTF-8 encoded "n" bytes of "buf" starting from "buf[start]".
+        Requires "[start, start+n)" is in bounds. */
+    public long fpUtf8(byte[] buf, int start, int n) {
+        return extendUtf8(empty, buf, start, n);
+    }
+
     /** Compute fingerprint of (all bits of) the characters of "s". */
     public long fp(CharSequence s) {
         return extend(empty, s);
@@ -242,12 +272,104 @@ public class FPGenerator {
         return reduce(f);
     }
 
-//  COMMENTED OUT TO REMOVE Dependency on st.ata.util.Text
-//    /** Extends fingerprint <code>f</code> by adding (all bits of)
-//     *  <code>t</code> */
-//    public long extend(long f, Text t) {
-//        return extend(f, t.buf, t.start, t.length());
-//    }
+    /** Extends fingerprint <code>f</code> by adding (all bits of)
+        the characters of the UTF-8 encoded <code>t</code>.
+        Result is reduced. */
+    public long extend(long f, Text t) {
+        return extendUtf8(f, t.getBytes(), 0, t.getLength());
+    }
+
+    /** Extends fingerprint <code>f</code> by adding (all bits of)
+        the characters of the UTF-8 encoded bytes remaining in
+        <code>b</code>.  The position of <code>b</code> is not
+        changed.
+        Result is reduced. */
+    public long extend(long f, ByteBuffer b) {
+        if (b.hasArray()) {
+            return extendUtf8(f, b.array(), b.arrayOffset() + b.position(), b.remaining());
+        }
+        byte[] buf = new byte[b.remaining()];
+        b.duplicate().get(buf);
+        return extendUtf8(f, buf, 0, buf.length);
+    }
+
+    /** Extends fingerprint <code>f</code> by adding (all bits of)
+        the characters of the UTF-8 encoded "n" bytes of "buf"
+        starting from "buf[start]".
+        Result is reduced.
+        Requires "[start,&nbsp;start+n)" is in bounds. */
+    public long extendUtf8(long f, byte[] buf, int start, int n) {
+        int end = start + n;
+        int i = start;
+        while (i < end) {
+            int c = buf[i++] & 0xff;
+            if (c < 0x80) {
+                f = extend_char(f, c);
+                continue;
+            }
+            int len = utf8Length(c);
+            if (len == 0) {
+                f = extend_char(f, REPLACEMENT);
+                continue;
+            }
+            // Like the Java decoder, a lead byte and the valid
+            // continuation bytes following it are replaced by a
+            // single U+FFFD if the sequence is cut short, either by
+            // an invalid byte or by the end of the input.
+            int cp = c & (0x3f >> (len - 1));
+            int j;
+            for (j = 1; j < len && i < end; j++, i++) {
+                int d = buf[i] & 0xff;
+                if (!isContinuation(c, j, d)) break;
+                cp = (cp << 6) | (d & 0x3f);
+            }
+            if (j < len || (cp >= 0xd800 && cp <= 0xdfff)) {
+                f = extend_char(f, REPLACEMENT);
+                continue;
+            }
+            f = extend_codePoint(f, cp);
+        }
+        return reduce(f);
+    }
+
+    private static final int REPLACEMENT = 0xfffd;
+
+    /** Returns the length of the UTF-8 sequence starting with the
+        byte <code>c</code>, or 0 if it cannot start a sequence. */
+    private static int utf8Length(int c) {
+        if (c >= 0xc2 && c <= 0xdf) return 2;
+        if (c >= 0xe0 && c <= 0xef) return 3;
+        if (c >= 0xf0 && c <= 0xf4) return 4;
+        return 0;
+    }
+
+    /** Returns true if <code>d</code> is a valid continuation byte
+        at position <code>j</code> of the sequence starting with
+        <code>c</code>.  The second byte is restricted to rule out
+        overlong sequences and code points beyond U+10FFFF.
+        Surrogates are not ruled out, as the Java decoder replaces a
+        whole 3 byte surrogate sequence with a single U+FFFD. */
+    private static boolean isContinuation(int c, int j, int d) {
+        if ((d & 0xc0) != 0x80) return false;
+        if (j > 1) return true;
+        switch (c) {
+        case 0xe0: return d >= 0xa0;
+        case 0xf0: return d >= 0x90;
+        case 0xf4: return d <= 0x8f;
+        default:   return true;
+        }
+    }
+
+    /** Extends <code>f</code> with the UTF-16 character(s) of the
+        code point <code>cp</code>.  Does not reduce. */
+    private long extend_codePoint(long f, int cp) {
+        if (cp < 0x10000) {
+            return extend_char(f, cp);
+        }
+        cp -= 0x10000;
+        f = extend_char(f, 0xd800 + (cp >>> 10));
+        return extend_char(f, 0xdc00 + (cp & 0x3ff));
+    }
 
 
     /** Extends fingerprint <code>f</code> by adding (all bits of) "n"
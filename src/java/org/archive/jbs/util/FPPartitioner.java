@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.util;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+/**
+ * Partitions Text keys by their 64-bit fingerprint, computed
+ * directly on the UTF-8 bytes of the key.  The fingerprint is far
+ * better distributed than <code>Text.hashCode()</code>, which matters
+ * for keys such as "url digest" that share long common prefixes.
+ *
+ * The fingerprint is the same as the one used as the Solr document
+ * id, so all the Documents with the same id go to the same reducer.
+ */
+public class FPPartitioner<V> implements Partitioner<Text,V>
+{
+  public void configure( JobConf job )
+  {
+  }
+
+  public int getPartition( Text key, V value, int numPartitions )
+  {
+    return partition( FPGenerator.std64.fp( key ), numPartitions );
+  }
+
+  /**
+   * Map a 64-bit fingerprint onto one of <code>numPartitions</code>.
+   * The high bits of the fingerprint are the best mixed, so use them.
+   */
+  public static int partition( long fp, int numPartitions )
+  {
+    return (int) ( (fp >>> 33) % numPartitions );
+  }
+
+}
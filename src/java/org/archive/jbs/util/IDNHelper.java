@@ -50,12 +50,114 @@ import java.util.regex.*;
  * as separate domains.  Without this rule, they would all be
  * collasped into just <code>blogger.come</code>.
  * </p>
+ * <p>
+ * The exact, exclude and simple wildcard ("*.") rules are compiled
+ * into a trie of the domain labels, in reverse order, so the domain
+ * is found in a single pass over the hostname, from right to left.
+ * Full-blown regex ("~") rules can't be put into the trie, so they
+ * are tried one at a time, as a fallback.
+ * </p>
+ * <p>
+ * Since most of the URLs in a crawl are from a relatively small number
+ * of hosts, the domains of the most recently seen hosts can be cached.
+ * The cache is disabled by default, see <code>setCacheSize()</code>.
+ * Both the ASCII and Unicode forms of the domain are cached.  The
+ * cache is split into stripes by hash of the host, each with its own
+ * lock, so that threads looking up different hosts rarely wait for
+ * each other.
+ * </p>
  */
 public class IDNHelper
 {
-  public Set<String>  exact   = new HashSet<String>();
-  public Set<String>  exclude = new HashSet<String>();
-  public Set<Pattern> wild    = new HashSet<Pattern>();
+  // The exact, exclude and "*." rules, compiled into a trie.
+  private Node rules = new Node( );
+
+  // The "~" rules, which aren't in the trie.
+  private List<Pattern> regexes = new ArrayList<Pattern>( );
+
+  // Maximum number of stripes of the cache.
+  private static final int CACHE_STRIPES = 16;
+
+  // Stripes of the LRU cache of host -> { ASCII domain, Unicode domain }.
+  private CacheStripe[] cache;
+
+  // Cached value for hosts with no domain.
+  private static final String[] NO_DOMAIN = new String[2];
+
+  /**
+   * Set the maximum number of hosts whose domain is cached.  A size
+   * of 0 disables the cache.  Changing the size empties the cache.
+   */
+  public void setCacheSize( final int cacheSize )
+  {
+    if ( cacheSize <= 0 )
+      {
+        this.cache = null;
+        return ;
+      }
+
+    // Each stripe holds an equal share of the hosts.
+    int stripes = Math.min( CACHE_STRIPES, cacheSize );
+
+    CacheStripe[] cache = new CacheStripe[stripes];
+    for ( int i = 0 ; i < stripes ; i++ )
+      {
+        cache[i] = new CacheStripe( ( cacheSize + stripes - 1 ) / stripes );
+      }
+
+    this.cache = cache;
+  }
+
+  /**
+   * Returns the number of lookups found in the cache.
+   */
+  public long getCacheHits( )
+  {
+    CacheStripe[] cache = this.cache;
+    if ( cache == null ) return 0;
+
+    long hits = 0;
+    for ( CacheStripe stripe : cache )
+      {
+        synchronized ( stripe )
+          {
+            hits += stripe.hits;
+          }
+      }
+
+    return hits;
+  }
+
+  /**
+   * Returns the number of lookups not found in the cache.
+   */
+  public long getCacheMisses( )
+  {
+    CacheStripe[] cache = this.cache;
+    if ( cache == null ) return 0;
+
+    long misses = 0;
+    for ( CacheStripe stripe : cache )
+      {
+        synchronized ( stripe )
+          {
+            misses += stripe.misses;
+          }
+      }
+
+    return misses;
+  }
+
+  /**
+   * Returns the fraction of lookups found in the cache.
+   */
+  public double getCacheHitRate( )
+  {
+    long hits   = getCacheHits( );
+    long misses = getCacheMisses( );
+
+    return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+  }
 
   public void addRule( String rule )
   {
@@ -66,13 +168,8 @@ public class IDNHelper
 
         rule = IDN.toASCII( rule.substring( 2 ) );
 
-        // Transform the rule string into regex syntax
-        rule = "[^.]+[.][^.]+[.]" + rule.replace( ".", "[.]" ) ;
-        
-        Pattern p = Pattern.compile( rule );
-        
-        wild.add( p );
-        
+        this.rules.add( rule ).wild = true;
+
         return ;
       }
     
@@ -81,26 +178,28 @@ public class IDNHelper
       {
         rule = rule.substring( 1 );
         
-        Pattern p = Pattern.compile( rule );
-        
-        wild.add( p );
+        regexes.add( Pattern.compile( rule ) );
         
         return ;
       }
     
     // Exact and exclude rules.
-    Set<String> rules = exact;
+    boolean exclude = rule.startsWith( "!" );
     
-    if ( rule.startsWith( "!" ) )
+    if ( exclude )
       {
         if ( rule.length() == 1 ) return ;
         
-        rules = exclude;
-        
         rule = rule.substring( 1 );
       }
     
-    rules.add( IDN.toASCII( rule ) );    
+    rule = IDN.toASCII( rule );
+
+    Node node = this.rules.add( rule );
+    if ( exclude )
+      node.exclude = true;
+    else
+      node.exact = true;
   }
   
   /**
@@ -131,6 +230,28 @@ public class IDNHelper
     return getDomain( u.getHost( ) );
   }
 
+  /**
+   * Return the domain of the given url in Unicode form, as for
+   * display.  If the domain cannot be determined, the host of the
+   * URL is returned.
+   */
+  public String getUnicodeDomain( URL u )
+  {
+    String domain = getUnicodeDomain( u.getHost( ) );
+
+    return domain != null ? domain : u.getHost( );
+  }
+
+  /**
+   * Return the domain of the given host string in Unicode form, as
+   * for display.  Returns <code>null</code> if domain cannot be
+   * determined.
+   */
+  public String getUnicodeDomain( String host )
+  {
+    return lookup( host )[1];
+  }
+
   /**
    * Return the domain of the given host string, according to the
    * rules added to the IDNHelper.  The input host string is expected
@@ -140,6 +261,66 @@ public class IDNHelper
    * Returns <code>null</code> if domain cannot be determined.
    */
   public String getDomain( String host )
+  {
+    return lookup( host )[0];
+  }
+
+  /**
+   * Returns the ASCII and Unicode forms of the domain of the given
+   * host, from the cache if possible.
+   */
+  private String[] lookup( String host )
+  {
+    CacheStripe[] cache = this.cache;
+
+    if ( cache == null ) return toDomains( findDomain( host ) );
+
+    // Same as findDomain(), without hashing it first.
+    if ( host == null ) return NO_DOMAIN;
+
+    int h = host.hashCode( );
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+
+    CacheStripe stripe = cache[ ( h & 0x7fffffff ) % cache.length ];
+
+    String[] domains;
+    synchronized ( stripe )
+      {
+        domains = stripe.get( host );
+
+        if ( domains != null )
+          {
+            stripe.hits++;
+            return domains;
+          }
+
+        stripe.misses++;
+      }
+
+    // Do the work outside the lock, it doesn't matter if two threads
+    // happen to do it at the same time.
+    domains = toDomains( findDomain( host ) );
+
+    synchronized ( stripe )
+      {
+        stripe.put( host, domains );
+      }
+
+    return domains;
+  }
+
+  private static String[] toDomains( String domain )
+  {
+    if ( domain == null ) return NO_DOMAIN;
+
+    return new String[] { domain, IDN.toUnicode( domain, IDN.ALLOW_UNASSIGNED ) };
+  }
+
+  /**
+   * Find the domain of the given host according to the rules.
+   */
+  private String findDomain( String host )
   {
     try
       {
@@ -152,45 +333,126 @@ public class IDNHelper
 
     if ( host == null ) return null;
 
-    int i;
-    while ( (i = host.indexOf( '.' ) ) != -1 )
+    // Conceptually, we strip the labels off the front of the host one
+    // at a time, and for each shorter host, and the "test" suffix
+    // following its first label, check if:
+    //   1. there is an exact rule for the test suffix, or
+    //   2. there is an exclude rule for the test suffix, or
+    //   3. there is an exclude rule for the host, or
+    //   4. the host is two labels followed by a wildcard rule,
+    // in that order, and stop at the first one that matches.
+    //
+    // But, rather than do that, we walk the trie from the last label
+    // of the host to the first, noting the earliest step of the above
+    // that would match.  That's the one with the fewest labels
+    // stripped off.
+    //
+    // Each step is identified by the position in the host where it
+    // starts, the earlier in the host, the better.  The result is
+    // either the host at that step, or the test suffix of it.
+    int bestStep   = host.length( );
+    int bestCheck  = 0;
+    int bestResult = -1;
+
+    // Position in the host of the start of the previous label in the
+    // walk, i.e. the label to the right of the current one.
+    int next = -1;
+
+    Node node = this.rules;
+    int end = host.length( );
+    while ( node != null && end >= 0 )
       {
-        String test = host.substring( i + 1 );
+        int start = host.lastIndexOf( '.', end - 1 ) + 1;
 
-        if ( exact.contains( test ) )
-          {
-            return host;
-          }
+        node = node.get( host, start, end );
 
-        if ( exclude.contains( test ) )
-          {
-            return test;
-          }
-        
-        if ( exclude.contains( host ) )
+        if ( node != null )
           {
-            return host;
+            // The suffix starting at 'start' is in the trie.  The
+            // first two checks apply to the step whose host starts
+            // one label before it, if any.
+            if ( start > 0 )
+              {
+                int step = host.lastIndexOf( '.', start - 2 ) + 1;
+
+                if ( node.exact && isBetter( step, 1, bestStep, bestCheck ) )
+                  {
+                    bestStep = step; bestCheck = 1; bestResult = step;
+                  }
+                if ( node.exclude && isBetter( step, 2, bestStep, bestCheck ) )
+                  {
+                    bestStep = step; bestCheck = 2; bestResult = start;
+                  }
+
+                // The fourth check applies to the step whose host
+                // starts two labels before it, if both of those labels
+                // are non-empty.
+                if ( node.wild && step > 0 && step < start - 1 )
+                  {
+                    int step2 = host.lastIndexOf( '.', step - 2 ) + 1;
+
+                    if ( step2 < step - 1 && isBetter( step2, 4, bestStep, bestCheck ) )
+                      {
+                        bestStep = step2; bestCheck = 4; bestResult = step2;
+                      }
+                  }
+              }
+
+            // The third check applies to the step whose host is this
+            // suffix, as long as it has more than one label.
+            if ( node.exclude && next >= 0 && isBetter( start, 3, bestStep, bestCheck ) )
+              {
+                bestStep = start; bestCheck = 3; bestResult = start;
+              }
           }
 
-        for ( Pattern p : wild )
+        next = start;
+        end  = start - 1;
+      }
+
+    // Try the regex rules on each step before the best one found in
+    // the trie, and on that one if the trie only found a wildcard.
+    if ( this.regexes.size( ) > 0 )
+      {
+        int step = 0;
+        while ( step < host.length( ) )
           {
-            Matcher m = p.matcher( host );
+            int dot = host.indexOf( '.', step );
+
+            if ( dot < 0 || step > bestStep || (step == bestStep && bestCheck < 4) ) break;
 
-            if ( m.matches( ) )
+            String candidate = host.substring( step );
+            for ( Pattern p : this.regexes )
               {
-                if ( m.groupCount() > 0 )
+                Matcher m = p.matcher( candidate );
+
+                if ( m.matches( ) )
                   {
-                    return m.group( 1 );
-                  }
+                    if ( m.groupCount() > 0 )
+                      {
+                        return m.group( 1 );
+                      }
 
-                return host;
+                    return candidate;
+                  }
               }
+
+            step = dot + 1;
           }
-        
-        host = test;
       }
 
-    return null;    
+    if ( bestResult < 0 ) return null;
+
+    return bestResult == 0 ? host : host.substring( bestResult );
+  }
+
+  /**
+   * Returns <code>true</code> if the given step and check come before
+   * the best ones found so far.
+   */
+  private static boolean isBetter( int step, int check, int bestStep, int bestCheck )
+  {
+    return step < bestStep || (step == bestStep && check < bestCheck);
   }
 
   /**
@@ -208,6 +470,143 @@ public class IDNHelper
     return helper;
   }
 
+  /**
+   * One stripe of the cache, an LRU map with its own hit and miss
+   * counts, all guarded by its monitor.
+   */
+  private static class CacheStripe extends LinkedHashMap<String,String[]>
+  {
+    private static final long serialVersionUID = 1L;
+
+    int  maxSize;
+    long hits;
+    long misses;
+
+    CacheStripe( int maxSize )
+    {
+      super( 16, 0.75f, true );
+
+      this.maxSize = maxSize;
+    }
+
+    protected boolean removeEldestEntry( Map.Entry<String,String[]> eldest )
+    {
+      return size( ) > this.maxSize;
+    }
+  }
+
+  /**
+   * Node in the trie of rules.  The children are keyed by domain label
+   * and are kept in an open-addressing hash table, so that they can
+   * be found by a region of the hostname, without creating a
+   * substring.  The hash of a region is the same as the
+   * <code>String.hashCode()</code> of the label.
+   */
+  private static class Node
+  {
+    boolean exact;
+    boolean exclude;
+    boolean wild;
+
+    String[] labels;
+    Node[]   children;
+    int      size;
+
+    /**
+     * Add the rule to the trie, returning the node for it.
+     */
+    Node add( String rule )
+    {
+      Node node = this;
+
+      int end = rule.length( );
+      while ( end >= 0 )
+        {
+          int start = rule.lastIndexOf( '.', end - 1 ) + 1;
+
+          String label = rule.substring( start, end );
+
+          Node child = node.get( label, 0, label.length( ) );
+          if ( child == null )
+            {
+              child = new Node( );
+              node.put( label, child );
+            }
+          node = child;
+
+          end = start - 1;
+        }
+
+      return node;
+    }
+
+    /**
+     * Find the child for the label at <code>s[start,end)</code>.
+     */
+    Node get( String s, int start, int end )
+    {
+      if ( this.labels == null ) return null;
+
+      int len  = end - start;
+      int mask = this.labels.length - 1;
+      for ( int i = hash( s, start, end ) & mask ; this.labels[i] != null ; i = (i + 1) & mask )
+        {
+          String label = this.labels[i];
+
+          if ( label.length( ) == len && label.regionMatches( 0, s, start, len ) )
+            {
+              return this.children[i];
+            }
+        }
+
+      return null;
+    }
+
+    void put( String label, Node child )
+    {
+      if ( this.labels == null || (this.size + 1) * 2 > this.labels.length )
+        {
+          String[] oldLabels   = this.labels;
+          Node[]   oldChildren = this.children;
+
+          int capacity = oldLabels == null ? 4 : oldLabels.length * 2;
+
+          this.labels   = new String[capacity];
+          this.children = new Node[capacity];
+          this.size     = 0;
+
+          if ( oldLabels != null )
+            {
+              for ( int i = 0 ; i < oldLabels.length ; i++ )
+                {
+                  if ( oldLabels[i] != null ) put( oldLabels[i], oldChildren[i] );
+                }
+            }
+        }
+
+      int mask = this.labels.length - 1;
+      int i = hash( label, 0, label.length( ) ) & mask;
+      while ( this.labels[i] != null ) i = (i + 1) & mask;
+
+      this.labels  [i] = label;
+      this.children[i] = child;
+      this.size++;
+    }
+
+    static int hash( String s, int start, int end )
+    {
+      int h = 0;
+      for ( int i = start ; i < end ; i++ )
+        {
+          h = 31 * h + s.charAt( i );
+        }
+
+      // Spread the bits, as HashMap does.
+      h ^= (h >>> 20) ^ (h >>> 12);
+      return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+  }
+
   /**
    * Command-line test driver.
    */
@@ -66,6 +66,18 @@ public class PerMapOutputFormat<K,V> extends FileOutputFormat<K,V>
 
     if ( outputFilename == null ) throw new IOException( "outputFilename is null" );
 
+    // If the map task is only reading a split of the input file, name
+    // the output after the split.
+    long start  = job.getLong( "map.input.start" ,  0 );
+    long length = job.getLong( "map.input.length", -1 );
+    if ( start > 0 || length >= 0 )
+      {
+        Path inputPath = new Path( inputFilename );
+        long fileLength = inputPath.getFileSystem( job ).getFileStatus( inputPath ).getLen( );
+
+        outputFilename = ArchiveSplitInputFormat.getSplitName( outputFilename, start, length, fileLength );
+      }
+
     return outputFilename;
   }
 
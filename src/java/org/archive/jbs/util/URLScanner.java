@@ -0,0 +1,254 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.util;
+
+/**
+ * Lightweight scanner which finds the scheme, host, port, path,
+ * query and fragment of a URL as offsets into the URL string, without
+ * creating any objects.  It is far cheaper than constructing a
+ * java.net.URI or java.net.URL, and is lenient: it does not validate
+ * the characters in the URL, so it copes with the messy URLs found in
+ * web archives.
+ *
+ * A URLScanner is re-used for many URLs, by calling
+ * <code>scan()</code> for each one.  It is not thread-safe, use one
+ * per thread.  Scanning the same String object again is free, so the
+ * filters and handlers which look at the URL of a document share the
+ * scanner of their thread, from <code>get()</code>, and the URL is
+ * only scanned once.
+ *
+ * The parts are found according to the generic syntax:
+ * <pre>
+ *   scheme:[//[userinfo@]host[:port]][path][?query][#fragment]
+ * </pre>
+ * Leading and trailing whitespace is ignored.  The path, query and
+ * fragment are raw, i.e. not %-decoded.  For a URL without an
+ * authority, such as <code>dns:example.org</code>, the path is the
+ * rest of the URL after the scheme.  A part which is absent has its
+ * start and end offsets equal.
+ */
+public class URLScanner
+{
+  private static final ThreadLocal<URLScanner> SHARED = new ThreadLocal<URLScanner>( )
+    {
+      protected URLScanner initialValue( )
+      {
+        return new URLScanner( );
+      }
+    };
+
+  /**
+   * Returns the URLScanner shared by everything in the current
+   * thread.  The caller must be done with it before anything else in
+   * the thread scans another URL.
+   */
+  public static URLScanner get( )
+  {
+    return SHARED.get( );
+  }
+
+  private String  url;
+  private boolean valid;
+
+  private int start;
+  private int schemeEnd;
+  private int hostStart;
+  private int hostEnd;
+  private int portStart;
+  private int portEnd;
+  private int pathStart;
+  private int pathEnd;
+  private int queryStart;
+  private int queryEnd;
+  private int fragmentStart;
+  private int end;
+
+  private boolean hasAuthority;
+
+  /**
+   * Scan the given URL.  Returns <code>false</code> if it does not
+   * start with a scheme, in which case the offsets are not valid.
+   */
+  public boolean scan( String url )
+  {
+    // Already scanned.
+    if ( url != null && url == this.url ) return this.valid;
+
+    this.url   = url;
+    this.valid = doScan( url );
+
+    return this.valid;
+  }
+
+  private boolean doScan( String url )
+  {
+    if ( url == null ) return false;
+
+    int start = 0;
+    int end   = url.length( );
+    while ( start < end && url.charAt( start   ) <= ' ' ) start++;
+    while ( end > start && url.charAt( end - 1 ) <= ' ' ) end--;
+
+    this.start = start;
+    this.end   = end;
+
+    // Scheme: ALPHA *( ALPHA / DIGIT / "+" / "-" / "." ) ":"
+    int i = start;
+    if ( i == end || ! isAlpha( url.charAt( i ) ) ) return false;
+    for ( i++ ; i < end ; i++ )
+      {
+        char c = url.charAt( i );
+        if ( ! ( isAlpha( c ) || ( c >= '0' && c <= '9' ) || c == '+' || c == '-' || c == '.' ) ) break;
+      }
+    if ( i == end || url.charAt( i ) != ':' ) return false;
+
+    this.schemeEnd = i;
+    i++;
+
+    // Authority
+    this.hasAuthority = i + 1 < end && url.charAt( i ) == '/' && url.charAt( i + 1 ) == '/';
+    if ( this.hasAuthority )
+      {
+        int authorityStart = i + 2;
+        int authorityEnd   = authorityStart;
+        while ( authorityEnd < end )
+          {
+            char c = url.charAt( authorityEnd );
+            if ( c == '/' || c == '?' || c == '#' ) break;
+            authorityEnd++;
+          }
+
+        // Skip any userinfo.
+        int hostStart = authorityStart;
+        for ( int j = authorityEnd - 1 ; j >= authorityStart ; j-- )
+          {
+            if ( url.charAt( j ) == '@' )
+              {
+                hostStart = j + 1;
+                break;
+              }
+          }
+
+        // The port follows the last ':', unless it's inside an IPv6
+        // literal.
+        int hostEnd = authorityEnd;
+        for ( int j = authorityEnd - 1 ; j >= hostStart ; j-- )
+          {
+            char c = url.charAt( j );
+            if ( c == ']' ) break;
+            if ( c == ':' )
+              {
+                hostEnd = j;
+                break;
+              }
+          }
+
+        this.hostStart = hostStart;
+        this.hostEnd   = hostEnd;
+        this.portStart = hostEnd < authorityEnd ? hostEnd + 1 : authorityEnd;
+        this.portEnd   = authorityEnd;
+
+        i = authorityEnd;
+      }
+    else
+      {
+        this.hostStart = this.hostEnd = i;
+        this.portStart = this.portEnd = i;
+      }
+
+    // Path
+    this.pathStart = i;
+    while ( i < end )
+      {
+        char c = url.charAt( i );
+        if ( c == '?' || c == '#' ) break;
+        i++;
+      }
+    this.pathEnd = i;
+
+    // Query
+    if ( i < end && url.charAt( i ) == '?' )
+      {
+        i++;
+        this.queryStart = i;
+        while ( i < end && url.charAt( i ) != '#' ) i++;
+        this.queryEnd = i;
+      }
+    else
+      {
+        this.queryStart = this.queryEnd = i;
+      }
+
+    // Fragment
+    this.fragmentStart = i < end ? i + 1 : end;
+
+    return true;
+  }
+
+  private static boolean isAlpha( char c )
+  {
+    return ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' );
+  }
+
+  public String getURL( )        { return this.url;           }
+  public boolean hasAuthority( ) { return this.hasAuthority;  }
+
+  public int getSchemeStart( )   { return this.start;         }
+  public int getSchemeEnd( )     { return this.schemeEnd;     }
+  public int getHostStart( )     { return this.hostStart;     }
+  public int getHostEnd( )       { return this.hostEnd;       }
+  public int getPortStart( )     { return this.portStart;     }
+  public int getPortEnd( )       { return this.portEnd;       }
+  public int getPathStart( )     { return this.pathStart;     }
+  public int getPathEnd( )       { return this.pathEnd;       }
+  public int getQueryStart( )    { return this.queryStart;    }
+  public int getQueryEnd( )      { return this.queryEnd;      }
+  public int getFragmentStart( ) { return this.fragmentStart; }
+  public int getFragmentEnd( )   { return this.end;           }
+
+  /**
+   * Returns the host as a String.  This does create an object, but
+   * only if the host is not the whole URL.
+   */
+  public String getHost( )
+  {
+    return this.url.substring( this.hostStart, this.hostEnd );
+  }
+
+  /**
+   * Returns the raw path as a String.
+   */
+  public String getPath( )
+  {
+    return this.url.substring( this.pathStart, this.pathEnd );
+  }
+
+  /**
+   * Returns <code>true</code> if the raw path, ignoring any leading
+   * and trailing whitespace, is equal to the given path.
+   */
+  public boolean pathEquals( String path )
+  {
+    int s = this.pathStart;
+    int e = this.pathEnd;
+    while ( s < e && this.url.charAt( s     ) <= ' ' ) s++;
+    while ( e > s && this.url.charAt( e - 1 ) <= ' ' ) e--;
+
+    return ( e - s ) == path.length( ) && this.url.regionMatches( s, path, 0, e - s );
+  }
+
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.hadoop.io.Text;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Checks that merging JSON values with the streaming
+ * <code>mergeJSON()</code> gives the same Document as parsing each
+ * of them and calling <code>merge(Document)</code>: the union of the
+ * property values, and the links of the first value which has any.
+ *
+ * Also checks that the binary form round-trips, that it is still the
+ * same bytes for a few Documents, so that previously written ones can
+ * be read, and that unknown versions and key codes are rejected.
+ */
+public class TestDocument
+{
+  // Each is merged on its own, and after each pair of the others.
+  // The arrays of properties only hold strings, since parsing any
+  // other value in them fails, rather than being merged.
+  static final String[] VALUES =
+    {
+      "{}",
+      "{ }",
+      "{\"url\":\"http://example.com/\",\"digest\":\"sha1:AAAA\",\"date\":\"20120101000000\"}",
+      "{\"url\":\"http://example.com/\",\"date\":[\"20120202000000\",\"20120101000000\"]}",
+      "{\"date\":[],\"collection\":[\"a\",\"b\",\"a\"]}",
+      "{\"title\":\"Quote \\\" backslash \\\\ slash \\/ tab \\t \\u00e9t\\u00E9 \\ud83d\\ude00\"}",
+      "{\"title\":\"  padded  \",\"keywords\":\"\",\"description\":\"   \"}",
+      "{\"content\":\"line one\\nline two\\r\\n\"}",
+      "{\"length\":1234,\"boost\":1.5,\"code\":-200,\"big\":12345678901234,\"exp\":1e3,\"flag\":true,\"off\":false}",
+      "{\"title\":null,\"nested\":{\"a\":\"b\",\"c\":[1,2,{\"d\":null}]},\"type\":\"text/html\"}",
+      "{\"outlinks\":[]}",
+      "{\"outlinks\":[{\"url\":\"http://a.example/\",\"text\":\"A\"},{\"url\":\"http://b.example/\"}]}",
+      "{\"outlinks\":[{\"url\":\"http://c.example/\",\"text\":\"C\"}],\"url\":\"http://example.com/\"}",
+      "{\"outlinks\":[{\"text\":\"no url\"},{},{\"url\":\"\",\"text\":\"empty url\"},{\"url\":\"http://d.example/\",\"text\":7}]}",
+      "{\"outlinks\":[{\"url\":\"  http://e.example/  \",\"text\":\"  E  \",\"other\":[1,{\"x\":2}]}]}",
+      "{\"outlinks\":[\"not an object\",42,{\"url\":\"http://f.example/\"}]}",
+      "{\"outlinks\":[{\"url\":null,\"text\":null},{\"url\":\"http://h.example/\",\"text\":null}]}",
+      "{\"outlinks\":null,\"title\":\"null links\"}",
+      "{\"outlinks\":\"not an array\"}",
+      "{\"title\":\"before\",\"outlinks\":[{\"url\":\"http://g.example/\"}],\"date\":\"20120303000000\"}",
+    };
+
+  public static void main( String[] args )
+    throws Exception
+  {
+    int checked = 0;
+    for ( String a : VALUES )
+      {
+        checkMerge( a );
+        checked++;
+
+        for ( String b : VALUES )
+          {
+            checkMerge( a, b );
+            checked++;
+
+            for ( String c : VALUES )
+              {
+                checkMerge( a, b, c );
+                checked++;
+              }
+          }
+      }
+
+    int roundTrips = 0;
+    for ( String value : VALUES )
+      {
+        checkRoundTrip( new Document( value ) );
+        roundTrips++;
+      }
+    checkRoundTrip( newDocument( ) );
+    roundTrips++;
+
+    checkEncoding( );
+    checkRejected( );
+
+    System.out.println( "TestDocument: OK, " + checked + " merges, " + roundTrips + " round trips" );
+  }
+
+  /**
+   * Merge the values into an empty Document both ways, and check the
+   * results are the same.
+   */
+  static void checkMerge( String... values )
+    throws Exception
+  {
+    Document streamed = new Document( );
+    Document parsed   = new Document( );
+    for ( String value : values )
+      {
+        Merge.mergeValue( streamed, new Text( value ), true  );
+        Merge.mergeValue( parsed,   new Text( value ), false );
+      }
+
+    String expected = describe( parsed   );
+    String actual   = describe( streamed );
+    if ( ! expected.equals( actual ) )
+      {
+        throw new AssertionError( "Merging: " + Arrays.asList( values ) + "\nexpected: " + expected + "\n     got: " + actual );
+      }
+  }
+
+  /**
+   * A Document with every key in the dictionary, keys which are not,
+   * multiple values and links with and without a URL.
+   */
+  static Document newDocument( )
+  {
+    Document doc = new Document( );
+    for ( String key : new String[] { "url", "digest", "date", "title", "content", "boiled", "type",
+                                      "length", "code", "collection", "keywords", "description",
+                                      "status", "errorMessage", "boost", "numInlinks" } )
+      {
+        doc.set( key, key + " value" );
+      }
+    doc.add( "date",       Arrays.asList( "20120101000000", "20120202000000" ) );
+    doc.add( "collection", Arrays.asList( "a", "b", "c" ) );
+    doc.set( "not-a-dictionary-key", "x" );
+    doc.add( "another", Arrays.asList( "\u00e9t\u00e9", "\ud83d\ude00", "tab\there" ) );
+
+    doc.addLink( "http://a.example/", "A" );
+    doc.addLink( "",                  "no url" );
+    doc.addLink( "http://b.example/", "" );
+    doc.addLink( "http://a.example/", "A again" );
+
+    return doc;
+  }
+
+  /**
+   * Write the Document in the binary form and read it back, into a
+   * fresh Document and into one which already has properties and
+   * links, which must be replaced.  The links without a URL are not
+   * written.
+   */
+  static void checkRoundTrip( Document doc )
+    throws Exception
+  {
+    byte[] bytes = toBytes( doc );
+
+    Document expected = new Document( );
+    expected.merge( doc );
+    expected.clearLinks( );
+    for ( Document.Link link : doc.getLinks( ) )
+      {
+        if ( link.getUrl( ).length( ) > 0 ) expected.addLink( link.getUrl( ), link.getText( ) );
+      }
+
+    Document fresh = new Document( );
+    fresh.readFields( new DataInputStream( new ByteArrayInputStream( bytes ) ) );
+
+    Document reused = newDocument( );
+    reused.readFields( new DataInputStream( new ByteArrayInputStream( bytes ) ) );
+
+    for ( Document actual : new Document[] { fresh, reused } )
+      {
+        check( describe( expected ).equals( describe( actual ) ),
+               "Round trip of: " + doc + "\nexpected: " + describe( expected ) + "\n     got: " + describe( actual ) );
+      }
+  }
+
+  /**
+   * The dictionary is append-only, so the bytes of these Documents
+   * must never change.
+   */
+  static void checkEncoding( )
+    throws Exception
+  {
+    Document doc = new Document( );
+    doc.set( "url", "http://a/" );
+    doc.addLink( "http://b/", "B" );
+    doc.addLink( "", "dropped" );
+    checkBytes( doc, 1, 1, 1, 1, 9, 'h', 't', 't', 'p', ':', '/', '/', 'a', '/', 1, 9, 'h', 't', 't', 'p', ':', '/', '/', 'b', '/', 1, 'B' );
+
+    doc = new Document( );
+    doc.set( "numInlinks", "5" );
+    checkBytes( doc, 1, 1, 16, 1, 1, '5', 0 );
+
+    doc = new Document( );
+    doc.set( "x", "\u00e9" );
+    checkBytes( doc, 1, 1, 0, 1, 'x', 1, 2, 0xc3, 0xa9, 0 );
+
+    checkBytes( new Document( ), 1, 0, 0 );
+  }
+
+  static void checkBytes( Document doc, int... expected )
+    throws Exception
+  {
+    byte[] bytes = toBytes( doc );
+
+    boolean same = bytes.length == expected.length;
+    for ( int i = 0 ; same && i < bytes.length ; i++ )
+      {
+        same = ( bytes[i] & 0xff ) == expected[i];
+      }
+
+    check( same, "Encoding of: " + doc + " changed: " + Arrays.toString( bytes ) );
+  }
+
+  /**
+   * An unknown version byte, or an unknown key code, fails rather
+   * than mis-reading the Document.
+   */
+  static void checkRejected( )
+    throws Exception
+  {
+    checkReadFails( 2, 0, 0 );
+    checkReadFails( 0, 0, 0 );
+    checkReadFails( 1, 1, 17, 1, 1, 'x', 0 );
+    checkReadFails( 1, 1, 100, 1, 1, 'x', 0 );
+  }
+
+  static void checkReadFails( int... input )
+  {
+    byte[] bytes = new byte[input.length];
+    for ( int i = 0 ; i < input.length ; i++ ) bytes[i] = (byte) input[i];
+
+    try
+      {
+        new Document( ).readFields( new DataInputStream( new ByteArrayInputStream( bytes ) ) );
+      }
+    catch ( IOException ioe )
+      {
+        return ;
+      }
+
+    throw new AssertionError( "Reading did not fail: " + Arrays.toString( bytes ) );
+  }
+
+  static byte[] toBytes( Document doc )
+    throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream( );
+    DataOutputStream      out   = new DataOutputStream( bytes );
+    doc.write( out );
+    out.close( );
+
+    return bytes.toByteArray( );
+  }
+
+  static void check( boolean condition, String message )
+  {
+    if ( ! condition ) throw new AssertionError( message );
+  }
+
+  /**
+   * A description of the Document which doesn't depend on the order
+   * of the properties or of the values of each.  The links are listed
+   * in order, including those without a URL, which are not written,
+   * followed by any "outlinks" property, which is not written either.
+   */
+  static String describe( Document doc )
+    throws Exception
+  {
+    JSONObject json = new JSONObject( doc.toString( ) );
+
+    SortedMap<String,SortedSet<String>> properties = new TreeMap<String,SortedSet<String>>( );
+    String[] names = JSONObject.getNames( json );
+    if ( names != null )
+      {
+        for ( String name : names )
+          {
+            if ( "outlinks".equals( name ) ) continue ;
+
+            SortedSet<String> values = new TreeSet<String>( );
+            for ( String value : doc.getAll( name ) ) values.add( value );
+
+            properties.put( name, values );
+          }
+      }
+
+    List<String> links = new ArrayList<String>( );
+    for ( Document.Link link : doc.getLinks( ) )
+      {
+        links.add( link.getUrl( ) + " <" + link.getText( ) + ">" );
+      }
+
+    return properties + " " + links + " " + new TreeSet<String>( doc.getAll( "outlinks" ) );
+  }
+
+}
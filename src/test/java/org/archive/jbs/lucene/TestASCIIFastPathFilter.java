@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.lucene;
+
+import java.io.*;
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.*;
+import org.apache.lucene.analysis.standard.*;
+import org.apache.lucene.analysis.tokenattributes.*;
+import org.apache.lucene.util.Version;
+
+/**
+ * Differential check of ASCIIFastPathFilter against the chain of
+ * filters it replaces, run over the given text files (default: the
+ * corpus in src/test/data).  The text of each file is analyzed both
+ * ways, with and without omitting non-alpha tokens, and any
+ * difference in the terms or their positions is a failure.
+ */
+public class TestASCIIFastPathFilter
+{
+  public static void main( String[] args )
+    throws Exception
+  {
+    if ( args.length == 0 ) args = new String[] { "src/test/data/ascii-fastpath.txt" };
+
+    long tokens = 0;
+    int  diffs  = 0;
+    for ( String file : args )
+      {
+        String text = readFile( file );
+
+        for ( boolean omitNonAlpha : new boolean[] { true, false } )
+          {
+            TokenStream expected = new StandardTokenizer( Version.LUCENE_30, new StringReader( text ) );
+            expected = new StandardFilter( expected );
+            expected = new LowerCaseFilter( expected );
+            expected = new ASCIIFoldingFilter( expected );
+            if ( omitNonAlpha ) expected = new NonAlphaFilter( expected );
+
+            TokenStream actual = new StandardTokenizer( Version.LUCENE_30, new StringReader( text ) );
+            actual = new StandardFilter( actual );
+            actual = new ASCIIFastPathFilter( actual, omitNonAlpha );
+
+            CharTermAttribute          eTerm = expected.addAttribute( CharTermAttribute.class );
+            PositionIncrementAttribute ePos  = expected.addAttribute( PositionIncrementAttribute.class );
+            CharTermAttribute          aTerm = actual  .addAttribute( CharTermAttribute.class );
+            PositionIncrementAttribute aPos  = actual  .addAttribute( PositionIncrementAttribute.class );
+
+            expected.reset( );
+            actual  .reset( );
+            while ( true )
+              {
+                boolean e = expected.incrementToken( );
+                boolean a = actual  .incrementToken( );
+
+                if ( e != a )
+                  {
+                    System.err.println( file + ": different number of tokens after " + tokens );
+                    diffs++;
+                    break;
+                  }
+                if ( ! e ) break;
+
+                tokens++;
+                if ( ! eTerm.toString( ).equals( aTerm.toString( ) ) || ePos.getPositionIncrement( ) != aPos.getPositionIncrement( ) )
+                  {
+                    System.err.println( file + ": expected " + eTerm + "/" + ePos.getPositionIncrement( ) + " got " + aTerm + "/" + aPos.getPositionIncrement( ) );
+                    diffs++;
+                  }
+              }
+            expected.close( );
+            actual  .close( );
+          }
+      }
+
+    if ( tokens == 0 )
+      {
+        throw new AssertionError( "No tokens in: " + Arrays.asList( args ) );
+      }
+    if ( diffs > 0 )
+      {
+        throw new AssertionError( diffs + " differences" );
+      }
+
+    System.out.println( "TestASCIIFastPathFilter: OK, " + tokens + " tokens" );
+  }
+
+  static String readFile( String file )
+    throws IOException
+  {
+    StringBuilder text = new StringBuilder( );
+    Reader reader = new InputStreamReader( new FileInputStream( file ), "utf-8" );
+    try
+      {
+        char[] buf = new char[64 * 1024];
+        int n;
+        while ( ( n = reader.read( buf ) ) != -1 ) text.append( buf, 0, n );
+      }
+    finally
+      {
+        reader.close( );
+      }
+
+    return text.toString( );
+  }
+
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.lucene;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.analysis.WhitespaceAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.Version;
+
+import org.archive.jbs.Document;
+import org.archive.jbs.filter.*;
+import org.archive.jbs.util.IDNHelper;
+
+/**
+ * Checks that, in incremental mode, a Document with only some of the
+ * properties, such as a revisit, does not lose the title and content
+ * of the document it replaces in the index, that content in the new
+ * Document replaces the stored content, and that the other documents
+ * are left alone, with and without shards.
+ */
+public class TestLuceneDocumentWriter
+{
+  static final String KEY   = "http://example.com/ sha1:AAAA";
+  static final String OTHER = "http://example.com/other sha1:BBBB";
+
+  public static void main( String[] args )
+    throws Exception
+  {
+    testRevisitKeepsStoredFields( );
+    testPartialDocumentKeepsContent( );
+    testNewContentReplacesStored( );
+    testNewBoostReplacesStored( );
+    testShardedRevisit( );
+    testNewDocumentIsAdded( );
+
+    System.out.println( "TestLuceneDocumentWriter: OK" );
+  }
+
+  /**
+   * A revisit, with only the URL, digest, date and collection, is
+   * merged with the existing document rather than replacing it.
+   */
+  static void testRevisitKeepsStoredFields( )
+    throws Exception
+  {
+    Directory directory = new RAMDirectory( );
+
+    index( directory, KEY, newCapture( ) );
+
+    Document revisit = new Document( );
+    revisit.set( "url",        "http://example.com/" );
+    revisit.set( "digest",     "sha1:AAAA" );
+    revisit.set( "date",       "20120601000000" );
+    revisit.set( "collection", "second" );
+    index( directory, KEY, revisit );
+
+    IndexReader reader = IndexReader.open( directory, true );
+    try
+      {
+        check( reader.numDocs( ) == 1, "numDocs: " + reader.numDocs( ) + " expected: 1" );
+
+        int docId = findDoc( reader, new Term( LuceneDocumentWriter.KEY_FIELD, KEY ) );
+        check( docId >= 0, "document not found: " + KEY );
+
+        org.apache.lucene.document.Document doc = reader.document( docId );
+
+        check( "Example page".equals( doc.get( "title" ) ), "title: " + doc.get( "title" ) );
+        check( "text/html".equals( doc.get( "type" ) ),     "type: "  + doc.get( "type" ) );
+
+        byte[] content = doc.getBinaryValue( "content" );
+        check( content != null && CompressionTools.decompressString( content ).equals( newCapture( ).get( "content" ) ), "content lost" );
+
+        Set<String> dates = new HashSet<String>( Arrays.asList( doc.getValues( "date" ) ) );
+        check( dates.equals( new HashSet<String>( Arrays.asList( "20120101000000", "20120601000000" ) ) ), "dates: " + dates );
+
+        // The SimpleFieldHandler stores only one of the values.
+        check( doc.get( "collection" ) != null, "collection lost" );
+
+        // And the content is still searchable.
+        check( findDoc( reader, new Term( "content", "searchable" ) ) >= 0, "content not indexed" );
+        check( findDoc( reader, new Term( "date",    "201206"     ) ) >= 0, "new date not indexed" );
+      }
+    finally
+      {
+        reader.close( );
+      }
+  }
+
+  /**
+   * A Document with a title but no content gets past the filters on
+   * its own, and must not replace the stored content with nothing.
+   */
+  static void testPartialDocumentKeepsContent( )
+    throws Exception
+  {
+    Directory directory = new RAMDirectory( );
+
+    index( directory, KEY, newCapture( ) );
+
+    Document partial = new Document( );
+    partial.set( "url",    "http://example.com/" );
+    partial.set( "digest", "sha1:AAAA" );
+    partial.set( "title",  "Example page" );
+    partial.set( "date",   "20120601000000" );
+    index( directory, KEY, partial );
+
+    IndexReader reader = IndexReader.open( directory, true );
+    try
+      {
+        check( reader.numDocs( ) == 1, "numDocs: " + reader.numDocs( ) + " expected: 1" );
+
+        check( findDoc( reader, new Term( "content", "searchable" ) ) >= 0, "content lost" );
+        check( findDoc( reader, new Term( "date",    "201206"     ) ) >= 0, "new date not indexed" );
+      }
+    finally
+      {
+        reader.close( );
+      }
+  }
+
+  /**
+   * Content in the new Document is indexed and stored instead of the
+   * stored content, not as well as it.
+   */
+  static void testNewContentReplacesStored( )
+    throws Exception
+  {
+    Directory directory = new RAMDirectory( );
+
+    index( directory, KEY, newCapture( ) );
+
+    Document update = newCapture( );
+    update.set( "content", "Fresh words only" );
+    index( directory, KEY, update );
+
+    IndexReader reader = IndexReader.open( directory, true );
+    try
+      {
+        check( reader.numDocs( ) == 1, "numDocs: " + reader.numDocs( ) + " expected: 1" );
+
+        org.apache.lucene.document.Document doc = reader.document( findDoc( reader, new Term( LuceneDocumentWriter.KEY_FIELD, KEY ) ) );
+        check( doc.getFields( "content" ).length == 1, "content fields: " + doc.getFields( "content" ).length + " expected: 1" );
+
+        check( findDoc( reader, new Term( "content", "Fresh"      ) ) >= 0, "new content not indexed" );
+        check( findDoc( reader, new Term( "content", "searchable" ) ) <  0, "old content still indexed" );
+      }
+    finally
+      {
+        reader.close( );
+      }
+  }
+
+  /**
+   * A new boost, and any other single-valued field in the new
+   * Document, replaces the stored one rather than being added to it.
+   * Both orders, so that the result doesn't depend on which value a
+   * set of the two happens to give first.
+   */
+  static void testNewBoostReplacesStored( )
+    throws Exception
+  {
+    String[][] boosts = { { "2.0", "3.0" }, { "3.0", "2.0" } };
+    for ( String[] pair : boosts )
+      {
+        Directory directory = new RAMDirectory( );
+
+        Document first = newCapture( );
+        first.set( "boost", pair[0] );
+        index( directory, KEY, first );
+
+        Document update = new Document( );
+        update.set( "url",    "http://example.com/" );
+        update.set( "digest", "sha1:AAAA" );
+        update.set( "date",   "20120601000000" );
+        update.set( "title",  "New title" );
+        update.set( "boost",  pair[1] );
+        index( directory, KEY, update );
+
+        IndexReader reader = IndexReader.open( directory, true );
+        try
+          {
+            org.apache.lucene.document.Document doc = reader.document( findDoc( reader, new Term( LuceneDocumentWriter.KEY_FIELD, KEY ) ) );
+
+            List<String> stored = Arrays.asList( doc.getValues( "boost" ) );
+            check( stored.equals( Arrays.asList( pair[1] ) ), "boost: " + stored + " expected: " + pair[1] );
+
+            List<String> titles = Arrays.asList( doc.getValues( "title" ) );
+            check( titles.equals( Arrays.asList( "New title" ) ), "title: " + titles );
+
+            Set<String> dates = new HashSet<String>( Arrays.asList( doc.getValues( "date" ) ) );
+            check( dates.size( ) == 2, "dates: " + dates );
+          }
+        finally
+          {
+            reader.close( );
+          }
+      }
+  }
+
+  /**
+   * With shards, a revisit is merged with the document in its shard,
+   * whether sharding by URL or by site.
+   */
+  static void testShardedRevisit( )
+    throws Exception
+  {
+    for ( String shardBy : new String[] { "url", "site" } )
+      {
+        Directory[] directories = new Directory[4];
+        for ( int i = 0 ; i < directories.length ; i++ ) directories[i] = new RAMDirectory( );
+
+        for ( int i = 0 ; i < 8 ; i++ )
+          {
+            Document capture = newCapture( );
+            capture.set( "url",    "http://host" + i + ".example.com/" );
+            capture.set( "digest", "sha1:" + i );
+            index( directories, shardBy, "http://host" + i + ".example.com/ sha1:" + i, capture );
+          }
+        for ( int i = 0 ; i < 8 ; i++ )
+          {
+            Document revisit = new Document( );
+            revisit.set( "url",    "http://host" + i + ".example.com/" );
+            revisit.set( "digest", "sha1:" + i );
+            revisit.set( "date",   "20120601000000" );
+            index( directories, shardBy, "http://host" + i + ".example.com/ sha1:" + i, revisit );
+          }
+
+        int numDocs = 0;
+        for ( Directory directory : directories )
+          {
+            IndexReader reader = IndexReader.open( directory, true );
+            try
+              {
+                numDocs += reader.numDocs( );
+                for ( int d = 0 ; d < reader.maxDoc( ) ; d++ )
+                  {
+                    if ( reader.isDeleted( d ) ) continue ;
+
+                    org.apache.lucene.document.Document doc = reader.document( d );
+                    check( "Example page".equals( doc.get( "title" ) ), "title lost, by " + shardBy + ": " + doc.get( "url" ) );
+                    check( doc.getValues( "date" ).length == 2,        "date not added, by " + shardBy + ": " + doc.get( "url" ) );
+                  }
+              }
+            finally
+              {
+                reader.close( );
+              }
+          }
+        check( numDocs == 8, "numDocs by " + shardBy + ": " + numDocs + " expected: 8" );
+      }
+  }
+
+  /**
+   * A document with a new key is added alongside the existing one.
+   */
+  static void testNewDocumentIsAdded( )
+    throws Exception
+  {
+    Directory directory = new RAMDirectory( );
+
+    index( directory, KEY, newCapture( ) );
+
+    Document other = newCapture( );
+    other.set( "url",    "http://example.com/other" );
+    other.set( "digest", "sha1:BBBB" );
+    other.set( "title",  "Other page" );
+    index( directory, OTHER, other );
+
+    IndexReader reader = IndexReader.open( directory, true );
+    try
+      {
+        check( reader.numDocs( ) == 2, "numDocs: " + reader.numDocs( ) + " expected: 2" );
+
+        check( "Example page".equals( reader.document( findDoc( reader, new Term( LuceneDocumentWriter.KEY_FIELD, KEY   ) ) ).get( "title" ) ), "first document changed" );
+        check( "Other page"  .equals( reader.document( findDoc( reader, new Term( LuceneDocumentWriter.KEY_FIELD, OTHER ) ) ).get( "title" ) ), "second document wrong" );
+      }
+    finally
+      {
+        reader.close( );
+      }
+  }
+
+  static Document newCapture( )
+  {
+    Document doc = new Document( );
+    doc.set( "url",        "http://example.com/" );
+    doc.set( "digest",     "sha1:AAAA" );
+    doc.set( "title",      "Example page" );
+    doc.set( "type",       "text/html; charset=utf-8" );
+    doc.set( "length",     "1234" );
+    doc.set( "date",       "20120101000000" );
+    doc.set( "collection", "first" );
+    doc.set( "content",    "Some long enough and searchable text, which is long enough to be worth compressing, some long enough text." );
+
+    return doc;
+  }
+
+  /**
+   * Add the document in incremental mode, as one run of
+   * LuceneOutputFormat would: with a reader on the index as it was
+   * before, and a commit at the end.
+   */
+  static void index( Directory directory, String key, Document document )
+    throws IOException
+  {
+    index( new Directory[] { directory }, "url", key, document );
+  }
+
+  /**
+   * The same, split across the shards in the given directories.
+   */
+  static void index( Directory[] directories, String shardBy, String key, Document document )
+    throws IOException
+  {
+    IndexWriter[] indexers = new IndexWriter[directories.length];
+    IndexReader[] readers  = new IndexReader[directories.length];
+    for ( int i = 0 ; i < directories.length ; i++ )
+      {
+        indexers[i] = new IndexWriter( directories[i],
+                                       new WhitespaceAnalyzer( Version.LUCENE_35 ),
+                                       IndexWriter.MaxFieldLength.UNLIMITED );
+
+        readers[i] = IndexReader.indexExists( directories[i] ) ? IndexReader.open( directories[i], true ) : null;
+      }
+    try
+      {
+        LuceneDocumentWriter writer = new LuceneDocumentWriter( indexers[0] );
+        writer.setIncremental( true );
+        writer.setExisting( readers );
+        if ( indexers.length > 1 ) writer.setShards( indexers, shardBy );
+        writer.setFilter( "reqFields", new RequiredFieldsFilter( ) );
+
+        TypeNormalizer normalizer = new TypeNormalizer( );
+
+        Map<String,FieldHandler> handlers = new LinkedHashMap<String,FieldHandler>( );
+        handlers.put( "url"        , new SimpleFieldHandler( "url",         Field.Store.YES, Field.Index.ANALYZED ) );
+        handlers.put( "digest"     , new SimpleFieldHandler( "digest",      Field.Store.YES, Field.Index.NO       ) );
+        handlers.put( "title"      , new SimpleFieldHandler( "title",       Field.Store.YES, Field.Index.ANALYZED ) );
+        handlers.put( "length"     , new SimpleFieldHandler( "length",      Field.Store.YES, Field.Index.NO ) );
+        handlers.put( "collection" , new SimpleFieldHandler( "collection",  Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS ) );
+        handlers.put( "content"    , new TextHandler( "content" ) );
+        handlers.put( "date"       , new DateHandler( ) );
+        handlers.put( "site"       , new SiteHandler( new IDNHelper( ) ) );
+        handlers.put( "type"       , new TypeHandler( normalizer ) );
+        handlers.put( "boost"      , new BoostHandler( ) );
+        writer.setHandlers( handlers );
+
+        writer.add( key, document );
+      }
+    finally
+      {
+        for ( IndexReader reader : readers )
+          {
+            if ( reader != null ) reader.close( );
+          }
+      }
+
+    for ( IndexWriter indexer : indexers )
+      {
+        indexer.close( );
+      }
+  }
+
+  /**
+   * Returns the first live document with the term, or -1.
+   */
+  static int findDoc( IndexReader reader, Term term )
+    throws IOException
+  {
+    TermDocs termDocs = reader.termDocs( term );
+    try
+      {
+        return termDocs.next( ) ? termDocs.doc( ) : -1;
+      }
+    finally
+      {
+        termDocs.close( );
+      }
+  }
+
+  static void check( boolean condition, String message )
+  {
+    if ( ! condition ) throw new AssertionError( message );
+  }
+
+}
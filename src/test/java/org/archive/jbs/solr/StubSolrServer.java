@@ -0,0 +1,149 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.solr;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stand-in for a Solr server, listening on a local port, for
+ * testing.  Every request succeeds and the documents in it are
+ * counted, except that a request containing the REJECT marker gets
+ * a 400 response and one containing the ERROR marker gets a 500.
+ *
+ * Responses are in Solr's XML format, so the client must use the
+ * XMLResponseParser.
+ */
+public class StubSolrServer implements HttpHandler
+{
+  public static final String REJECT = "reject-me";
+  public static final String ERROR  = "fail-me";
+
+  private static final String OK_RESPONSE =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+    + "<response><lst name=\"responseHeader\"><int name=\"status\">0</int><int name=\"QTime\">0</int></lst></response>\n";
+
+  private HttpServer      server;
+  private ExecutorService executor;
+
+  private AtomicInteger requests = new AtomicInteger( );
+  private AtomicInteger docs     = new AtomicInteger( );
+
+  public StubSolrServer( )
+    throws IOException
+  {
+    this.executor = Executors.newCachedThreadPool( );
+
+    this.server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+    this.server.createContext( "/solr", this );
+    this.server.setExecutor( this.executor );
+    this.server.start( );
+  }
+
+  public URL getURL( )
+    throws MalformedURLException
+  {
+    return new URL( "http://127.0.0.1:" + this.server.getAddress( ).getPort( ) + "/solr" );
+  }
+
+  public int getNumRequests( )
+  {
+    return this.requests.get( );
+  }
+
+  /**
+   * Returns the number of documents in the requests which succeeded.
+   */
+  public int getNumDocs( )
+  {
+    return this.docs.get( );
+  }
+
+  public void stop( )
+  {
+    this.server.stop( 0 );
+    this.executor.shutdownNow( );
+  }
+
+  public void handle( HttpExchange exchange )
+    throws IOException
+  {
+    this.requests.incrementAndGet( );
+
+    String body = read( exchange.getRequestBody( ) );
+
+    int    status   = 200;
+    String response = OK_RESPONSE;
+    if ( body.contains( REJECT ) )
+      {
+        status   = 400;
+        response = "Bad request: " + REJECT;
+      }
+    else if ( body.contains( ERROR ) )
+      {
+        status   = 500;
+        response = "Server error: " + ERROR;
+      }
+    else
+      {
+        this.docs.addAndGet( count( body, "<doc" ) );
+      }
+
+    byte[] bytes = response.getBytes( "utf-8" );
+
+    exchange.getResponseHeaders( ).set( "Content-Type", status == 200 ? "application/xml; charset=UTF-8" : "text/plain; charset=UTF-8" );
+    exchange.sendResponseHeaders( status, bytes.length );
+
+    OutputStream out = exchange.getResponseBody( );
+    out.write( bytes );
+    out.close( );
+  }
+
+  private static String read( InputStream in )
+    throws IOException
+  {
+    Reader        reader = new InputStreamReader( in, "utf-8" );
+    StringBuilder buf    = new StringBuilder( );
+    char[]        chars  = new char[4096];
+
+    int n;
+    while ( ( n = reader.read( chars ) ) > 0 )
+      {
+        buf.append( chars, 0, n );
+      }
+    reader.close( );
+
+    return buf.toString( );
+  }
+
+  private static int count( String s, String sub )
+  {
+    int count = 0;
+    for ( int i = s.indexOf( sub ) ; i >= 0 ; i = s.indexOf( sub, i + sub.length( ) ) )
+      {
+        count++;
+      }
+    return count;
+  }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.solr;
+
+import java.io.*;
+import java.net.*;
+
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.client.solrj.impl.XMLResponseParser;
+
+import org.archive.jbs.Document;
+import org.archive.jbs.filter.TypeNormalizer;
+import org.archive.jbs.util.IDNHelper;
+
+/**
+ * Checks that SolrDocumentWriter skips the documents rejected by the
+ * server, and fails on server and transport errors, against a
+ * StubSolrServer.
+ */
+public class TestSolrDocumentWriter
+{
+  public static void main( String[] args )
+    throws Exception
+  {
+    testRejectedDocumentsAreSkipped( );
+    testRejectedSingleDocumentIsNotResent( );
+    testServerErrorFails( );
+    testUnreachableServerFails( );
+
+    System.out.println( "TestSolrDocumentWriter: OK" );
+  }
+
+  /**
+   * The batches with rejected documents are bisected, and only those
+   * documents are lost.
+   */
+  static void testRejectedDocumentsAreSkipped( )
+    throws Exception
+  {
+    StubSolrServer stub = new StubSolrServer( );
+    try
+      {
+        SolrDocumentWriter writer = newWriter( stub.getURL( ) );
+
+        int numRejected = 0;
+        for ( int i = 0 ; i < 200 ; i++ )
+          {
+            boolean reject = ( i % 37 == 5 );
+            if ( reject ) numRejected++;
+
+            writer.add( "http://example.com/" + i + " sha1:" + i, newDocument( i, reject ? StubSolrServer.REJECT : "ok" ) );
+          }
+        writer.commit( );
+
+        check( writer.getNumFailed( ) == numRejected,       "failed: " + writer.getNumFailed( ) + " expected: " + numRejected );
+        check( writer.getNumAdded( )  == 200 - numRejected, "added: "  + writer.getNumAdded( )  + " expected: " + (200 - numRejected) );
+        check( stub.getNumDocs( )     == 200 - numRejected, "server got: " + stub.getNumDocs( ) + " expected: " + (200 - numRejected) );
+      }
+    finally
+      {
+        stub.stop( );
+      }
+  }
+
+  /**
+   * A rejected batch of one document is counted as failed without
+   * being sent again.
+   */
+  static void testRejectedSingleDocumentIsNotResent( )
+    throws Exception
+  {
+    StubSolrServer stub = new StubSolrServer( );
+    try
+      {
+        SolrDocumentWriter writer = newWriter( stub.getURL( ), 1 );
+
+        for ( int i = 0 ; i < 3 ; i++ )
+          {
+            writer.add( "http://example.com/" + i + " sha1:" + i, newDocument( i, i == 1 ? StubSolrServer.REJECT : "ok" ) );
+          }
+        writer.commit( );
+
+        check( writer.getNumFailed( ) == 1,  "failed: " + writer.getNumFailed( ) + " expected: 1" );
+        check( writer.getNumAdded( )  == 2,  "added: "  + writer.getNumAdded( )  + " expected: 2" );
+        // One request per document, and the commit.
+        check( stub.getNumRequests( ) == 4, "requests: " + stub.getNumRequests( ) + " expected: 4" );
+      }
+    finally
+      {
+        stub.stop( );
+      }
+  }
+
+  /**
+   * A server error is not bisected, it fails the writer.
+   */
+  static void testServerErrorFails( )
+    throws Exception
+  {
+    StubSolrServer stub = new StubSolrServer( );
+    try
+      {
+        SolrDocumentWriter writer = newWriter( stub.getURL( ) );
+
+        for ( int i = 0 ; i < 10 ; i++ )
+          {
+            writer.add( "http://example.com/" + i + " sha1:" + i, newDocument( i, i == 3 ? StubSolrServer.ERROR : "ok" ) );
+          }
+        checkCommitFails( writer );
+
+        check( writer.getNumFailed( ) == 0,  "failed: " + writer.getNumFailed( ) + " expected: 0" );
+        check( stub.getNumRequests( ) == 1, "requests: " + stub.getNumRequests( ) + " expected: 1" );
+      }
+    finally
+      {
+        stub.stop( );
+      }
+  }
+
+  /**
+   * Not being able to reach the server fails the writer, rather than
+   * the documents being skipped.
+   */
+  static void testUnreachableServerFails( )
+    throws Exception
+  {
+    StubSolrServer stub = new StubSolrServer( );
+    URL url = stub.getURL( );
+    stub.stop( );
+
+    SolrDocumentWriter writer = newWriter( url );
+    for ( int i = 0 ; i < 10 ; i++ )
+      {
+        writer.add( "http://example.com/" + i + " sha1:" + i, newDocument( i, "ok" ) );
+      }
+    checkCommitFails( writer );
+
+    check( writer.getNumFailed( ) == 0, "failed: " + writer.getNumFailed( ) + " expected: 0" );
+    check( writer.getNumAdded( )  == 0, "added: "  + writer.getNumAdded( )  + " expected: 0" );
+  }
+
+  static SolrDocumentWriter newWriter( URL url )
+    throws IOException
+  {
+    return newWriter( url, 10 );
+  }
+
+  static SolrDocumentWriter newWriter( URL url, int maxDocs )
+    throws IOException
+  {
+    CommonsHttpSolrServer server = new CommonsHttpSolrServer( url );
+    server.setParser( new XMLResponseParser( ) );
+
+    SolrDocumentWriter writer = new SolrDocumentWriter( server, maxDocs, 1000000, 4 );
+    writer.setTypeNormalizer( new TypeNormalizer( ) );
+    writer.setIDNHelper( new IDNHelper( ) );
+
+    return writer;
+  }
+
+  static Document newDocument( int i, String title )
+  {
+    Document doc = new Document( );
+    doc.set( "url",     "http://example.com/" + i );
+    doc.set( "digest",  "sha1:" + i );
+    doc.set( "title",   title );
+    doc.set( "length",  "1" );
+    doc.set( "content", "hello" );
+    doc.set( "date",    "20120101000000" );
+    doc.set( "type",    "text/html" );
+
+    return doc;
+  }
+
+  static void checkCommitFails( SolrDocumentWriter writer )
+  {
+    try
+      {
+        writer.commit( );
+      }
+    catch ( IOException ioe )
+      {
+        return ;
+      }
+
+    throw new AssertionError( "commit() did not fail" );
+  }
+
+  static void check( boolean condition, String message )
+  {
+    if ( ! condition ) throw new AssertionError( message );
+  }
+
+}
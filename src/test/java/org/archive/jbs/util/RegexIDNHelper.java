@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.util;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * The original IDNHelper, which checks the "*." rules by matching a
+ * regex for each one against the host.  It is kept as the reference
+ * for TestIDNHelper, which checks that the trie-based IDNHelper
+ * finds the same domains.
+ */
+public class RegexIDNHelper
+{
+  public Set<String>  exact   = new HashSet<String>();
+  public Set<String>  exclude = new HashSet<String>();
+  public Set<Pattern> wild    = new HashSet<Pattern>();
+
+  public void addRule( String rule )
+  {
+    // Handle simple wildcards rules
+    if ( rule.startsWith( "*." ) )
+      {
+        if ( rule.length() < 3 ) return ;
+
+        rule = IDN.toASCII( rule.substring( 2 ) );
+
+        // Transform the rule string into regex syntax
+        rule = "[^.]+[.][^.]+[.]" + rule.replace( ".", "[.]" ) ;
+        
+        Pattern p = Pattern.compile( rule );
+        
+        wild.add( p );
+        
+        return ;
+      }
+    
+    // Full-blown regex rules
+    if ( rule.startsWith( "~" ) )
+      {
+        rule = rule.substring( 1 );
+        
+        Pattern p = Pattern.compile( rule );
+        
+        wild.add( p );
+        
+        return ;
+      }
+    
+    // Exact and exclude rules.
+    Set<String> rules = exact;
+    
+    if ( rule.startsWith( "!" ) )
+      {
+        if ( rule.length() == 1 ) return ;
+        
+        rules = exclude;
+        
+        rule = rule.substring( 1 );
+      }
+    
+    rules.add( IDN.toASCII( rule ) );    
+  }
+  
+  /**
+   * Adds rules from the given Reader.  Rules are expected to conform
+   * to syntax in Mozilla's effective_tld_names.txt document.
+   */
+  public void addRules( Reader r )
+    throws IOException
+  {
+    BufferedReader reader = new BufferedReader( r );
+
+    String line;
+    while ( (line = reader.readLine() ) != null )
+      {
+        line = line.trim();
+        if ( line.length() == 0 || line.startsWith( "//" ) ) continue; 
+        
+        this.addRule( line );
+      }
+  }
+
+  /**
+   * Return the domain of the given url, according to the rules added
+   * to the RegexIDNHelper.
+   */
+  public String getDomain( URL u )
+  {
+    return getDomain( u.getHost( ) );
+  }
+
+  /**
+   * Return the domain of the given host string, according to the
+   * rules added to the RegexIDNHelper.  The input host string is
+   * expected to be a valid fully-qualified hostname, such as those
+   * returned by URL.getHost().
+   *
+   * Returns <code>null</code> if domain cannot be determined.
+   */
+  public String getDomain( String host )
+  {
+    try
+      {
+        host = IDN.toASCII( host, IDN.ALLOW_UNASSIGNED );
+      }
+    catch ( Exception e )
+      {
+        host = null;
+      }
+
+    if ( host == null ) return null;
+
+    int i;
+    while ( (i = host.indexOf( '.' ) ) != -1 )
+      {
+        String test = host.substring( i + 1 );
+
+        if ( exact.contains( test ) )
+          {
+            return host;
+          }
+
+        if ( exclude.contains( test ) )
+          {
+            return test;
+          }
+        
+        if ( exclude.contains( host ) )
+          {
+            return host;
+          }
+
+        for ( Pattern p : wild )
+          {
+            Matcher m = p.matcher( host );
+
+            if ( m.matches( ) )
+              {
+                if ( m.groupCount() > 0 )
+                  {
+                    return m.group( 1 );
+                  }
+
+                return host;
+              }
+          }
+        
+        host = test;
+      }
+
+    return null;    
+  }
+
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.util;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Checks that fingerprinting UTF-8 bytes, as a Text, a heap or direct
+ * ByteBuffer or a byte array, gives the same result as fingerprinting
+ * the String that <code>Text.toString()</code> decodes them to.  The
+ * inputs are random mixes of ASCII, well-formed multi-byte sequences
+ * and bytes which make sequences malformed, truncated, overlong or
+ * surrogates.
+ */
+public class TestFPGenerator
+{
+  // Bytes which are interesting to put at any position.
+  static final int[] EDGE_BYTES =
+    {
+      0x00, 0x41, 0x7f, 0x80, 0x8f, 0x90, 0x9f, 0xa0, 0xbf, 0xc0, 0xc1, 0xc2, 0xdf,
+      0xe0, 0xe1, 0xec, 0xed, 0xee, 0xef, 0xf0, 0xf1, 0xf3, 0xf4, 0xf5, 0xf7, 0xf8, 0xfe, 0xff,
+    };
+
+  public static void main( String[] args )
+    throws Exception
+  {
+    long seed  = args.length > 0 ? Long.parseLong( args[0] ) : 42;
+    int  count = args.length > 1 ? Integer.parseInt( args[1] ) : 200000;
+
+    Random random = new Random( seed );
+
+    int mismatches = 0;
+    for ( int n = 0 ; n < count ; n++ )
+      {
+        byte[] bytes = randomBytes( random );
+
+        if ( ! check( bytes ) ) mismatches++;
+      }
+
+    // Every sequence of up to three of the edge bytes, followed by an
+    // 'A' or not.
+    List<byte[]> inputs = new ArrayList<byte[]>( );
+    inputs.add( new byte[0] );
+    for ( int a : EDGE_BYTES )
+      {
+        inputs.add( new byte[] { (byte) a } );
+        for ( int b : EDGE_BYTES )
+          {
+            inputs.add( new byte[] { (byte) a, (byte) b } );
+            for ( int c : EDGE_BYTES )
+              {
+                inputs.add( new byte[] { (byte) a, (byte) b, (byte) c } );
+              }
+          }
+      }
+    for ( byte[] input : inputs )
+      {
+        if ( ! check( input ) ) mismatches++;
+
+        byte[] withA = Arrays.copyOf( input, input.length + 1 );
+        withA[input.length] = 'A';
+        if ( ! check( withA ) ) mismatches++;
+      }
+
+    if ( mismatches > 0 )
+      {
+        throw new AssertionError( mismatches + " mismatches" );
+      }
+
+    System.out.println( "TestFPGenerator: OK, " + ( count + 2 * inputs.size( ) ) + " inputs" );
+  }
+
+  /**
+   * Check all the ways of fingerprinting the bytes.  Returns false
+   * and prints the input if they don't agree.
+   */
+  static boolean check( byte[] bytes )
+  {
+    Text   text     = new Text( bytes );
+    long   expected = FPGenerator.std64.fp( text.toString( ) );
+
+    ByteBuffer direct = ByteBuffer.allocateDirect( bytes.length + 2 );
+    direct.put( (byte) 'x' ).put( bytes ).put( (byte) 'y' );
+    direct.position( 1 ).limit( 1 + bytes.length );
+
+    ByteBuffer heap = ByteBuffer.wrap( bytes );
+
+    byte[] padded = new byte[bytes.length + 2];
+    System.arraycopy( bytes, 0, padded, 1, bytes.length );
+
+    if ( FPGenerator.std64.fp( text )                            == expected &&
+         FPGenerator.std64.fp( heap )                            == expected &&
+         FPGenerator.std64.fp( direct )                          == expected &&
+         FPGenerator.std64.fpUtf8( padded, 1, bytes.length )     == expected &&
+         heap.position( ) == 0 && direct.position( ) == 1 )
+      {
+        return true;
+      }
+
+    StringBuilder hex = new StringBuilder( );
+    for ( byte b : bytes ) hex.append( String.format( "%02x ", b & 0xff ) );
+    System.err.println( "Mismatch: " + hex );
+
+    return false;
+  }
+
+  /**
+   * Random bytes, mostly made of well-formed sequences, with some
+   * edge bytes thrown in.
+   */
+  static byte[] randomBytes( Random random )
+  {
+    StringBuilder buf    = new StringBuilder( );
+    int           length = random.nextInt( 12 );
+    for ( int i = 0 ; i < length ; i++ )
+      {
+        int cp;
+        switch ( random.nextInt( 4 ) )
+          {
+          case 0:  cp = random.nextInt( 0x80 );             break;
+          case 1:  cp = 0x80 + random.nextInt( 0x780 );     break;
+          case 2:  cp = 0x800 + random.nextInt( 0xf800 );   break;
+          default: cp = 0x10000 + random.nextInt( 0x100000 ); break;
+          }
+        if ( cp >= 0xd800 && cp <= 0xdfff ) cp = 'S';
+        buf.appendCodePoint( cp );
+      }
+
+    byte[] bytes;
+    try
+      {
+        bytes = buf.toString( ).getBytes( "utf-8" );
+      }
+    catch ( java.io.UnsupportedEncodingException uee )
+      {
+        throw new RuntimeException( uee );
+      }
+
+    // Overwrite, drop or insert a few bytes.
+    List<Byte> list = new ArrayList<Byte>( );
+    for ( byte b : bytes ) list.add( b );
+
+    int edits = random.nextInt( 4 );
+    for ( int e = 0 ; e < edits ; e++ )
+      {
+        byte edge = (byte) EDGE_BYTES[random.nextInt( EDGE_BYTES.length )];
+        int  pos  = list.isEmpty( ) ? 0 : random.nextInt( list.size( ) );
+        switch ( random.nextInt( 3 ) )
+          {
+          case 0:
+            if ( ! list.isEmpty( ) ) list.set( pos, edge );
+            break;
+          case 1:
+            if ( ! list.isEmpty( ) ) list.remove( pos );
+            break;
+          default:
+            list.add( pos, edge );
+            break;
+          }
+      }
+
+    bytes = new byte[list.size( )];
+    for ( int i = 0 ; i < bytes.length ; i++ ) bytes[i] = list.get( i );
+
+    return bytes;
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Internet Archive
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License. You
+ * may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.archive.jbs.util;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that IDNHelper finds the same domain as RegexIDNHelper, the
+ * original implementation, for hosts made from each of the rules in
+ * the given rules file (default: lib/effective_tld_names.dat), with
+ * and without a few custom rules, and with and without the cache.
+ */
+public class TestIDNHelper
+{
+  // Custom rules, of the kinds a project might add.
+  static final String[] CUSTOM_RULES =
+    {
+      "blogspot.com",
+      "*.example.net",
+      "!www.example.net",
+      "~.*[.]([^.]+[.]sites[.]example[.]org)",
+    };
+
+  // Hosts which don't come from the rules.
+  static final String[] EXTRA_HOSTS =
+    {
+      "localhost",
+      "com",
+      "example.com",
+      "www.example.com",
+      "WWW.Example.COM",
+      "127.0.0.1",
+      "www.example.com.",
+      ".example.com",
+      "a..example.com",
+      "bücher.de",
+      "www.bücher.de",
+      "例え.テスト",
+      "xn--r8jz45g.xn--zckzah",
+      "foo.blogspot.com",
+      "bar.foo.blogspot.com",
+      "a.b.example.net",
+      "www.example.net",
+      "x.www.example.net",
+      "a.b.c.sites.example.org",
+      "sites.example.org",
+    };
+
+  public static void main( String[] args )
+    throws Exception
+  {
+    String rulesFile = args.length > 0 ? args[0] : "lib/effective_tld_names.dat";
+
+    List<String> rules = readRules( rulesFile );
+    List<String> hosts = makeHosts( rules );
+
+    int mismatches = 0;
+    for ( boolean custom : new boolean[] { false, true } )
+      {
+        List<String> all = new ArrayList<String>( rules );
+        if ( custom ) all.addAll( Arrays.asList( CUSTOM_RULES ) );
+
+        RegexIDNHelper expected = new RegexIDNHelper( );
+        IDNHelper      actual   = new IDNHelper( );
+        IDNHelper      cached   = new IDNHelper( );
+        cached.setCacheSize( 100 );
+
+        for ( String rule : all )
+          {
+            expected.addRule( rule );
+            actual  .addRule( rule );
+            cached  .addRule( rule );
+          }
+
+        for ( String host : hosts )
+          {
+            String domain = expected.getDomain( host );
+
+            mismatches += compare( host, domain, actual.getDomain( host ), custom, "" );
+            // Twice, to check both the miss and the hit.
+            mismatches += compare( host, domain, cached.getDomain( host ), custom, " (cached)" );
+            mismatches += compare( host, domain, cached.getDomain( host ), custom, " (cached)" );
+          }
+
+        // No domain for no host, rather than an exception.
+        mismatches += compare( null, null, actual.getDomain( (String) null ), custom, "" );
+        mismatches += compare( null, null, cached.getDomain( (String) null ), custom, " (cached)" );
+
+        // Every second lookup of a host is a hit.
+        if ( cached.getCacheHits( ) < hosts.size( ) || cached.getCacheHits( ) + cached.getCacheMisses( ) != 2 * hosts.size( ) )
+          {
+            System.err.println( "Cache hits: " + cached.getCacheHits( ) + " misses: " + cached.getCacheMisses( ) + " for: " + hosts.size( ) + " hosts" );
+            mismatches++;
+          }
+      }
+
+    if ( mismatches > 0 )
+      {
+        throw new AssertionError( mismatches + " mismatches" );
+      }
+
+    System.out.println( "TestIDNHelper: OK, " + rules.size( ) + " rules, " + hosts.size( ) + " hosts" );
+  }
+
+  static int compare( String host, String expected, String actual, boolean custom, String note )
+  {
+    if ( expected == null ? actual == null : expected.equals( actual ) ) return 0;
+
+    System.err.println( "Mismatch" + note + ( custom ? " with custom rules" : "" ) + ": " + host + " expected: " + expected + " actual: " + actual );
+
+    return 1;
+  }
+
+  static List<String> readRules( String file )
+    throws IOException
+  {
+    List<String> rules = new ArrayList<String>( );
+
+    BufferedReader reader = new BufferedReader( new InputStreamReader( new FileInputStream( file ), "utf-8" ) );
+    try
+      {
+        String line;
+        while ( ( line = reader.readLine( ) ) != null )
+          {
+            line = line.trim( );
+            if ( line.length( ) == 0 || line.startsWith( "//" ) ) continue ;
+
+            rules.add( line );
+          }
+      }
+    finally
+      {
+        reader.close( );
+      }
+
+    return rules;
+  }
+
+  /**
+   * For each rule, the suffix it names, and that suffix with one,
+   * two and three labels in front of it.
+   */
+  static List<String> makeHosts( List<String> rules )
+  {
+    Set<String> hosts = new LinkedHashSet<String>( Arrays.asList( EXTRA_HOSTS ) );
+
+    for ( String rule : rules )
+      {
+        String suffix = rule;
+        if      ( suffix.startsWith( "*." ) ) suffix = suffix.substring( 2 );
+        else if ( suffix.startsWith( "!"  ) ) suffix = suffix.substring( 1 );
+        else if ( suffix.startsWith( "~"  ) ) continue ;
+
+        hosts.add( suffix );
+        hosts.add( "a." + suffix );
+        hosts.add( "b.a." + suffix );
+        hosts.add( "www.b.a." + suffix );
+      }
+
+    return new ArrayList<String>( hosts );
+  }
+
+}